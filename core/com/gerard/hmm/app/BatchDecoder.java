@@ -0,0 +1,371 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Gerard
+ *         Viterbi decoder running many sentences in lockstep. The sentences
+ *         are bucketed by length, and each bucket is decoded in batches that
+ *         advance every sentence of the batch by one position per step. The
+ *         lattice of a batch is laid out as separate arrays of scores,
+ *         backpointers, states and state counts, indexed by position, then
+ *         sentence, then tag, so one step sweeps a contiguous block of each
+ *         array and the transition rows and emissions of the common words
+ *         stay in cache across the batch. The scratch arrays, the word id
+ *         lookups and the result arrays are set up once per batch instead of
+ *         once per sentence, which is what dominates the cost of short
+ *         sentences. Each state is scored by the sparse step of the
+ *         {@link ViterbiDecoder}, so both give the same tags. Trigram transitions are not used. The
+ *         scratch arrays are reused between batches, so a decoder must not
+ *         be shared between threads.
+ */
+public class BatchDecoder
+{
+	/** Default number of sentences decoded in lockstep */
+	public static final int        DEFAULT_BATCH_SIZE = 16;
+	
+	/**
+	 * {@link HMMModel}
+	 */
+	private final HMMModel         model;
+	
+	/** Number of tags in the model */
+	private final int              tagSize;
+	
+	/** Tag id of the sentence boundary */
+	private final int              boundaryTag;
+	
+	/** Largest number of sentences decoded in lockstep */
+	private final int              batchSize;
+	
+	/** Log emissions of the unknown words seen recently */
+	private final UnknownWordCache unknownEmissions;
+	
+	/**
+	 * The Viterbi scores where lattice[(position * batchSize + lane) *
+	 * tagSize + tag] is the log probability of the best path of the
+	 * sentence of the lane ending in tag at position.
+	 */
+	private double[]               lattice;
+	
+	/** The previous tag on the best path for each lattice cell */
+	private int[]                  backPointers;
+	
+	/**
+	 * The candidate tags of each position of each lane, stored from
+	 * states[(position * batchSize + lane) * tagSize].
+	 */
+	private int[]                  states;
+	
+	/**
+	 * Number of candidate tags of each position of each lane, stored at
+	 * [position * batchSize + lane]
+	 */
+	private int[]                  stateCounts;
+	
+	/**
+	 * Mark of the position that last had each tag as a state in each lane,
+	 * stored at [((position & 1) * batchSize + lane) * tagSize + tag]
+	 */
+	private final int[]            stateMarks;
+	
+	/** Mark of the position being scored, shared by the lanes */
+	private int                    mark;
+	
+	/**
+	 * Word ids of the batch, -1 for unknown words, stored at [position *
+	 * batchSize + lane]
+	 */
+	private int[]                  wordIds;
+	
+	/** Index of the sentence of each lane */
+	private final int[]            lanes;
+	
+	/** Number of positions the scratch arrays hold */
+	private int                    capacity;
+	
+	/**
+	 * Initialize the decoder with the default batch size.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	public BatchDecoder(HMMModel model)
+	{
+		this(model, DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Initialize the decoder.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param batchSize
+	 *            largest number of sentences decoded in lockstep
+	 */
+	public BatchDecoder(HMMModel model, int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize < 1");
+		this.model = model;
+		this.tagSize = model.getTagSize();
+		this.boundaryTag = model.getTagId(ViterbiDecoder.BOUNDARY_TAG);
+		if (boundaryTag < 0)
+			throw new IllegalArgumentException("Model has no "
+			        + ViterbiDecoder.BOUNDARY_TAG + " boundary tag");
+		this.batchSize = batchSize;
+		this.unknownEmissions = new UnknownWordCache(model);
+		this.stateMarks = new int[2 * batchSize * tagSize];
+		this.lanes = new int[batchSize];
+		this.lattice = new double[0];
+		this.backPointers = new int[0];
+		this.states = new int[0];
+		this.stateCounts = new int[0];
+		this.wordIds = new int[0];
+	}
+	
+	/**
+	 * @return the {@link HMMModel}
+	 */
+	public HMMModel getModel()
+	{
+		return model;
+	}
+	
+	/**
+	 * Tags every sentence of the list.
+	 * 
+	 * @param sentences
+	 *            the sentences, without boundary markers
+	 * @return the most probable tags of each sentence, in the order of the
+	 *         sentences
+	 */
+	public String[][] tagAll(List<String[]> sentences)
+	{
+		String[][] tags = new String[sentences.size()][];
+		tagAll(sentences, 0, sentences.size(), tags);
+		return tags;
+	}
+	
+	/**
+	 * Tags a range of the sentences of the list, bucketed by length.
+	 * 
+	 * @param sentences
+	 *            the sentences, without boundary markers
+	 * @param from
+	 *            index of the first sentence
+	 * @param to
+	 *            index after the last sentence
+	 * @param tags
+	 *            receives the tags of sentence i at index i
+	 */
+	void tagAll(List<String[]> sentences, int from, int to, String[][] tags)
+	{
+		int maxLength = 0;
+		for (int i = from; i < to; i++)
+		{
+			maxLength = Math.max(maxLength, sentences.get(i).length);
+		}
+		// Counting sort of the sentences by length
+		int[] offsets = new int[maxLength + 2];
+		for (int i = from; i < to; i++)
+		{
+			offsets[sentences.get(i).length + 1]++;
+		}
+		for (int length = 0; length <= maxLength; length++)
+		{
+			offsets[length + 1] += offsets[length];
+		}
+		int[] order = new int[to - from];
+		int[] next = Arrays.copyOf(offsets, maxLength + 1);
+		for (int i = from; i < to; i++)
+		{
+			order[next[sentences.get(i).length]++] = i;
+		}
+		
+		for (int length = 0; length <= maxLength; length++)
+		{
+			for (int start = offsets[length]; start < offsets[length + 1]; start += batchSize)
+			{
+				int count = Math.min(batchSize, offsets[length + 1] - start);
+				System.arraycopy(order, start, lanes, 0, count);
+				decodeBatch(sentences, count, length, tags);
+			}
+		}
+	}
+	
+	/**
+	 * Runs the Viterbi recursion over a batch of sentences of the same
+	 * length, one position of every lane per step, and backtraces the best
+	 * path of each lane.
+	 * 
+	 * @param sentences
+	 *            the sentences, indexed by the lanes
+	 * @param count
+	 *            number of lanes of the batch
+	 * @param length
+	 *            number of tokens of each sentence
+	 * @param tags
+	 *            receives the tags of each sentence
+	 */
+	private void decodeBatch(List<String[]> sentences, int count, int length,
+	        String[][] tags)
+	{
+		if (length == 0)
+		{
+			for (int lane = 0; lane < count; lane++)
+			{
+				tags[lanes[lane]] = new String[0];
+			}
+			return;
+		}
+		ensureCapacity(length);
+		for (int lane = 0; lane < count; lane++)
+		{
+			String[] tokens = sentences.get(lanes[lane]);
+			for (int position = 0; position < length; position++)
+			{
+				wordIds[position * batchSize + lane] = model
+				        .getWordId(tokens[position]);
+			}
+		}
+		if (mark > Integer.MAX_VALUE - length - 1)
+		{
+			Arrays.fill(stateMarks, 0);
+			mark = 0;
+		}
+		
+		for (int position = 0; position < length; position++)
+		{
+			mark++;
+			for (int lane = 0; lane < count; lane++)
+			{
+				int cell = position * batchSize + lane;
+				stateCounts[cell] = 0;
+				int word = wordIds[cell];
+				if (word < 0)
+				{
+					double[] logEmissions = unknownEmissions
+					        .logEmissions(sentences.get(lanes[lane])[position]);
+					for (int tag = 0; tag < tagSize; tag++)
+					{
+						if (tag != boundaryTag
+						        && logEmissions[tag] != Double.NEGATIVE_INFINITY)
+							score(position, lane, tag, logEmissions[tag]);
+					}
+					if (stateCounts[cell] == 0)
+					{
+						// Without a shape or suffix match, unknown words are
+						// assumed to be emitted with the same probability
+						// from every state.
+						for (int tag = 0; tag < tagSize; tag++)
+						{
+							if (tag != boundaryTag)
+								score(position, lane, tag, 0.0);
+						}
+					}
+				}
+				else
+				{
+					int end = model.getEmissionEnd(word);
+					for (int i = model.getEmissionStart(word); i < end; i++)
+					{
+						score(position, lane, model.getEmissionTag(i),
+						        model.getLogEmissionAt(i));
+					}
+				}
+			}
+		}
+		
+		int last = length - 1;
+		for (int lane = 0; lane < count; lane++)
+		{
+			int lastCell = last * batchSize + lane;
+			int lastRow = lastCell * tagSize;
+			double best = Double.NEGATIVE_INFINITY;
+			int bestTag = -1;
+			for (int i = 0; i < stateCounts[lastCell]; i++)
+			{
+				int tag = states[lastRow + i];
+				double logProb = lattice[lastRow + tag]
+				        + model.getLogTransition(tag, boundaryTag);
+				if (bestTag < 0 || logProb > best)
+				{
+					best = logProb;
+					bestTag = tag;
+				}
+			}
+			
+			String[] path = new String[length];
+			for (int position = last; position >= 0; position--)
+			{
+				path[position] = model.getTag(bestTag);
+				bestTag = backPointers[(position * batchSize + lane)
+				        * tagSize + bestTag];
+			}
+			tags[lanes[lane]] = path;
+		}
+	}
+	
+	/**
+	 * Adds the tag as a candidate state of the position of the lane and
+	 * fills its lattice cell with the best path from the previous position,
+	 * found by {@link ViterbiDecoder#bestPredecessor}.
+	 * 
+	 * @param position
+	 * @param lane
+	 * @param tag
+	 * @param logEmission
+	 *            log P(word | tag)
+	 */
+	private void score(int position, int lane, int tag, double logEmission)
+	{
+		double best;
+		int bestPrevTag;
+		if (position == 0)
+		{
+			best = model.getLogTransition(boundaryTag, tag);
+			bestPrevTag = boundaryTag;
+		}
+		else
+		{
+			int prevCell = (position - 1) * batchSize + lane;
+			int prevRow = prevCell * tagSize;
+			bestPrevTag = ViterbiDecoder.bestPredecessor(model, lattice,
+			        states, prevRow, stateCounts[prevCell], stateMarks,
+			        (((position - 1) & 1) * batchSize + lane) * tagSize,
+			        mark - 1, tag);
+			best = lattice[prevRow + bestPrevTag]
+			        + model.getLogTransition(bestPrevTag, tag);
+		}
+		int cell = position * batchSize + lane;
+		int row = cell * tagSize;
+		stateMarks[((position & 1) * batchSize + lane) * tagSize + tag] = mark;
+		lattice[row + tag] = best + logEmission;
+		backPointers[row + tag] = bestPrevTag;
+		states[row + stateCounts[cell]++] = tag;
+	}
+	
+	/**
+	 * Grows the scratch arrays to hold a batch of the given length.
+	 * 
+	 * @param length
+	 */
+	private void ensureCapacity(int length)
+	{
+		if (capacity < length)
+		{
+			capacity = Math.max(length, capacity * 2);
+			int cells = capacity * batchSize;
+			wordIds = new int[cells];
+			stateCounts = new int[cells];
+			lattice = new double[cells * tagSize];
+			backPointers = new int[cells * tagSize];
+			states = new int[cells * tagSize];
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * @author Gerard
+ *         Tags batches of sentences in parallel over a shared
+ *         {@link HMMModel}. The model is read only, while every worker
+ *         thread decodes on its own {@link SentenceDecoder} so the scratch
+ *         lattices are never shared. The model is read from a
+ *         {@link ModelHolder} once per sentence, so a new model can be
+ *         swapped in while batches are running. Without a cache or
+ *         metrics, the chunks of a batch over a bigram model are decoded
+ *         in length buckets by a {@link BatchDecoder} of the worker thread
+ *         instead, reading the model once per chunk.
+ */
+public class BatchTagger
+{
+	/** Number of chunks handed to each worker thread of a batch */
+	private static final int                   CHUNKS_PER_THREAD = 4;
+	
+	/** Holds the current {@link HMMModel} */
+	private final ModelHolder                  models;
+	
+	/** Runs the tagging tasks of a batch */
+	private final ExecutorService              executor;
+	
+	/** Number of threads the batches are split for */
+	private final int                          parallelism;
+	
+	/** Tags of the recent sentences, or null */
+	private final SentenceCache                cache;
+	
+	/** The decoder of each worker thread */
+	private final ThreadLocal<SentenceDecoder> decoders;
+	
+	/** The batch decoder of each worker thread */
+	private final ThreadLocal<BatchDecoder>    batchDecoders;
+	
+	/** Records the tagged sentences while enabled */
+	private volatile TaggerMetrics             metrics;
+	
+	/**
+	 * Initialize a batch tagger running on the common {@link ForkJoinPool}.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	public BatchTagger(HMMModel model)
+	{
+		this(model, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Initialize a batch tagger running on the given executor.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param executor
+	 *            {@link ExecutorService}
+	 */
+	public BatchTagger(HMMModel model, ExecutorService executor)
+	{
+		this(model, executor, null);
+	}
+	
+	/**
+	 * Initialize a batch tagger running on the given executor that looks
+	 * every sentence up in the cache before decoding it.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param executor
+	 *            {@link ExecutorService}
+	 * @param cache
+	 *            {@link SentenceCache}, or null to decode every sentence
+	 */
+	public BatchTagger(HMMModel model, ExecutorService executor,
+	        SentenceCache cache)
+	{
+		this(new ModelHolder(model), executor, cache);
+	}
+	
+	/**
+	 * Initialize a batch tagger running on the given executor over the
+	 * current model of the holder.
+	 * 
+	 * @param models
+	 *            {@link ModelHolder}
+	 * @param executor
+	 *            {@link ExecutorService}
+	 * @param cache
+	 *            {@link SentenceCache}, or null to decode every sentence
+	 */
+	public BatchTagger(ModelHolder models, ExecutorService executor,
+	        SentenceCache cache)
+	{
+		this.models = models;
+		this.executor = executor;
+		this.cache = cache;
+		this.parallelism = (executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor)
+		        .getParallelism() : Runtime.getRuntime().availableProcessors();
+		this.decoders = new ThreadLocal<SentenceDecoder>();
+		this.batchDecoders = new ThreadLocal<BatchDecoder>();
+		this.metrics = TaggerMetrics.getDefault();
+	}
+	
+	/**
+	 * @param metrics
+	 *            the {@link TaggerMetrics} recording the tagged sentences,
+	 *            the default metrics unless set
+	 */
+	public void setMetrics(TaggerMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return the current {@link HMMModel}
+	 */
+	public HMMModel getModel()
+	{
+		return models.get();
+	}
+	
+	/**
+	 * @return the {@link ModelHolder}
+	 */
+	public ModelHolder getModelHolder()
+	{
+		return models;
+	}
+	
+	/**
+	 * Tags a single sentence on the calling thread, through the cache if
+	 * any.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence
+	 * @return the most probable tag for each word
+	 */
+	public String[] tag(String[] tokens)
+	{
+		TaggerMetrics metrics = this.metrics;
+		if (metrics.isEnabled())
+			return tag(tokens, metrics);
+		HMMModel model = models.get();
+		if (cache == null)
+			return decoder(model).tag(tokens);
+		String[] tags = cache.get(model, tokens);
+		if (tags == null)
+		{
+			tags = decoder(model).tag(tokens);
+			cache.put(model, tokens, tags);
+		}
+		return tags;
+	}
+	
+	/**
+	 * Tags a single sentence as {@link #tag(String[])} does and records it
+	 * in the metrics.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence, without boundary markers
+	 * @param metrics
+	 *            {@link TaggerMetrics}
+	 * @return the most probable tag for each token
+	 */
+	private String[] tag(String[] tokens, TaggerMetrics metrics)
+	{
+		long startNanos = System.nanoTime();
+		long startBytes = TaggerMetrics.allocatedBytes();
+		HMMModel model = models.get();
+		String[] tags = (cache == null) ? null : cache.get(model, tokens);
+		if (tags != null)
+		{
+			metrics.recordCacheHit(tokens.length, startNanos, startBytes);
+			return tags;
+		}
+		SentenceDecoder decoder = decoder(model);
+		tags = decoder.tag(tokens);
+		if (cache != null)
+		{
+			cache.put(model, tokens, tags);
+			metrics.recordCacheMiss();
+		}
+		metrics.recordSentence(tokens.length, decoder.getUnknownCount(),
+		        startNanos, startBytes);
+		return tags;
+	}
+	
+	/**
+	 * @return the {@link SentenceCache}, or null
+	 */
+	public SentenceCache getCache()
+	{
+		return cache;
+	}
+	
+	/**
+	 * Tags the sentences in parallel on the executor and waits for the
+	 * result.
+	 * 
+	 * @param sentences
+	 *            {@link List} of sentences
+	 * @return the tags of each sentence, in the order of the sentences
+	 * @throws InterruptedException
+	 */
+	public List<String[]> tagAll(final List<String[]> sentences)
+	        throws InterruptedException
+	{
+		final String[][] tags = new String[sentences.size()][];
+		int chunkSize = Math.max(1, sentences.size()
+		        / (parallelism * CHUNKS_PER_THREAD));
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < sentences.size(); start += chunkSize)
+		{
+			final int from = start;
+			final int to = Math.min(sentences.size(), start + chunkSize);
+			tasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					HMMModel model = models.get();
+					if (cache == null && !metrics.isEnabled()
+					        && !model.hasTrigrams())
+					{
+						batchDecoder(model).tagAll(sentences, from, to, tags);
+						return null;
+					}
+					for (int i = from; i < to; i++)
+					{
+						tags[i] = tag(sentences.get(i));
+					}
+					return null;
+				}
+			});
+		}
+		
+		for (Future<Void> future : executor.invokeAll(tasks))
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException e)
+			{
+				throw new IllegalStateException("Tagging failed", e.getCause());
+			}
+		}
+		return Arrays.asList(tags);
+	}
+	
+	/**
+	 * Tags a stream of sentences. The stream is run in parallel on the
+	 * {@link ForkJoinPool} it is evaluated in, the common pool unless the
+	 * terminal operation is invoked from a task of another pool.
+	 * 
+	 * @param sentences
+	 *            {@link Stream} of sentences
+	 * @return {@link Stream} of the tags of each sentence
+	 */
+	public Stream<String[]> tagAll(Stream<String[]> sentences)
+	{
+		return sentences.parallel().map(tokens -> tag(tokens));
+	}
+	
+	/**
+	 * @param model
+	 *            {@link HMMModel}
+	 * @return the decoder of the calling thread for the model, replacing the
+	 *         decoder of a previous model
+	 */
+	private SentenceDecoder decoder(HMMModel model)
+	{
+		SentenceDecoder decoder = decoders.get();
+		if (decoder == null || decoder.getModel() != model)
+		{
+			decoder = SentenceDecoder.forModel(model);
+			decoders.set(decoder);
+		}
+		return decoder;
+	}
+	
+	/**
+	 * @param model
+	 *            {@link HMMModel} without trigram transitions
+	 * @return the batch decoder of the calling thread for the model,
+	 *         replacing the decoder of a previous model
+	 */
+	private BatchDecoder batchDecoder(HMMModel model)
+	{
+		BatchDecoder decoder = batchDecoders.get();
+		if (decoder == null || decoder.getModel() != model)
+		{
+			decoder = new BatchDecoder(model);
+			batchDecoders.set(decoder);
+		}
+		return decoder;
+	}
+}
@@ -0,0 +1,947 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.gerard.hmm.exception.HMMParserException;
+
+/**
+ * @author Gerard
+ *         Re-estimates the transitions and emissions of a supervised
+ *         {@link HMMModel} from untagged text with the Baum-Welch (EM)
+ *         algorithm. The text is read once, in shards split at the ###/###
+ *         sentence boundaries as {@link HMMParser} splits a training set,
+ *         and each shard is kept as an int array of word ids, negative ids
+ *         pointing to the emission row of an unknown word signature, so
+ *         the iterations never touch a {@link String}. Each iteration runs
+ *         the scaled forward-backward passes of the shards in parallel,
+ *         every shard adding its expected counts into its own accumulators,
+ *         which are merged in shard order so the result does not depend on
+ *         the number of threads. The expected counts are added to the counts
+ *         of the hand tagged training set read back from the seed model,
+ *         scaled by the supervised weight, so the tags keep the meaning they
+ *         were trained with. Emissions are only re-estimated for the
+ *         word/tag pairs of the lexicon, unknown words keep the
+ *         {@link UnknownWordModel} of the seed, so the emissions of a tag
+ *         are normalized over the lexicon words alone, and the new model is
+ *         a bigram model. Each iteration raises the objective of EM with
+ *         the hand tagged counts as a prior, the log likelihood of the text
+ *         plus the weighted log probability of the hand tagged counts, and
+ *         the iterations stop when it improves by less than the relative
+ *         tolerance.
+ */
+public class BaumWelchTrainer
+{
+	/** Default relative objective improvement to stop at */
+	public static final double    DEFAULT_TOLERANCE = 1e-4;
+	
+	/** Relative objective decrease put down to rounding */
+	private static final double   ROUNDING          = 1e-9;
+	
+	/** Number of shards of the text per training thread */
+	private static final int      SHARDS_PER_THREAD = 4;
+	
+	/** Smallest number of bytes of a text shard */
+	private static final long     MIN_SHARD_BYTES   = 1 << 14;
+	
+	/**
+	 * Receives the progress of the training, on the calling thread.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param iteration
+		 *            number of the iteration, from 1
+		 * @param logLikelihood
+		 *            log likelihood of the text under the model the
+		 *            iteration started from
+		 * @param sentences
+		 *            number of sentences the model can generate
+		 * @param tokens
+		 *            number of tokens of these sentences
+		 * @param nanos
+		 *            duration of the iteration
+		 */
+		void iterationCompleted(int iteration, double logLikelihood,
+		        long sentences, long tokens, long nanos);
+	}
+	
+	/** The supervised {@link HMMModel} training starts from */
+	private final HMMModel        seed;
+	
+	/** Number of tags in the model */
+	private final int             tagSize;
+	
+	/** Tag id of the sentence boundary */
+	private final int             boundaryTag;
+	
+	/** Runs the shards of an iteration */
+	private final ExecutorService executor;
+	
+	/** Number of threads of the executor */
+	private final int             parallelism;
+	
+	/** Start of the emission entries of each word, and the entry count */
+	private final int[]           wordOffsets;
+	
+	/** Tag id of each emission entry */
+	private final int[]           emissionTags;
+	
+	/** Hand tagged count of each transition, at [prevTag * tagSize + tag] */
+	private final double[]        labeledTransitions;
+	
+	/** Hand tagged count of each emission entry */
+	private final double[]        labeledEmissions;
+	
+	/** Hand tagged count of each tag */
+	private final double[]        labeledTags;
+	
+	/**
+	 * Transition of the seed from the boundary to itself, which no sentence
+	 * of the text takes, kept out of the boundary row re-estimated
+	 */
+	private final double          boundaryLoop;
+	
+	/** Weight of the hand tagged counts against the expected counts */
+	private double                supervisedWeight  = 1.0;
+	
+	/** Receives the progress of the training, or null */
+	private Listener              listener;
+	
+	/** Number of iterations of the last training */
+	private int                   iterations;
+	
+	/** Log likelihood of the text at the last iteration */
+	private double                logLikelihood;
+	
+	/** Number of sentences the model could not generate at the last iteration */
+	private long                  skippedSentences;
+	
+	/**
+	 * Initialize a trainer running on the common {@link ForkJoinPool}.
+	 * 
+	 * @param seed
+	 *            the supervised {@link HMMModel}
+	 */
+	public BaumWelchTrainer(HMMModel seed)
+	{
+		this(seed, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Initialize a trainer running on the given executor. The hand tagged
+	 * counts are read back from the emission counts of the lexicon of the
+	 * seed, the transition counts being the transitions times the tag
+	 * counts. A seed compiled after new training data is compacted first.
+	 * 
+	 * @param seed
+	 *            the supervised {@link HMMModel}
+	 * @param executor
+	 *            {@link ExecutorService} running the shards of an iteration
+	 * @throws IllegalArgumentException
+	 *             when the seed is quantized, having no counts
+	 */
+	public BaumWelchTrainer(HMMModel seed, ExecutorService executor)
+	{
+		if (seed.getCodeBits() != 0)
+			throw new IllegalArgumentException("Quantized seed model");
+		seed = seed.compact();
+		this.seed = seed;
+		this.tagSize = seed.getTagSize();
+		this.boundaryTag = seed.getTagId(ViterbiDecoder.BOUNDARY_TAG);
+		if (boundaryTag < 0)
+			throw new IllegalArgumentException("Model has no "
+			        + ViterbiDecoder.BOUNDARY_TAG + " boundary tag");
+		this.executor = executor;
+		this.parallelism = (executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor)
+		        .getParallelism() : Runtime.getRuntime().availableProcessors();
+		
+		int vocabularySize = seed.getVocabularySize();
+		this.wordOffsets = new int[vocabularySize + 1];
+		for (int word = 0; word < vocabularySize; word++)
+		{
+			wordOffsets[word] = seed.getEmissionStart(word);
+		}
+		wordOffsets[vocabularySize] = (vocabularySize == 0) ? 0 : seed
+		        .getEmissionEnd(vocabularySize - 1);
+		int entries = wordOffsets[vocabularySize];
+		this.emissionTags = new int[entries];
+		this.labeledEmissions = new double[entries];
+		this.labeledTags = new double[tagSize];
+		for (int entry = 0; entry < entries; entry++)
+		{
+			emissionTags[entry] = seed.getEmissionTag(entry);
+			labeledEmissions[entry] = seed.getEmissionCountAt(entry);
+			labeledTags[emissionTags[entry]] += labeledEmissions[entry];
+		}
+		double[] transitions = seed.getTransitionMatrix();
+		if (labeledTags[boundaryTag] == 0.0)
+		{
+			// The boundaries are not words of the lexicon, count them as
+			// the sentence ends.
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				labeledTags[boundaryTag] += labeledTags[tag]
+				        * transitions[tag * tagSize + boundaryTag];
+			}
+		}
+		this.labeledTransitions = new double[tagSize * tagSize];
+		for (int i = 0; i < labeledTransitions.length; i++)
+		{
+			labeledTransitions[i] = transitions[i] * labeledTags[i / tagSize];
+		}
+		// The boundary row of the seed also counts the boundary following
+		// itself, so only its start transitions sum to 1
+		int loop = boundaryTag * tagSize + boundaryTag;
+		this.boundaryLoop = transitions[loop];
+		labeledTransitions[loop] = 0.0;
+	}
+	
+	/**
+	 * @param supervisedWeight
+	 *            weight of the hand tagged counts against the expected counts
+	 *            of the text, 1 unless set
+	 */
+	public void setSupervisedWeight(double supervisedWeight)
+	{
+		if (!(supervisedWeight > 0.0))
+			throw new IllegalArgumentException("supervisedWeight <= 0");
+		this.supervisedWeight = supervisedWeight;
+	}
+	
+	/**
+	 * @param listener
+	 *            {@link Listener} receiving the progress of the training, or
+	 *            null
+	 */
+	public void setListener(Listener listener)
+	{
+		this.listener = listener;
+	}
+	
+	/**
+	 * @return the number of iterations of the last training
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+	
+	/**
+	 * @return the log likelihood of the text at the last iteration
+	 */
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+	
+	/**
+	 * @return the number of sentences of the text the model could not
+	 *         generate at the last iteration, left out of the counts
+	 */
+	public long getSkippedSentenceCount()
+	{
+		return skippedSentences;
+	}
+	
+	/**
+	 * Trains with the default tolerance.
+	 * 
+	 * @param textFile
+	 *            untagged text, one word per line, the sentences separated by
+	 *            ###/### lines; the tags of word/tag lines are ignored
+	 * @param maxIterations
+	 *            largest number of iterations
+	 * @return the re-estimated {@link HMMModel}
+	 * @throws HMMParserException
+	 * @throws IOException
+	 */
+	public HMMModel train(String textFile, int maxIterations)
+	        throws HMMParserException, IOException
+	{
+		return train(textFile, maxIterations, DEFAULT_TOLERANCE);
+	}
+	
+	/**
+	 * Runs Baum-Welch iterations over the text, starting from the seed.
+	 * The iterations stop once the objective per token improves by less
+	 * than the tolerance, the log likelihood being compared over the
+	 * sentences generated at both of the last two iterations. The model is
+	 * re-estimated as a bigram model: the trigram transitions of a seed are
+	 * not carried over.
+	 * 
+	 * @param textFile
+	 *            untagged text, one word per line, the sentences separated by
+	 *            ###/### lines; the tags of word/tag lines are ignored
+	 * @param maxIterations
+	 *            largest number of iterations
+	 * @param tolerance
+	 *            relative improvement of the objective per token below which
+	 *            the iterations stop
+	 * @return the re-estimated bigram {@link HMMModel}
+	 * @throws HMMParserException
+	 * @throws IOException
+	 * @throws IllegalStateException
+	 *             when the objective decreases, which EM never does beyond
+	 *             rounding
+	 */
+	public HMMModel train(String textFile, int maxIterations, double tolerance)
+	        throws HMMParserException, IOException
+	{
+		List<Shard> shards = read(textFile);
+		
+		double[] transitions = seed.getTransitionMatrix();
+		double[] emissions = new double[emissionTags.length];
+		for (int entry = 0; entry < emissions.length; entry++)
+		{
+			emissions[entry] = Math.exp(seed.getLogEmissionAt(entry));
+		}
+		double[] emissionCounts = labeledEmissions;
+		
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		double previousLogPrior = 0.0;
+		iterations = 0;
+		while (iterations < maxIterations)
+		{
+			long startNanos = System.nanoTime();
+			long startBytes = metrics.isEnabled() ? TaggerMetrics
+			        .allocatedBytes() : 0;
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (Shard shard : shards)
+			{
+				final Shard expected = shard;
+				final double[] currentTransitions = transitions;
+				final double[] currentEmissions = emissions;
+				tasks.add(() -> {
+					expected.expect(currentTransitions, currentEmissions);
+					return null;
+				});
+			}
+			run(tasks);
+			
+			double[] transitionCounts = new double[tagSize * tagSize];
+			emissionCounts = new double[emissionTags.length];
+			double likelihood = 0.0;
+			long sentences = 0;
+			long tokens = 0;
+			double common = 0.0;
+			double commonPrevious = 0.0;
+			long commonTokens = 0;
+			skippedSentences = 0;
+			for (Shard shard : shards)
+			{
+				add(transitionCounts, shard.transitionCounts);
+				add(emissionCounts, shard.emissionCounts);
+				likelihood += shard.logLikelihood;
+				sentences += shard.sentences;
+				tokens += shard.tokens;
+				skippedSentences += shard.skipped;
+				common += shard.commonLogLikelihood;
+				commonPrevious += shard.commonPreviousLogLikelihood;
+				commonTokens += shard.commonTokens;
+			}
+			
+			// The prior of the tables the expected counts were taken under
+			double logPrior = logPrior(transitions, emissions);
+			
+			// Maximization: the relative frequencies of the hand tagged
+			// counts added to the expected counts
+			transitions = new double[tagSize * tagSize];
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				int row = prevTag * tagSize;
+				double total = 0.0;
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					transitions[row + tag] = supervisedWeight
+					        * labeledTransitions[row + tag]
+					        + transitionCounts[row + tag];
+					total += transitions[row + tag];
+				}
+				for (int tag = 0; tag < tagSize && total > 0.0; tag++)
+				{
+					transitions[row + tag] /= total;
+				}
+			}
+			transitions[boundaryTag * tagSize + boundaryTag] = boundaryLoop;
+			// The emissions of a tag sum to 1 over the lexicon words, the
+			// unknown words keeping their own scores
+			emissions = new double[emissionTags.length];
+			double[] emissionTotals = new double[tagSize];
+			for (int entry = 0; entry < emissions.length; entry++)
+			{
+				emissionCounts[entry] += supervisedWeight
+				        * labeledEmissions[entry];
+				emissionTotals[emissionTags[entry]] += emissionCounts[entry];
+			}
+			for (int entry = 0; entry < emissions.length; entry++)
+			{
+				emissions[entry] = emissionCounts[entry]
+				        / emissionTotals[emissionTags[entry]];
+			}
+			
+			iterations++;
+			long nanos = System.nanoTime() - startNanos;
+			if (metrics.isEnabled())
+				metrics.record(TaggerMetrics.Stage.TRAIN,
+				        (int) Math.min(Integer.MAX_VALUE, sentences),
+				        (int) Math.min(Integer.MAX_VALUE, tokens), startNanos,
+				        startBytes);
+			if (listener != null)
+				listener.iterationCompleted(iterations, likelihood, sentences,
+				        tokens, nanos);
+			// The sentences skipped vary between the iterations: compare the
+			// sentences generated at both
+			boolean converged = iterations > 1 && commonTokens == 0;
+			if (iterations > 1 && commonTokens > 0)
+			{
+				double objective = (common + logPrior) / commonTokens;
+				double previousObjective = (commonPrevious + previousLogPrior)
+				        / commonTokens;
+				double bound = Math.abs(previousObjective);
+				if (objective - previousObjective < -ROUNDING * bound)
+					throw new IllegalStateException("Objective decreased at "
+					        + "iteration " + iterations + ": "
+					        + previousObjective + " to " + objective);
+				converged = objective - previousObjective <= tolerance * bound;
+			}
+			logLikelihood = likelihood;
+			previousLogPrior = logPrior;
+			if (converged)
+				break;
+		}
+		return model(transitions, emissions, emissionCounts);
+	}
+	
+	/**
+	 * Reads the shards of the text in parallel.
+	 * 
+	 * @param textFile
+	 *            {@link String}
+	 * @return the shards, in file order
+	 * @throws HMMParserException
+	 * @throws IOException
+	 */
+	private List<Shard> read(String textFile) throws HMMParserException,
+	        IOException
+	{
+		List<Shard> shards = new ArrayList<Shard>();
+		final CorpusReader corpus = new CorpusReader(textFile, false);
+		try
+		{
+			long shardCount = Math.min(parallelism * SHARDS_PER_THREAD,
+			        corpus.size() / MIN_SHARD_BYTES);
+			long[] bounds = corpus.split((int) Math.max(1, shardCount));
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i + 1 < bounds.length; i++)
+			{
+				final Shard shard = new Shard();
+				final long start = bounds[i];
+				final long end = bounds[i + 1];
+				shards.add(shard);
+				tasks.add(() -> {
+					corpus.read(start, end, shard);
+					shard.boundary();
+					shard.unknownEmissions = null;
+					return null;
+				});
+			}
+			run(tasks);
+		}
+		finally
+		{
+			corpus.close();
+		}
+		return shards;
+	}
+	
+	/**
+	 * Runs the tasks on the executor and waits for all of them.
+	 * 
+	 * @param tasks
+	 * @throws HMMParserException
+	 *             wrapping the failure of a task
+	 */
+	private void run(List<Callable<Void>> tasks) throws HMMParserException
+	{
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try
+		{
+			futures = executor.invokeAll(tasks);
+			for (Future<Void> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch (Exception e)
+		{
+			for (Future<Void> future : futures)
+			{
+				future.cancel(true);
+			}
+			throw new HMMParserException(e);
+		}
+	}
+	
+	/**
+	 * @param transitions
+	 *            tag x tag transition matrix
+	 * @param emissions
+	 *            P(word | tag) of each emission entry
+	 * @return the log probability of the hand tagged counts under the
+	 *         tables, times the supervised weight
+	 */
+	private double logPrior(double[] transitions, double[] emissions)
+	{
+		double logPrior = 0.0;
+		for (int i = 0; i < transitions.length; i++)
+		{
+			if (labeledTransitions[i] > 0.0)
+				logPrior += labeledTransitions[i] * Math.log(transitions[i]);
+		}
+		for (int entry = 0; entry < emissions.length; entry++)
+		{
+			if (labeledEmissions[entry] > 0.0)
+				logPrior += labeledEmissions[entry] * Math.log(emissions[entry]);
+		}
+		return supervisedWeight * logPrior;
+	}
+	
+	/**
+	 * Compiles the re-estimated tables into a model over the tags, the
+	 * lexicon words and the unknown word model of the seed.
+	 * 
+	 * @param transitions
+	 *            tag x tag transition matrix
+	 * @param emissions
+	 *            P(word | tag) of each emission entry
+	 * @param emissionCounts
+	 *            the hand tagged and expected count of each emission entry
+	 * @return {@link HMMModel}
+	 */
+	private HMMModel model(double[] transitions, double[] emissions,
+	        double[] emissionCounts)
+	{
+		String[] tags = new String[tagSize];
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			tags[tag] = seed.getTag(tag);
+		}
+		String[] words = new String[wordOffsets.length - 1];
+		for (int word = 0; word < words.length; word++)
+		{
+			words[word] = seed.getWord(word);
+		}
+		int[] counts = new int[emissionCounts.length];
+		for (int entry = 0; entry < counts.length; entry++)
+		{
+			counts[entry] = (int) Math.round(emissionCounts[entry]);
+		}
+		return new HMMModel(tags, transitions, Lexicon.build(words,
+		        wordOffsets, emissionTags, counts, emissions),
+		        seed.getUnknownWordModel());
+	}
+	
+	/**
+	 * y[i] += x[i] for every i.
+	 * 
+	 * @param y
+	 * @param x
+	 */
+	private static void add(double[] y, double[] x)
+	{
+		for (int i = 0; i < y.length; i++)
+		{
+			y[i] += x[i];
+		}
+	}
+	
+	/**
+	 * The words of a shard of the text, read once, with the expected counts
+	 * of the shard at the last iteration.
+	 */
+	private class Shard implements CorpusReader.TokenHandler
+	{
+		/**
+		 * Word id of each token, or -1 - index of the emission row of an
+		 * unknown word
+		 */
+		private int[]                          words        = new int[1024];
+		
+		/** Number of tokens of the shard */
+		private int                            length;
+		
+		/** Index after the last token of each sentence */
+		private int[]                          sentenceEnds = new int[64];
+		
+		/** Number of sentences of the shard */
+		private int                            sentenceCount;
+		
+		/** Index of the emission row of each unknown word signature */
+		private final HashMap<String, Integer> signatures;
+		
+		/** P(word | tag) of each unknown word signature, tagSize per row */
+		private double[]                       unknownRows  = new double[0];
+		
+		/** Log emissions of the unknown words, only while reading */
+		private UnknownWordCache               unknownEmissions;
+		
+		/** Expected count of each transition */
+		private final double[]                 transitionCounts;
+		
+		/** Expected count of each emission entry */
+		private final double[]                 emissionCounts;
+		
+		/** Log likelihood of the sentences counted */
+		private double                         logLikelihood;
+		
+		/** Number of sentences counted */
+		private long                           sentences;
+		
+		/** Number of tokens of the sentences counted */
+		private long                           tokens;
+		
+		/** Number of sentences the model cannot generate */
+		private long                           skipped;
+		
+		/**
+		 * Log likelihood of each sentence at the last iteration, NaN when
+		 * skipped
+		 */
+		private double[]                       logProbs     = new double[0];
+		
+		/**
+		 * Log likelihood of the sentences generated at both of the last two
+		 * iterations
+		 */
+		private double                         commonLogLikelihood;
+		
+		/** Log likelihood of the same sentences at the iteration before */
+		private double                         commonPreviousLogLikelihood;
+		
+		/** Number of tokens of the same sentences */
+		private long                           commonTokens;
+		
+		/** Emission row of each position of the sentence */
+		private double[]                       emissions    = new double[0];
+		
+		/** Scaled forward probabilities, laid out as emissions */
+		private double[]                       forward      = new double[0];
+		
+		/** Scaled backward probabilities, laid out as emissions */
+		private double[]                       backward     = new double[0];
+		
+		/** Sum of the forward probabilities of each position before scaling */
+		private double[]                       scales       = new double[0];
+		
+		/** Emission times backward probability of the next position */
+		private final double[]                 weighted;
+		
+		/**
+		 * Initialize an empty shard.
+		 */
+		Shard()
+		{
+			this.signatures = new HashMap<String, Integer>();
+			this.unknownEmissions = new UnknownWordCache(seed);
+			this.transitionCounts = new double[tagSize * tagSize];
+			this.emissionCounts = new double[emissionTags.length];
+			this.weighted = new double[tagSize];
+		}
+		
+		/**
+		 * Adds a word of the text.
+		 */
+		@Override
+		public void token(ByteBuffer buffer, int wordStart, int wordEnd,
+		        int tagStart, int tagEnd)
+		{
+			if (length == words.length)
+				words = Arrays.copyOf(words, length * 2);
+			int word = seed.getWordId(buffer, wordStart, wordEnd);
+			if (word < 0)
+				word = -1 - unknownRow(WordTable.decode(buffer, wordStart,
+				        wordEnd));
+			words[length++] = word;
+		}
+		
+		/**
+		 * Ends the sentence.
+		 */
+		@Override
+		public void boundary()
+		{
+			int start = (sentenceCount == 0) ? 0
+			        : sentenceEnds[sentenceCount - 1];
+			if (length == start)
+				return;
+			if (sentenceCount == sentenceEnds.length)
+				sentenceEnds = Arrays.copyOf(sentenceEnds, sentenceCount * 2);
+			sentenceEnds[sentenceCount++] = length;
+		}
+		
+		/**
+		 * @param token
+		 *            an unknown word
+		 * @return the index of the emission row of its signature, added with
+		 *         the {@link UnknownWordModel} probabilities, or 1 for every
+		 *         tag but the boundary without a shape or suffix match
+		 */
+		private int unknownRow(String token)
+		{
+			String signature = UnknownWordModel.signature(token);
+			Integer row = signatures.get(signature);
+			if (row != null)
+				return row;
+			int index = signatures.size();
+			signatures.put(signature, index);
+			if (unknownRows.length < (index + 1) * tagSize)
+				unknownRows = Arrays.copyOf(unknownRows, Math.max(
+				        unknownRows.length * 2, (index + 1) * tagSize));
+			double[] logEmissions = unknownEmissions.logEmissions(token);
+			boolean found = false;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				if (tag != boundaryTag
+				        && logEmissions[tag] != Double.NEGATIVE_INFINITY)
+				{
+					unknownRows[index * tagSize + tag] = Math
+					        .exp(logEmissions[tag]);
+					found = true;
+				}
+			}
+			for (int tag = 0; tag < tagSize && !found; tag++)
+			{
+				if (tag != boundaryTag)
+					unknownRows[index * tagSize + tag] = 1.0;
+			}
+			return index;
+		}
+		
+		/**
+		 * Replaces the expected counts with those of every sentence of the
+		 * shard under the given model.
+		 * 
+		 * @param transitions
+		 *            tag x tag transition matrix
+		 * @param emissionProbabilities
+		 *            P(word | tag) of each emission entry
+		 */
+		void expect(double[] transitions, double[] emissionProbabilities)
+		{
+			Arrays.fill(transitionCounts, 0.0);
+			Arrays.fill(emissionCounts, 0.0);
+			logLikelihood = 0.0;
+			sentences = 0;
+			tokens = 0;
+			skipped = 0;
+			commonLogLikelihood = 0.0;
+			commonPreviousLogLikelihood = 0.0;
+			commonTokens = 0;
+			if (logProbs.length != sentenceCount)
+			{
+				logProbs = new double[sentenceCount];
+				Arrays.fill(logProbs, Double.NaN);
+			}
+			int start = 0;
+			for (int sentence = 0; sentence < sentenceCount; sentence++)
+			{
+				double previous = logProbs[sentence];
+				double logProb = expect(transitions, emissionProbabilities,
+				        start, sentenceEnds[sentence]);
+				if (!Double.isNaN(previous) && !Double.isNaN(logProb))
+				{
+					commonLogLikelihood += logProb;
+					commonPreviousLogLikelihood += previous;
+					commonTokens += sentenceEnds[sentence] - start;
+				}
+				logProbs[sentence] = logProb;
+				start = sentenceEnds[sentence];
+			}
+		}
+		
+		/**
+		 * Runs the scaled forward and backward passes over a sentence and
+		 * adds its expected transition, emission and tag counts.
+		 * 
+		 * @param transitions
+		 *            tag x tag transition matrix
+		 * @param emissionProbabilities
+		 *            P(word | tag) of each emission entry
+		 * @param from
+		 *            index of the first token of the sentence
+		 * @param to
+		 *            index after the last token of the sentence
+		 * @return the log likelihood of the sentence, or NaN when the model
+		 *         cannot generate it
+		 */
+		private double expect(double[] transitions,
+		        double[] emissionProbabilities, int from, int to)
+		{
+			int length = to - from;
+			ensureCapacity(length);
+			for (int position = 0; position < length; position++)
+			{
+				int row = position * tagSize;
+				int word = words[from + position];
+				if (word < 0)
+				{
+					System.arraycopy(unknownRows, (-1 - word) * tagSize,
+					        emissions, row, tagSize);
+					continue;
+				}
+				Arrays.fill(emissions, row, row + tagSize, 0.0);
+				for (int entry = wordOffsets[word]; entry < wordOffsets[word + 1]; entry++)
+				{
+					emissions[row + emissionTags[entry]] = emissionProbabilities[entry];
+				}
+			}
+			
+			double logProb = 0.0;
+			for (int position = 0; position < length; position++)
+			{
+				int row = position * tagSize;
+				if (position == 0)
+				{
+					System.arraycopy(transitions, boundaryTag * tagSize,
+					        forward, 0, tagSize);
+				}
+				else
+				{
+					int prevRow = row - tagSize;
+					Arrays.fill(forward, row, row + tagSize, 0.0);
+					for (int prevTag = 0; prevTag < tagSize; prevTag++)
+					{
+						double score = forward[prevRow + prevTag];
+						if (score == 0.0)
+							continue;
+						int transitionRow = prevTag * tagSize;
+						for (int tag = 0; tag < tagSize; tag++)
+						{
+							forward[row + tag] += score
+							        * transitions[transitionRow + tag];
+						}
+					}
+				}
+				double scale = 0.0;
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					forward[row + tag] *= emissions[row + tag];
+					scale += forward[row + tag];
+				}
+				if (scale == 0.0)
+				{
+					skipped++;
+					return Double.NaN;
+				}
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					forward[row + tag] /= scale;
+				}
+				scales[position] = scale;
+				logProb += Math.log(scale);
+			}
+			
+			int lastRow = (length - 1) * tagSize;
+			double end = 0.0;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				end += forward[lastRow + tag]
+				        * transitions[tag * tagSize + boundaryTag];
+			}
+			if (end == 0.0)
+			{
+				skipped++;
+				return Double.NaN;
+			}
+			logProb += Math.log(end);
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				backward[lastRow + tag] = transitions[tag * tagSize
+				        + boundaryTag]
+				        / end;
+			}
+			for (int position = length - 2; position >= 0; position--)
+			{
+				int row = position * tagSize;
+				int nextRow = row + tagSize;
+				double nextScale = scales[position + 1];
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					weighted[tag] = emissions[nextRow + tag]
+					        * backward[nextRow + tag] / nextScale;
+				}
+				for (int prevTag = 0; prevTag < tagSize; prevTag++)
+				{
+					int transitionRow = prevTag * tagSize;
+					double score = forward[row + prevTag];
+					double sum = 0.0;
+					for (int tag = 0; tag < tagSize; tag++)
+					{
+						double path = transitions[transitionRow + tag]
+						        * weighted[tag];
+						sum += path;
+						transitionCounts[transitionRow + tag] += score * path;
+					}
+					backward[row + prevTag] = sum;
+				}
+			}
+			
+			// The posterior of each tag of each position, forward times
+			// backward, sums to 1 at each position with this scaling.
+			for (int position = 0; position < length; position++)
+			{
+				int row = position * tagSize;
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					double posterior = forward[row + tag] * backward[row + tag];
+					if (position == 0)
+						transitionCounts[boundaryTag * tagSize + tag] += posterior;
+					if (position == length - 1)
+						transitionCounts[tag * tagSize + boundaryTag] += posterior;
+				}
+				int word = words[from + position];
+				if (word < 0)
+					continue;
+				for (int entry = wordOffsets[word]; entry < wordOffsets[word + 1]; entry++)
+				{
+					int tag = emissionTags[entry];
+					emissionCounts[entry] += forward[row + tag]
+					        * backward[row + tag];
+				}
+			}
+			logLikelihood += logProb;
+			sentences++;
+			tokens += length;
+			return logProb;
+		}
+		
+		/**
+		 * Grows the scratch rows to hold a sentence of the given length.
+		 * 
+		 * @param length
+		 */
+		private void ensureCapacity(int length)
+		{
+			if (scales.length < length)
+			{
+				int capacity = Math.max(length, scales.length * 2);
+				emissions = new double[capacity * tagSize];
+				forward = new double[capacity * tagSize];
+				backward = new double[capacity * tagSize];
+				scales = new double[capacity];
+			}
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Gerard
+ *         Reads a word/tag corpus from a memory-mapped file. Each line is
+ *         scanned in place and handed to a {@link TokenHandler} as the byte
+ *         ranges of its word and tag, so no {@link String} is created per
+ *         token. Lines are trimmed of surrounding white space, empty lines
+ *         are skipped and the ###/### lines are reported as sentence
+ *         boundaries. A reader of untagged text also takes the lines without
+ *         a word/tag separator, as a word with an empty tag.
+ */
+public class CorpusReader implements Closeable
+{
+	/** Largest number of bytes mapped by one segment */
+	private static final int             MAX_SEGMENT = 1 << 30;
+	
+	/** The sentence boundary line */
+	private static final byte[]          BOUNDARY    = "###/###".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Receives the lines of the corpus.
+	 */
+	public interface TokenHandler
+	{
+		/**
+		 * Called for a word/tag line.
+		 * 
+		 * @param buffer
+		 *            {@link ByteBuffer} holding the line
+		 * @param wordStart
+		 *            index of the first byte of the word
+		 * @param wordEnd
+		 *            index after the last byte of the word
+		 * @param tagStart
+		 *            index of the first byte of the tag
+		 * @param tagEnd
+		 *            index after the last byte of the tag
+		 */
+		void token(ByteBuffer buffer, int wordStart, int wordEnd,
+		        int tagStart, int tagEnd);
+		
+		/**
+		 * Called for a ###/### line.
+		 */
+		void boundary();
+	}
+	
+	/** The mapped file */
+	private final RandomAccessFile       file;
+	
+	/**
+	 * The file mapped in segments that end at a line end, so a line never
+	 * spans two segments.
+	 */
+	private final List<MappedByteBuffer> segments;
+	
+	/** File offset of each segment */
+	private final List<Long>             segmentOffsets;
+	
+	/** Size of the file in bytes */
+	private final long                   size;
+	
+	/** Whether every line other than a boundary must have a tag */
+	private final boolean                tagged;
+	
+	/**
+	 * Maps the corpus file.
+	 * 
+	 * @param corpusFile
+	 *            {@link String}
+	 * @throws IOException
+	 */
+	public CorpusReader(String corpusFile) throws IOException
+	{
+		this(corpusFile, true);
+	}
+	
+	/**
+	 * Maps a tagged or an untagged corpus file.
+	 * 
+	 * @param corpusFile
+	 *            {@link String}
+	 * @param tagged
+	 *            whether every line must be a word/tag pair, or may hold a
+	 *            word alone
+	 * @throws IOException
+	 */
+	public CorpusReader(String corpusFile, boolean tagged) throws IOException
+	{
+		this.tagged = tagged;
+		this.file = new RandomAccessFile(corpusFile, "r");
+		this.segments = new ArrayList<MappedByteBuffer>();
+		this.segmentOffsets = new ArrayList<Long>();
+		try
+		{
+			FileChannel channel = file.getChannel();
+			this.size = channel.size();
+			long offset = 0;
+			while (offset < size)
+			{
+				int length = (int) Math.min(MAX_SEGMENT, size - offset);
+				MappedByteBuffer segment = channel.map(
+				        FileChannel.MapMode.READ_ONLY, offset, length);
+				if (offset + length < size)
+				{
+					int lineEnd = length;
+					while (lineEnd > 0 && segment.get(lineEnd - 1) != '\n')
+					{
+						lineEnd--;
+					}
+					if (lineEnd == 0)
+						throw new IOException("Line longer than "
+						        + MAX_SEGMENT + " bytes at " + offset);
+					length = lineEnd;
+					segment.limit(length);
+				}
+				segments.add(segment);
+				segmentOffsets.add(offset);
+				offset += length;
+			}
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the size of the corpus in bytes
+	 */
+	public long size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Splits the corpus into about the given number of ranges. Every range
+	 * but the last ends right after a ###/### line, so every range but the
+	 * first starts at the beginning of a sentence.
+	 * 
+	 * @param parts
+	 *            the number of ranges wanted
+	 * @return the range offsets, range i being [offsets[i], offsets[i + 1])
+	 */
+	public long[] split(int parts)
+	{
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		for (int part = 1; part < parts; part++)
+		{
+			long target = Math.max(size / parts * part,
+			        bounds.get(bounds.size() - 1));
+			long bound = boundaryAfter(target);
+			if (bound >= size)
+				break;
+			if (bound > bounds.get(bounds.size() - 1))
+				bounds.add(bound);
+		}
+		bounds.add(size);
+		
+		long[] offsets = new long[bounds.size()];
+		for (int i = 0; i < offsets.length; i++)
+		{
+			offsets[i] = bounds.get(i);
+		}
+		return offsets;
+	}
+	
+	/**
+	 * Reads the whole corpus.
+	 * 
+	 * @param handler
+	 *            {@link TokenHandler}
+	 * @throws IOException
+	 *             for a line without a word/tag separator in a
+	 *             tagged corpus
+	 */
+	public void read(TokenHandler handler) throws IOException
+	{
+		read(0, size, handler);
+	}
+	
+	/**
+	 * Reads the lines that start in the range. The range must start at the
+	 * beginning of a line. Ranges may be read from several threads at once.
+	 * 
+	 * @param start
+	 *            file offset of the first line
+	 * @param end
+	 *            file offset after the last line
+	 * @param handler
+	 *            {@link TokenHandler}
+	 * @throws IOException
+	 *             for a line without a word/tag separator in a
+	 *             tagged corpus
+	 */
+	public void read(long start, long end, TokenHandler handler)
+	        throws IOException
+	{
+		for (int i = 0; i < segments.size(); i++)
+		{
+			long segmentOffset = segmentOffsets.get(i);
+			ByteBuffer segment = segments.get(i);
+			long segmentEnd = segmentOffset + segment.limit();
+			if (segmentEnd <= start || segmentOffset >= end)
+				continue;
+			
+			int position = (int) (Math.max(start, segmentOffset) - segmentOffset);
+			int limit = (int) (Math.min(end, segmentEnd) - segmentOffset);
+			while (position < limit)
+			{
+				int lineEnd = lineEnd(segment, position, segment.limit());
+				readLine(segment, position, lineEnd, segmentOffset, handler);
+				position = lineEnd + 1;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the mapped file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+	
+	/**
+	 * Splits a line into its word and tag byte ranges.
+	 * 
+	 * @param segment
+	 *            {@link ByteBuffer}
+	 * @param start
+	 *            index of the line
+	 * @param end
+	 *            index of the line end
+	 * @param segmentOffset
+	 *            file offset of the segment
+	 * @param handler
+	 *            {@link TokenHandler}
+	 * @throws IOException
+	 */
+	private void readLine(ByteBuffer segment, int start, int end,
+	        long segmentOffset, TokenHandler handler) throws IOException
+	{
+		while (start < end && isSpace(segment.get(start)))
+		{
+			start++;
+		}
+		while (end > start && isSpace(segment.get(end - 1)))
+		{
+			end--;
+		}
+		if (start == end)
+			return;
+		if (isBoundary(segment, start, end))
+		{
+			handler.boundary();
+			return;
+		}
+		
+		int separator = indexOf(segment, start, end, (byte) '/');
+		if (separator < 0 && !tagged)
+		{
+			handler.token(segment, start, end, end, end);
+			return;
+		}
+		if (separator < 0)
+			throw new IOException("No word/tag separator at offset "
+			        + (segmentOffset + start));
+		int tagEnd = indexOf(segment, separator + 1, end, (byte) '/');
+		handler.token(segment, start, separator, separator + 1,
+		        (tagEnd < 0) ? end : tagEnd);
+	}
+	
+	/**
+	 * @param target
+	 *            file offset
+	 * @return the file offset after the first ###/### line starting at or
+	 *         after the line holding the target offset
+	 */
+	private long boundaryAfter(long target)
+	{
+		for (int i = 0; i < segments.size(); i++)
+		{
+			long segmentOffset = segmentOffsets.get(i);
+			ByteBuffer segment = segments.get(i);
+			if (segmentOffset + segment.limit() <= target)
+				continue;
+			
+			int position = (int) Math.max(0, target - segmentOffset);
+			while (position > 0 && segment.get(position - 1) != '\n')
+			{
+				position--;
+			}
+			while (position < segment.limit())
+			{
+				int lineEnd = lineEnd(segment, position, segment.limit());
+				int start = position;
+				int end = lineEnd;
+				while (start < end && isSpace(segment.get(start)))
+				{
+					start++;
+				}
+				while (end > start && isSpace(segment.get(end - 1)))
+				{
+					end--;
+				}
+				position = lineEnd + 1;
+				if (isBoundary(segment, start, end))
+					return segmentOffset + Math.min(position, segment.limit());
+			}
+			target = segmentOffset + segment.limit();
+		}
+		return size;
+	}
+	
+	/**
+	 * @param buffer
+	 * @param start
+	 * @param limit
+	 * @return the index of the next line feed, or the limit
+	 */
+	private static int lineEnd(ByteBuffer buffer, int start, int limit)
+	{
+		int index = indexOf(buffer, start, limit, (byte) '\n');
+		return (index < 0) ? limit : index;
+	}
+	
+	/**
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @param b
+	 * @return the index of the first b in the range, -1 when there is none
+	 */
+	private static int indexOf(ByteBuffer buffer, int start, int end, byte b)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (buffer.get(i) == b)
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return whether the trimmed line is ###/###
+	 */
+	private static boolean isBoundary(ByteBuffer buffer, int start, int end)
+	{
+		if (end - start != BOUNDARY.length)
+			return false;
+		for (int i = 0; i < BOUNDARY.length; i++)
+		{
+			if (buffer.get(start + i) != BOUNDARY[i])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param b
+	 * @return whether the byte is white space as removed by
+	 *         {@link String#trim()}
+	 */
+	private static boolean isSpace(byte b)
+	{
+		return b >= 0 && b <= ' ';
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+/**
+ * @author Gerard
+ *         Accuracy of an {@link HMMModel} over a hand tagged test set: a
+ *         gold tag x predicted tag confusion matrix, from which the per-tag
+ *         precision and recall are read, and the accuracy of the words known
+ *         to the lexicon and of the unknown words. Hand tags missing from the
+ *         model are counted in an extra row of the matrix, so every token is
+ *         counted. The counts of several shards are added with
+ *         {@link #merge(Evaluation)}.
+ */
+public class Evaluation
+{
+	/** Tag names indexed by tag id */
+	private final String[] tags;
+	
+	/**
+	 * Count of each gold and predicted tag pair, stored at [goldTag *
+	 * tagSize + predictedTag], the gold tags missing from the model at row
+	 * tagSize
+	 */
+	private final long[]   confusion;
+	
+	private long           knownTokens;
+	
+	private long           knownErrors;
+	
+	private long           unknownTokens;
+	
+	private long           unknownErrors;
+	
+	/**
+	 * Initialize empty counts over the tags of the model.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	Evaluation(HMMModel model)
+	{
+		int tagSize = model.getTagSize();
+		this.tags = new String[tagSize];
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			tags[tag] = model.getTag(tag);
+		}
+		this.confusion = new long[(tagSize + 1) * tagSize];
+	}
+	
+	/**
+	 * Counts a decoded token.
+	 * 
+	 * @param goldTag
+	 *            the hand tag id, -1 for a tag missing from the model
+	 * @param predictedTag
+	 *            the decoded tag id
+	 * @param unknownWord
+	 *            whether the word is missing from the lexicon
+	 */
+	void count(int goldTag, int predictedTag, boolean unknownWord)
+	{
+		int row = (goldTag < 0) ? tags.length : goldTag;
+		confusion[row * tags.length + predictedTag]++;
+		boolean error = goldTag != predictedTag;
+		if (unknownWord)
+		{
+			unknownTokens++;
+			if (error)
+				unknownErrors++;
+		}
+		else
+		{
+			knownTokens++;
+			if (error)
+				knownErrors++;
+		}
+	}
+	
+	/**
+	 * Adds the counts of another evaluation over the same tags.
+	 * 
+	 * @param other
+	 *            {@link Evaluation}
+	 */
+	void merge(Evaluation other)
+	{
+		for (int i = 0; i < confusion.length; i++)
+		{
+			confusion[i] += other.confusion[i];
+		}
+		knownTokens += other.knownTokens;
+		knownErrors += other.knownErrors;
+		unknownTokens += other.unknownTokens;
+		unknownErrors += other.unknownErrors;
+	}
+	
+	/**
+	 * @return the number of tags
+	 */
+	public int getTagSize()
+	{
+		return tags.length;
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the tag name
+	 */
+	public String getTag(int tagId)
+	{
+		return tags[tagId];
+	}
+	
+	/**
+	 * @return the number of tokens evaluated
+	 */
+	public long getTokenCount()
+	{
+		return knownTokens + unknownTokens;
+	}
+	
+	/**
+	 * @return the number of tokens decoded with another tag than their hand
+	 *         tag
+	 */
+	public long getErrorCount()
+	{
+		return knownErrors + unknownErrors;
+	}
+	
+	/**
+	 * @return the share of the tokens decoded with another tag than their
+	 *         hand tag
+	 */
+	public double getErrorRate()
+	{
+		return ratio(getErrorCount(), getTokenCount());
+	}
+	
+	/**
+	 * @return the share of the tokens decoded with their hand tag
+	 */
+	public double getAccuracy()
+	{
+		return 1.0 - getErrorRate();
+	}
+	
+	/**
+	 * @return the number of tokens of words known to the lexicon
+	 */
+	public long getKnownTokenCount()
+	{
+		return knownTokens;
+	}
+	
+	/**
+	 * @return the accuracy over the words known to the lexicon
+	 */
+	public double getKnownAccuracy()
+	{
+		return 1.0 - ratio(knownErrors, knownTokens);
+	}
+	
+	/**
+	 * @return the number of tokens of words missing from the lexicon
+	 */
+	public long getUnknownTokenCount()
+	{
+		return unknownTokens;
+	}
+	
+	/**
+	 * @return the accuracy over the words missing from the lexicon
+	 */
+	public double getUnknownAccuracy()
+	{
+		return 1.0 - ratio(unknownErrors, unknownTokens);
+	}
+	
+	/**
+	 * @param goldTag
+	 *            the hand tag id, -1 for the tags missing from the model
+	 * @param predictedTag
+	 *            the decoded tag id
+	 * @return the number of tokens of the hand tag decoded with the tag
+	 */
+	public long getConfusion(int goldTag, int predictedTag)
+	{
+		int row = (goldTag < 0) ? tags.length : goldTag;
+		return confusion[row * tags.length + predictedTag];
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the number of tokens hand tagged with the tag
+	 */
+	public long getGoldCount(int tagId)
+	{
+		long count = 0;
+		for (int predicted = 0; predicted < tags.length; predicted++)
+		{
+			count += confusion[tagId * tags.length + predicted];
+		}
+		return count;
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the number of tokens decoded with the tag
+	 */
+	public long getPredictedCount(int tagId)
+	{
+		long count = 0;
+		for (int gold = 0; gold <= tags.length; gold++)
+		{
+			count += confusion[gold * tags.length + tagId];
+		}
+		return count;
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the share of the tokens decoded with the tag that are hand
+	 *         tagged with it, 0 when the tag was never decoded
+	 */
+	public double getPrecision(int tagId)
+	{
+		return ratio(getConfusion(tagId, tagId), getPredictedCount(tagId));
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the share of the tokens hand tagged with the tag that are
+	 *         decoded with it, 0 when the tag never occurs
+	 */
+	public double getRecall(int tagId)
+	{
+		return ratio(getConfusion(tagId, tagId), getGoldCount(tagId));
+	}
+	
+	/**
+	 * @return the accuracies and the precision and recall of each tag
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(
+		        "tokens %d, accuracy %.4f, known %.4f (%d), unknown %.4f (%d)%n",
+		        getTokenCount(), getAccuracy(), getKnownAccuracy(),
+		        knownTokens, getUnknownAccuracy(), unknownTokens));
+		report.append(String.format("%-8s %8s %8s %9s %9s%n", "tag", "gold",
+		        "decoded", "precision", "recall"));
+		for (int tag = 0; tag < tags.length; tag++)
+		{
+			report.append(String.format("%-8s %8d %8d %9.4f %9.4f%n",
+			        tags[tag], getGoldCount(tag), getPredictedCount(tag),
+			        getPrecision(tag), getRecall(tag)));
+		}
+		return report.toString();
+	}
+	
+	/**
+	 * @param count
+	 * @param total
+	 * @return the ratio, 0 for an empty total
+	 */
+	private static double ratio(long count, long total)
+	{
+		return (total == 0) ? 0.0 : (double) count / (double) total;
+	}
+}
@@ -3,15 +3,33 @@
  */
 package com.gerard.hmm.app;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.List;
+
+import com.gerard.hmm.exception.HMMParserException;
 
 /**
  * @author Gerard
  *         The class generates an HMM Model for probabilistic analysis.
+ *         New annotated data can be added to the counts of the parser
+ *         afterwards, and a new model is compiled from the transition rows,
+ *         the words and the unknown word keys the data changed.
  */
 public class HMMGenerator
 {
+	/**
+	 * The words added to a model, or the keys of its unknown word model
+	 * counted, since its lexicon or its keys were compiled whole, beyond
+	 * which they are compiled whole again, as a fraction 1 / COMPACTION of
+	 * the lexicon or of the keys
+	 */
+	private static final int                         COMPACTION = 8;
+	
 	/**
 	 * {@link HMMParser} is used to parse the given sentence - word | tag.
 	 */
@@ -21,86 +39,635 @@ public class HMMGenerator
 	
 	private HashMap<String, HashMap<String, Double>> emissionProbabilities;
 	
+	/**
+	 * The compiled, integer indexed form of the transition and emission
+	 * probabilities, published to the tagging threads.
+	 */
+	private volatile HMMModel                        model;
+	
+	/**
+	 * The counts of the keys of the {@link UnknownWordModel}, recounted for
+	 * the words of new data
+	 */
+	private UnknownWordModel.SuffixCounts            suffixCounts;
+	
+	/**
+	 * The count of each model tag the emissions of the lexicon of the model
+	 * were divided by
+	 */
+	private int[]                                    lexiconTagCounts;
+	
 	/**
 	 * Initializze HMM Model using the {@link HMMParser}
 	 */
 	public HMMGenerator(HMMParser parser)
 	{
+		this(parser, false);
+	}
+	
+	/**
+	 * Initializze HMM Model using the {@link HMMParser}, with or without the
+	 * trigram transitions.
+	 * 
+	 * @param parser
+	 *            {@link HMMParser}
+	 * @param trigrams
+	 *            whether to compile interpolated trigram transitions for a
+	 *            {@link TrigramDecoder}, from a parser counting the tag
+	 *            triples
+	 * @throws IllegalArgumentException
+	 *             when trigrams are asked of a parser without tag triple
+	 *             counts
+	 */
+	public HMMGenerator(HMMParser parser, boolean trigrams)
+	{
+		if (trigrams && !parser.hasTrigramCounts())
+			throw new IllegalArgumentException(
+			        "The parser does not count trigrams, create it with "
+			                + "trigrams on");
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		long startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+		long startBytes = metrics.isEnabled() ? TaggerMetrics
+		        .allocatedBytes() : 0;
 		this.parser = parser;
-		transitionProbabilities = new HashMap<String, HashMap<String, Double>>();
-		emissionProbabilities = new HashMap<String, HashMap<String, Double>>();
-		transitionAndEmissionProbabilities();
+		transitionAndEmissionProbabilities(trigrams);
+		if (metrics.isEnabled())
+			metrics.record(TaggerMetrics.Stage.BUILD, parser.getCounts()
+			        .getSentenceCount(), parser.getCounts().getTokenCount(),
+			        startNanos, startBytes);
+	}
+	
+	/**
+	 * @return the compiled {@link HMMModel}
+	 */
+	public HMMModel getModel()
+	{
+		return model;
 	}
 	
 	/**
+	 * The map is a view built from the compiled {@link HMMModel} on first
+	 * use.
+	 * 
 	 * @return the transitionProbabilities
 	 */
 	public HashMap<String, HashMap<String, Double>> getTransitionProbabilities()
 	{
+		if (transitionProbabilities == null)
+		{
+			HMMModel model = this.model;
+			HashMap<String, HashMap<String, Double>> transProbs = new HashMap<String, HashMap<String, Double>>();
+			int tagSize = model.getTagSize();
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					double prob = model.getTransition(prevTag, tag);
+					if (prob > 0)
+						put(transProbs, model.getTag(prevTag),
+						        model.getTag(tag), prob);
+				}
+			}
+			transitionProbabilities = transProbs;
+		}
 		return transitionProbabilities;
 	}
 	
 	/**
+	 * The map is a view built from the compiled {@link HMMModel} on first
+	 * use.
+	 * 
 	 * @return the emissionProbabilities
 	 */
 	public HashMap<String, HashMap<String, Double>> getEmissionProbabilities()
 	{
+		if (emissionProbabilities == null)
+		{
+			HMMModel model = this.model;
+			HashMap<String, HashMap<String, Double>> emisProbs = new HashMap<String, HashMap<String, Double>>();
+			for (int word = 0; word < model.getVocabularySize(); word++)
+			{
+				int end = model.getEmissionEnd(word);
+				for (int i = model.getEmissionStart(word); i < end; i++)
+				{
+					put(emisProbs, model.getTag(model.getEmissionTag(i)),
+					        model.getWord(word), model.getEmissionAt(i));
+				}
+			}
+			emissionProbabilities = emisProbs;
+		}
 		return emissionProbabilities;
 	}
 	
 	/**
 	 * For each tag calculate the transition probability and emission
-	 * probability
-	 * and stores them in transitionProbabilities and emissionProbabilities
-	 * where transitionProbabilities is map (fromTagKey of map ( toTagKey,
-	 * Prob(fromTag - toTag))
-	 * and emissionProbabilities is map (fromTagKey of map ( toWordKey,
-	 * Prob(fromTag - toTag))
-	 */
-	private void transitionAndEmissionProbabilities()
+	 * probability and compiles them into the {@link HMMModel}, so every
+	 * probability is normalized once here and read back in O(1) afterwards.
+	 * Tags and words are interned to ids in sorted order, transitions are
+	 * stored in a tag x tag matrix and the emissions of each word are stored
+	 * off heap in the {@link Lexicon} as a run of (tag id, count,
+	 * probability) entries ordered by tag id. The rare words train the
+	 * {@link UnknownWordModel}. The word counts are read
+	 * straight from the {@link TrainingCounts} of the parser, so the count
+	 * maps of the parser are never read.
+	 * 
+	 * @param trigrams
+	 *            whether to compile the trigram transitions too
+	 */
+	private void transitionAndEmissionProbabilities(boolean trigrams)
 	{
-		HashMap<String, HashMap<String, Integer>> tagToTagCount = parser
-		        .getTagToTagCount();
-		for (Entry<String, HashMap<String, Integer>> tagEntry : tagToTagCount
-		        .entrySet())
+		TrainingCounts counts = parser.getCounts();
+		
+		String[] tags = new String[counts.getTagSize()];
+		for (int countTag = 0; countTag < tags.length; countTag++)
+		{
+			tags[countTag] = counts.getTag(countTag);
+		}
+		Arrays.sort(tags);
+		int tagSize = tags.length;
+		
+		// Model tag id to tag id of the training counts, and back
+		int[] countTags = new int[tagSize];
+		int[] modelTags = new int[tagSize];
+		for (int countTag = 0; countTag < tagSize; countTag++)
 		{
-			String fromTag = tagEntry.getKey();
-			for (String toTag : tagEntry.getValue().keySet())
+			modelTags[countTag] = Arrays.binarySearch(tags,
+			        counts.getTag(countTag));
+			countTags[modelTags[countTag]] = countTag;
+		}
+		
+		double[] transitions = new double[tagSize * tagSize];
+		for (int prevTag = 0; prevTag < tagSize; prevTag++)
+		{
+			transitionRow(counts, countTags, prevTag, transitions);
+		}
+		
+		String[] words = new String[counts.getVocabularySize()];
+		for (int word = 0; word < words.length; word++)
+		{
+			words[word] = counts.getWord(word);
+		}
+		Arrays.sort(words);
+		
+		lexiconTagCounts = tagCounts(counts, countTags);
+		suffixCounts = new UnknownWordModel.SuffixCounts(counts, modelTags,
+		        tagSize);
+		model = new HMMModel(tags, transitions,
+		        trigrams ? trigramProbabilities(counts, countTags) : null,
+		        lexicon(counts, countTags, words), suffixCounts.compile(
+		                counts, modelTags));
+	}
+	
+	/**
+	 * Adds the counts of another annotated file, in the format of the
+	 * training set, to the parser and compiles a new {@link HMMModel} with
+	 * {@link #update(TrainingCounts)}. Models handed out before stay valid,
+	 * so the new model can be published to the taggers with a
+	 * {@link ModelHolder}.
+	 * 
+	 * @param trainingSetFile
+	 *            {@link String}
+	 * @return the new {@link HMMModel}
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	public synchronized HMMModel addTrainingSet(String trainingSetFile)
+	        throws IOException, HMMParserException
+	{
+		TrainingCounts delta = parser.countTrainingSet(trainingSetFile);
+		parser.add(delta);
+		return build(delta);
+	}
+	
+	/**
+	 * Adds the counts of one annotated sentence to the parser and compiles a
+	 * new {@link HMMModel} with {@link #update(TrainingCounts)}.
+	 * 
+	 * @param words
+	 *            the words of the sentence, without boundary markers
+	 * @param tags
+	 *            the tag of each word
+	 * @return the new {@link HMMModel}
+	 */
+	public synchronized HMMModel addSentence(String[] words, String[] tags)
+	{
+		TrainingCounts delta = parser.countSentence(words, tags);
+		parser.add(delta);
+		return build(delta);
+	}
+	
+	/**
+	 * Runs {@link #update(TrainingCounts)} as a build of the
+	 * {@link TaggerMetrics}.
+	 * 
+	 * @param delta
+	 *            {@link TrainingCounts} of the new data
+	 * @return the new {@link HMMModel}
+	 */
+	private HMMModel build(TrainingCounts delta)
+	{
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		if (!metrics.isEnabled())
+			return update(delta);
+		long startNanos = System.nanoTime();
+		long startBytes = TaggerMetrics.allocatedBytes();
+		HMMModel updated = update(delta);
+		metrics.record(TaggerMetrics.Stage.BUILD, delta.getSentenceCount(),
+		        delta.getTokenCount(), startNanos, startBytes);
+		return updated;
+	}
+	
+	/**
+	 * Compiles the model again once the counts of new data were merged into
+	 * the counts of the parser, from what the new data touched only. The
+	 * transition rows of the tags the new data did not count are copied from
+	 * the previous model. The {@link Lexicon} of the previous model is kept,
+	 * its log emissions being moved by the change of the log count of their
+	 * tag when read, and the words of the new data are compiled from the
+	 * merged counts into a second lexicon that the model reads first, along
+	 * with the words an earlier update put there, keeping their word ids;
+	 * the new words are numbered after the previous vocabulary. The
+	 * {@link UnknownWordModel} is compiled from the keys of the words of the
+	 * new data over the keys compiled before. Once the words or the keys so
+	 * compiled exceed 1 / {@link #COMPACTION} of the whole, they are
+	 * compiled whole again. The trigram transitions, whose interpolation
+	 * weights depend on every tag triple, are computed again over the tag x
+	 * tag x tag matrix, which does not grow with the training set. New data
+	 * with a tag the model does not know changes the tag ids, and the whole
+	 * model is compiled again.
+	 * 
+	 * @param delta
+	 *            {@link TrainingCounts} of the new data
+	 * @return the new {@link HMMModel}
+	 */
+	private HMMModel update(TrainingCounts delta)
+	{
+		TrainingCounts counts = parser.getCounts();
+		HMMModel previous = model;
+		transitionProbabilities = null;
+		emissionProbabilities = null;
+		int tagSize = previous.getTagSize();
+		if (counts.getTagSize() != tagSize)
+		{
+			transitionAndEmissionProbabilities(previous.hasTrigrams());
+			return model;
+		}
+		
+		String[] tags = new String[tagSize];
+		int[] countTags = new int[tagSize];
+		int[] modelTags = new int[tagSize];
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			tags[tag] = previous.getTag(tag);
+			countTags[tag] = counts.getTagId(tags[tag]);
+			modelTags[countTags[tag]] = tag;
+		}
+		
+		// The tags counted by the new data, or with a new transition
+		// counted from them
+		boolean[] changedTags = new boolean[tagSize];
+		int[] deltaModelTags = new int[delta.getTagSize()];
+		for (int deltaTag = 0; deltaTag < delta.getTagSize(); deltaTag++)
+		{
+			boolean changed = delta.getTagCount(deltaTag) > 0;
+			for (int tag = 0; tag < delta.getTagSize() && !changed; tag++)
 			{
-				if (transitionProbabilities.containsKey(fromTag))
+				changed = delta.getTransitionCount(deltaTag, tag) > 0;
+			}
+			deltaModelTags[deltaTag] = previous.getTagId(delta
+			        .getTag(deltaTag));
+			changedTags[deltaModelTags[deltaTag]] = changed;
+		}
+		
+		double[] transitions = new double[tagSize * tagSize];
+		for (int prevTag = 0; prevTag < tagSize; prevTag++)
+		{
+			if (changedTags[prevTag])
+			{
+				transitionRow(counts, countTags, prevTag, transitions);
+				continue;
+			}
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				transitions[prevTag * tagSize + tag] = previous.getTransition(
+				        prevTag, tag);
+			}
+		}
+		double[] trigrams = previous.hasTrigrams() ? trigramProbabilities(
+		        counts, countTags) : null;
+		
+		suffixCounts.count(counts, modelTags, delta, deltaModelTags);
+		UnknownWordModel unknownWords;
+		if (suffixCounts.getChangedKeyCount() * COMPACTION > suffixCounts
+		        .size())
+			unknownWords = suffixCounts.compile(counts, modelTags);
+		else
+			unknownWords = suffixCounts.compileChanges(
+			        previous.getUnknownWordModel(), counts, modelTags);
+		
+		// The word ids of the words added or recounted since the lexicon was
+		// compiled
+		int vocabularySize = previous.getVocabularySize();
+		BitSet added = new BitSet();
+		if (previous.getAdditionIds() != null)
+		{
+			for (int wordId : previous.getAdditionIds())
+			{
+				added.set(wordId);
+			}
+		}
+		List<String> newWords = new ArrayList<String>();
+		for (int deltaWord = 0; deltaWord < delta.getVocabularySize(); deltaWord++)
+		{
+			String word = delta.getWord(deltaWord);
+			int wordId = previous.getWordId(word);
+			if (wordId < 0)
+				newWords.add(word);
+			else
+				added.set(wordId);
+		}
+		Collections.sort(newWords);
+		added.set(vocabularySize, vocabularySize + newWords.size());
+		
+		Lexicon lexicon = previous.getLexicon();
+		if (added.cardinality() * COMPACTION > lexicon.getVocabularySize())
+		{
+			String[] words = new String[vocabularySize + newWords.size()];
+			for (int word = 0; word < words.length; word++)
+			{
+				words[word] = (word < vocabularySize) ? previous.getWord(word)
+				        : newWords.get(word - vocabularySize);
+			}
+			lexiconTagCounts = tagCounts(counts, countTags);
+			model = new HMMModel(tags, transitions, trigrams, lexicon(counts,
+			        countTags, words), unknownWords);
+			return model;
+		}
+		
+		int[] additionIds = new int[added.cardinality()];
+		String[] additionWords = new String[additionIds.length];
+		int addition = 0;
+		for (int word = added.nextSetBit(0); word >= 0; word = added
+		        .nextSetBit(word + 1))
+		{
+			additionIds[addition] = word;
+			additionWords[addition++] = (word < vocabularySize) ? previous
+			        .getWord(word) : newWords.get(word - vocabularySize);
+		}
+		int[] tagCounts = tagCounts(counts, countTags);
+		double[] emissionShifts = new double[tagSize];
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			// A tag without words has no entries to move
+			if (lexiconTagCounts[tag] > 0)
+				emissionShifts[tag] = Math.log(lexiconTagCounts[tag])
+				        - Math.log(tagCounts[tag]);
+		}
+		model = new HMMModel(tags, transitions, trigrams, lexicon,
+		        emissionShifts, lexicon(counts, countTags, additionWords),
+		        additionIds, unknownWords);
+		return model;
+	}
+	
+	/**
+	 * Packs the emissions of the words into a {@link Lexicon}, each word
+	 * getting its index as word id, dividing the merged word counts by the
+	 * tag counts.
+	 * 
+	 * @param counts
+	 *            {@link TrainingCounts}
+	 * @param countTags
+	 *            tag id of the counts of each model tag id
+	 * @param words
+	 *            distinct words of the counts
+	 * @return {@link Lexicon}
+	 */
+	private static Lexicon lexicon(TrainingCounts counts, int[] countTags,
+	        String[] words)
+	{
+		int tagSize = countTags.length;
+		int[] countWords = new int[words.length];
+		int entries = 0;
+		for (int word = 0; word < words.length; word++)
+		{
+			countWords[word] = counts.getWordId(words[word]);
+			for (int count : counts.getWordTagCounts(countWords[word]))
+			{
+				if (count > 0)
+					entries++;
+			}
+		}
+		
+		int[] wordOffsets = new int[words.length + 1];
+		int[] emissionTags = new int[entries];
+		int[] emissionCounts = new int[entries];
+		double[] emissions = new double[entries];
+		int entry = 0;
+		for (int word = 0; word < words.length; word++)
+		{
+			wordOffsets[word] = entry;
+			int[] tagsForWord = counts.getWordTagCounts(countWords[word]);
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				int countTag = countTags[tag];
+				if (countTag < tagsForWord.length
+				        && tagsForWord[countTag] > 0)
 				{
-					transitionProbabilities.get(fromTag).put(toTag,
-					        probabilityForTagGivenPrevTag(fromTag, toTag));
+					emissionTags[entry] = tag;
+					emissionCounts[entry] = tagsForWord[countTag];
+					emissions[entry] = (double) tagsForWord[countTag]
+					        / (double) counts.getTagCount(countTag);
+					entry++;
 				}
-				else
+			}
+		}
+		wordOffsets[words.length] = entry;
+		return Lexicon.build(words, wordOffsets, emissionTags,
+		        emissionCounts, emissions);
+	}
+	
+	/**
+	 * @param counts
+	 *            {@link TrainingCounts}
+	 * @param countTags
+	 *            tag id of the counts of each model tag id
+	 * @return the count of each model tag
+	 */
+	private static int[] tagCounts(TrainingCounts counts, int[] countTags)
+	{
+		int[] tagCounts = new int[countTags.length];
+		for (int tag = 0; tag < countTags.length; tag++)
+		{
+			tagCounts[tag] = counts.getTagCount(countTags[tag]);
+		}
+		return tagCounts;
+	}
+	
+	/**
+	 * Normalizes the transition counts of a tag into its row of the
+	 * transition matrix, leaving the row empty for a tag never counted.
+	 * 
+	 * @param counts
+	 *            {@link TrainingCounts}
+	 * @param countTags
+	 *            tag id of the counts of each model tag id
+	 * @param prevTag
+	 *            model tag id of the row
+	 * @param transitions
+	 *            tag x tag matrix
+	 */
+	private static void transitionRow(TrainingCounts counts, int[] countTags,
+	        int prevTag, double[] transitions)
+	{
+		int tagSize = countTags.length;
+		int prevTagCount = counts.getTagCount(countTags[prevTag]);
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			transitions[prevTag * tagSize + tag] = (prevTagCount == 0) ? 0.0
+			        : (double) counts.getTransitionCount(countTags[prevTag],
+			                countTags[tag]) / (double) prevTagCount;
+		}
+	}
+	
+	/**
+	 * Computes P(tag | prevPrevTag, prevTag) as the linear interpolation of
+	 * the trigram, bigram and unigram relative frequencies of the sentence
+	 * tag sequences. The weights are set by deleted interpolation: every
+	 * trigram votes, with its count, for the estimate that best predicts it
+	 * once it is left out of the counts.
+	 * 
+	 * @param counts
+	 *            {@link TrainingCounts}
+	 * @param countTags
+	 *            tag id of the counts of each model tag id
+	 * @return the tag x tag x tag matrix
+	 */
+	private double[] trigramProbabilities(TrainingCounts counts,
+	        int[] countTags)
+	{
+		int tagSize = countTags.length;
+		int[] trigramCounts = new int[tagSize * tagSize * tagSize];
+		int[] contextCounts = new int[tagSize * tagSize];
+		int[] bigramCounts = new int[tagSize * tagSize];
+		int[] prevCounts = new int[tagSize];
+		int[] unigramCounts = new int[tagSize];
+		int total = 0;
+		for (int prevPrevTag = 0; prevPrevTag < tagSize; prevPrevTag++)
+		{
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				for (int tag = 0; tag < tagSize; tag++)
 				{
-					HashMap<String, Double> transProb = new HashMap<String, Double>();
-					transProb.put(toTag,
-					        probabilityForTagGivenPrevTag(fromTag, toTag));
-					transitionProbabilities.put(fromTag, transProb);
+					int count = counts.getTrigramCount(countTags[prevPrevTag],
+					        countTags[prevTag], countTags[tag]);
+					trigramCounts[(prevPrevTag * tagSize + prevTag) * tagSize
+					        + tag] = count;
+					contextCounts[prevPrevTag * tagSize + prevTag] += count;
+					bigramCounts[prevTag * tagSize + tag] += count;
+					prevCounts[prevTag] += count;
+					unigramCounts[tag] += count;
+					total += count;
 				}
 			}
-			
-			HashMap<String, HashMap<String, Integer>> tagToWordCount = parser
-			        .getTagToWordCount();
-			HashMap<String, Integer> wordCount = tagToWordCount.get(fromTag);
-			for (String word : wordCount.keySet())
+		}
+		
+		double[] lambdas = new double[3];
+		for (int prevPrevTag = 0; prevPrevTag < tagSize; prevPrevTag++)
+		{
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
 			{
-				if (emissionProbabilities.containsKey(fromTag))
+				int context = contextCounts[prevPrevTag * tagSize + prevTag];
+				for (int tag = 0; tag < tagSize; tag++)
 				{
-					emissionProbabilities.get(fromTag).put(word,
-					        probabilityForWordGivenTag(fromTag, word));
+					int count = trigramCounts[(prevPrevTag * tagSize + prevTag)
+					        * tagSize + tag];
+					if (count == 0)
+						continue;
+					double trigram = leaveOneOut(count, context);
+					double bigram = leaveOneOut(bigramCounts[prevTag * tagSize
+					        + tag], prevCounts[prevTag]);
+					double unigram = leaveOneOut(unigramCounts[tag], total);
+					if (trigram >= bigram && trigram >= unigram)
+						lambdas[2] += count;
+					else if (bigram >= unigram)
+						lambdas[1] += count;
+					else
+						lambdas[0] += count;
 				}
-				else
+			}
+		}
+		double lambdaTotal = lambdas[0] + lambdas[1] + lambdas[2];
+		for (int i = 0; i < lambdas.length; i++)
+		{
+			lambdas[i] = (lambdaTotal == 0) ? 1.0 / 3.0 : lambdas[i]
+			        / lambdaTotal;
+		}
+		
+		double[] trigrams = new double[trigramCounts.length];
+		for (int prevPrevTag = 0; prevPrevTag < tagSize; prevPrevTag++)
+		{
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				int context = contextCounts[prevPrevTag * tagSize + prevTag];
+				for (int tag = 0; tag < tagSize; tag++)
 				{
-					HashMap<String, Double> emisProb = new HashMap<String, Double>();
-					emisProb.put(word,
-					        probabilityForWordGivenTag(fromTag, word));
-					emissionProbabilities.put(fromTag, emisProb);
+					int index = (prevPrevTag * tagSize + prevTag) * tagSize
+					        + tag;
+					trigrams[index] = lambdas[2]
+					        * ratio(trigramCounts[index], context)
+					        + lambdas[1]
+					        * ratio(bigramCounts[prevTag * tagSize + tag],
+					                prevCounts[prevTag]) + lambdas[0]
+					        * ratio(unigramCounts[tag], total);
 				}
-				
 			}
 		}
+		return trigrams;
+	}
+	
+	/**
+	 * @param count
+	 * @param total
+	 * @return the relative frequency, 0 for an empty total
+	 */
+	private static double ratio(int count, int total)
+	{
+		return (total == 0) ? 0.0 : (double) count / (double) total;
+	}
+	
+	/**
+	 * @param count
+	 * @param total
+	 * @return the relative frequency once one occurrence is left out
+	 */
+	private static double leaveOneOut(int count, int total)
+	{
+		return (total <= 1) ? 0.0 : (double) (count - 1)
+		        / (double) (total - 1);
+	}
+	
+	/**
+	 * Adds the value to the inner map of the container, creating it when
+	 * needed.
+	 * 
+	 * @param container
+	 *            {@link HashMap}
+	 * @param outerKey
+	 *            {@link String}
+	 * @param innerKey
+	 *            {@link String}
+	 * @param value
+	 */
+	private void put(HashMap<String, HashMap<String, Double>> container,
+	        String outerKey, String innerKey, double value)
+	{
+		HashMap<String, Double> inner = container.get(outerKey);
+		if (inner == null)
+		{
+			inner = new HashMap<String, Double>();
+			container.put(outerKey, inner);
+		}
+		inner.put(innerKey, value);
 	}
 	
 	/**
@@ -109,48 +676,118 @@ public class HMMGenerator
 	 * Which is similar to finding the most probable word that belongs to a
 	 * particular tag.
 	 * Which is similar to tag-to-word emission probabilities
+	 * Read from the emissions normalized by the {@link HMMModel}.
 	 * 
 	 * @param tag
 	 *            {@link String}
 	 * @param word
 	 *            {@link String}
-	 * @return {@link Double}
+	 * @return {@link Double}, 0 when the word was never seen with the tag
 	 */
 	public double probabilityForWordGivenTag(String tag, String word)
 	{
-		HashMap<String, HashMap<String, Integer>> tagToWordCount = parser
-		        .getTagToWordCount();
-		HashMap<String, Integer> tagCount = parser.getTagCount();
-		int totalWordCountForTag = getTagToWordCount(tagToWordCount, tag, word);
-		int totalWordCountForAllTags = getCount(tagCount, tag);
-		
-		return (double) totalWordCountForTag
-		        / (double) (totalWordCountForAllTags);
+		HMMModel model = this.model;
+		int tagId = model.getTagId(tag);
+		int wordId = model.getWordId(word);
+		if (tagId < 0 || wordId < 0)
+			return 0.0;
+		return model.getEmission(wordId, tagId);
 	}
 	
 	/**
 	 * Calculates the probability of the given tag | the previous tag has
 	 * has been visited.
 	 * Whcih is similar to tag-to-tag transition probabilities
+	 * Read from the transition matrix of the {@link HMMModel}.
 	 * 
 	 * @param prevTag
 	 *            {@link String}
 	 * @param currentTag
 	 *            {@link String}
-	 * @return
+	 * @return P(currentTag | prevTag), 0 for an unseen transition
 	 */
 	public double probabilityForTagGivenPrevTag(String prevTag,
 	        String currentTag)
 	{
-		HashMap<String, HashMap<String, Integer>> tagToTagCount = parser
-		        .getTagToTagCount();
-		
-		HashMap<String, Integer> tagCounts = parser.getTagCount();
-		
-		int prevTagsCount = getTagToTagCount(tagToTagCount, prevTag, currentTag);
-		int totalTagCounts = getCount(tagCounts, prevTag);
-		
-		return (double) prevTagsCount / (double) (totalTagCounts);
+		HMMModel model = this.model;
+		int prevTagId = model.getTagId(prevTag);
+		int tagId = model.getTagId(currentTag);
+		if (prevTagId < 0 || tagId < 0)
+			return 0.0;
+		return model.getTransition(prevTagId, tagId);
+	}
+	
+	/**
+	 * Calculates the probability of the given tag given the two previous
+	 * tags, read from the interpolated trigram matrix of the
+	 * {@link HMMModel}, or from the bigram transitions when the model has no
+	 * trigrams.
+	 * 
+	 * @param prevPrevTag
+	 *            {@link String}
+	 * @param prevTag
+	 *            {@link String}
+	 * @param currentTag
+	 *            {@link String}
+	 * @return P(currentTag | prevPrevTag, prevTag)
+	 */
+	public double probabilityForTagGivenPrevTags(String prevPrevTag,
+	        String prevTag, String currentTag)
+	{
+		HMMModel model = this.model;
+		if (!model.hasTrigrams())
+			return probabilityForTagGivenPrevTag(prevTag, currentTag);
+		int prevPrevTagId = model.getTagId(prevPrevTag);
+		int prevTagId = model.getTagId(prevTag);
+		int tagId = model.getTagId(currentTag);
+		if (prevPrevTagId < 0 || prevTagId < 0 || tagId < 0)
+			return 0.0;
+		return model.getTrigram(prevPrevTagId, prevTagId, tagId);
+	}
+	
+	/**
+	 * Log-space form of {@link #probabilityForWordGivenTag(String, String)}
+	 * read from the logarithms precomputed by the {@link HMMModel}, so that
+	 * path scores can be summed without underflow.
+	 * 
+	 * @param tag
+	 *            {@link String}
+	 * @param word
+	 *            {@link String}
+	 * @return log P(word | tag), negative infinity when the word was never
+	 *         seen with the tag
+	 */
+	public double logProbabilityForWordGivenTag(String tag, String word)
+	{
+		HMMModel model = this.model;
+		int tagId = model.getTagId(tag);
+		int wordId = model.getWordId(word);
+		if (tagId < 0 || wordId < 0)
+			return Double.NEGATIVE_INFINITY;
+		return model.getLogEmission(wordId, tagId);
+	}
+	
+	/**
+	 * Log-space form of
+	 * {@link #probabilityForTagGivenPrevTag(String, String)} read from the
+	 * logarithms precomputed by the {@link HMMModel}.
+	 * 
+	 * @param prevTag
+	 *            {@link String}
+	 * @param currentTag
+	 *            {@link String}
+	 * @return log P(currentTag | prevTag), negative infinity for an unseen
+	 *         transition
+	 */
+	public double logProbabilityForTagGivenPrevTag(String prevTag,
+	        String currentTag)
+	{
+		HMMModel model = this.model;
+		int prevTagId = model.getTagId(prevTag);
+		int tagId = model.getTagId(currentTag);
+		if (prevTagId < 0 || tagId < 0)
+			return Double.NEGATIVE_INFINITY;
+		return model.getLogTransition(prevTagId, tagId);
 	}
 	
 	/**
@@ -230,19 +867,26 @@ public class HMMGenerator
 	}
 	
 	/**
+	 * The map is built from the off heap {@link Lexicon} on each call.
+	 * 
 	 * @param word
-	 * @return
+	 * @return the count(value) of each tag(key) of the word
 	 */
 	public HashMap<String, Integer> getTagsForWord(String word)
 	{
-		if (parser.getWordToTagCount().containsKey(word))
-		{
-			return parser.getWordToTagCount().get(word);
-		}
-		else
+		HMMModel model = this.model;
+		HashMap<String, Integer> tagsForWord = new HashMap<String, Integer>();
+		int wordId = model.getWordId(word);
+		if (wordId >= 0)
 		{
-			return new HashMap<String, Integer>();
+			int end = model.getEmissionEnd(wordId);
+			for (int i = model.getEmissionStart(wordId); i < end; i++)
+			{
+				tagsForWord.put(model.getTag(model.getEmissionTag(i)),
+				        model.getEmissionCountAt(i));
+			}
 		}
+		return tagsForWord;
 	}
 	
 	/**
@@ -0,0 +1,791 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Gerard
+ *         Compiled form of the HMM built by {@link HMMGenerator}.
+ *         Tags are interned to small int ids and words to vocabulary ids.
+ *         Transitions are stored as a flat tag x tag matrix, along with the
+ *         sparse list of the predecessors of each tag, and emissions are
+ *         stored per word in the compressed sparse row layout of a
+ *         {@link Lexicon}, ordered by tag id, so the decoder never hashes a
+ *         String or unboxes a Double. Words missing from the lexicon are
+ *         scored by an {@link UnknownWordModel}. A model may also hold
+ *         interpolated trigram transitions for a {@link TrigramDecoder}.
+ *         A model can be quantized with {@link #quantize(int)}, keeping the
+ *         log emissions and the log trigrams as 8 or 16 bit codes that the
+ *         decoders read back through the same accessors.
+ *         A model compiled by {@link HMMGenerator} after new training data
+ *         may keep the lexicon of the previous model, its log emissions
+ *         moved by the change of the log count of their tag, under a second
+ *         lexicon of the words the data added or recounted; such a model is
+ *         merged back into one lexicon by {@link #compact()}.
+ *         Models are saved and
+ *         memory-mapped with {@link HMMModelFile}.
+ *         The model is immutable once built and can be shared by any number
+ *         of tagging threads.
+ */
+public class HMMModel
+{
+	/** Last generation given to a model */
+	private static final AtomicLong GENERATIONS = new AtomicLong();
+	
+	/** Tag names indexed by tag id */
+	private final String[]          tags;
+	
+	/** Tag name to tag id */
+	private final WordTable         tagIds;
+	
+	/**
+	 * P(tag | prevTag) stored at [prevTag * tagSize + tag].
+	 */
+	private final double[]          transitions;
+	
+	/** log P(tag | prevTag), laid out as transitions */
+	private final double[]          logTransitions;
+	
+	/**
+	 * The tags with a non-zero transition into each tag, in tag id order,
+	 * stored from predecessors[predecessorOffsets[tag]]
+	 */
+	private final int[]             predecessors;
+	
+	/** Start of the predecessors of each tag, and the predecessor count */
+	private final int[]             predecessorOffsets;
+	
+	/**
+	 * P(tag | prevPrevTag, prevTag) stored at [(prevPrevTag * tagSize +
+	 * prevTag) * tagSize + tag], null for a bigram model
+	 */
+	private final double[]          trigrams;
+	
+	/** log P(tag | prevPrevTag, prevTag), laid out as trigrams */
+	private final double[]          logTrigrams;
+	
+	/**
+	 * log P(tag | prevPrevTag, prevTag) quantized in rows of (prevPrevTag,
+	 * prevTag), replacing trigrams and logTrigrams in a quantized model, or
+	 * null
+	 */
+	private final QuantizedTable    trigramCodes;
+	
+	/**
+	 * The vocabulary and the emissions of each word, ordered by tag id.
+	 */
+	private final Lexicon           lexicon;
+	
+	/** Number of emission entries of the lexicon */
+	private final int               lexiconEntries;
+	
+	/**
+	 * log of the tag count each log emission of the lexicon was divided by,
+	 * over the current tag count, added to the log emissions of the lexicon,
+	 * or null
+	 */
+	private final double[]          emissionShifts;
+	
+	/**
+	 * The words added or recounted since the lexicon was compiled, holding
+	 * the entries numbered after the entries of the lexicon, or null
+	 */
+	private final Lexicon           additions;
+	
+	/** Word id of each word of the additions, or null */
+	private final int[]             additionIds;
+	
+	/**
+	 * Index in the additions of each word id, -1 for the words of the
+	 * lexicon, or null
+	 */
+	private final int[]             additionIndex;
+	
+	/** Emission model of the words missing from the lexicon */
+	private final UnknownWordModel  unknownWords;
+	
+	/** Number of the model, higher for every model built after it */
+	private final long              generation;
+	
+	/**
+	 * Initialize the model from its compiled tables.
+	 * 
+	 * @param tags
+	 *            tag names indexed by tag id
+	 * @param transitions
+	 *            tag x tag transition matrix
+	 * @param lexicon
+	 *            {@link Lexicon} of the words and their emissions
+	 * @param unknownWords
+	 *            {@link UnknownWordModel}
+	 */
+	HMMModel(String[] tags, double[] transitions, Lexicon lexicon,
+	        UnknownWordModel unknownWords)
+	{
+		this(tags, transitions, null, null, lexicon, null, null, null,
+		        unknownWords);
+	}
+	
+	/**
+	 * Initialize the model from its compiled tables.
+	 * 
+	 * @param tags
+	 *            tag names indexed by tag id
+	 * @param transitions
+	 *            tag x tag transition matrix
+	 * @param trigrams
+	 *            tag x tag x tag transition matrix, or null for a bigram
+	 *            model
+	 * @param lexicon
+	 *            {@link Lexicon} of the words and their emissions
+	 * @param unknownWords
+	 *            {@link UnknownWordModel}
+	 */
+	HMMModel(String[] tags, double[] transitions, double[] trigrams,
+	        Lexicon lexicon, UnknownWordModel unknownWords)
+	{
+		this(tags, transitions, trigrams, null, lexicon, null, null, null,
+		        unknownWords);
+	}
+	
+	/**
+	 * Initialize a model over the lexicon of a previous model and the words
+	 * new training data added or recounted since the lexicon was compiled.
+	 * 
+	 * @param tags
+	 *            tag names indexed by tag id
+	 * @param transitions
+	 *            tag x tag transition matrix
+	 * @param trigrams
+	 *            tag x tag x tag transition matrix, or null for a bigram
+	 *            model
+	 * @param lexicon
+	 *            {@link Lexicon} of the previous model
+	 * @param emissionShifts
+	 *            log of the tag count each log emission of the lexicon was
+	 *            divided by, over the current tag count
+	 * @param additions
+	 *            {@link Lexicon} of the added and recounted words
+	 * @param additionIds
+	 *            word id of each word of the additions, in increasing order,
+	 *            the new words being numbered after the words of the lexicon
+	 * @param unknownWords
+	 *            {@link UnknownWordModel}
+	 */
+	HMMModel(String[] tags, double[] transitions, double[] trigrams,
+	        Lexicon lexicon, double[] emissionShifts, Lexicon additions,
+	        int[] additionIds, UnknownWordModel unknownWords)
+	{
+		this(tags, transitions, trigrams, null, lexicon, emissionShifts,
+		        additions, additionIds, unknownWords);
+	}
+	
+	/**
+	 * Initialize a model with quantized trigram transitions.
+	 * 
+	 * @param tags
+	 *            tag names indexed by tag id
+	 * @param transitions
+	 *            tag x tag transition matrix
+	 * @param trigramCodes
+	 *            the quantized log trigrams, or null for a bigram model
+	 * @param lexicon
+	 *            {@link Lexicon} of the words and their emissions
+	 * @param unknownWords
+	 *            {@link UnknownWordModel}
+	 */
+	HMMModel(String[] tags, double[] transitions,
+	        QuantizedTable trigramCodes, Lexicon lexicon,
+	        UnknownWordModel unknownWords)
+	{
+		this(tags, transitions, null, trigramCodes, lexicon, null, null,
+		        null, unknownWords);
+	}
+	
+	/**
+	 * @param tags
+	 * @param transitions
+	 * @param trigrams
+	 *            tag x tag x tag transition matrix, or null
+	 * @param trigramCodes
+	 *            the quantized log trigrams, or null
+	 * @param lexicon
+	 * @param emissionShifts
+	 *            or null
+	 * @param additions
+	 *            or null
+	 * @param additionIds
+	 *            or null
+	 * @param unknownWords
+	 */
+	private HMMModel(String[] tags, double[] transitions, double[] trigrams,
+	        QuantizedTable trigramCodes, Lexicon lexicon,
+	        double[] emissionShifts, Lexicon additions, int[] additionIds,
+	        UnknownWordModel unknownWords)
+	{
+		this.tags = tags;
+		this.transitions = transitions;
+		this.trigrams = trigrams;
+		this.logTrigrams = (trigrams == null) ? null : log(trigrams);
+		this.trigramCodes = trigramCodes;
+		this.lexicon = lexicon;
+		this.lexiconEntries = lexicon.getEntryCount();
+		this.emissionShifts = emissionShifts;
+		this.additions = additions;
+		this.additionIds = additionIds;
+		this.additionIndex = (additions == null) ? null : additionIndex(
+		        lexicon.getVocabularySize(), additionIds);
+		this.unknownWords = unknownWords;
+		this.generation = GENERATIONS.incrementAndGet();
+		this.logTransitions = log(transitions);
+		int tagSize = tags.length;
+		this.predecessorOffsets = new int[tagSize + 1];
+		int entries = 0;
+		for (int i = 0; i < transitions.length; i++)
+		{
+			if (transitions[i] > 0)
+				entries++;
+		}
+		this.predecessors = new int[entries];
+		int entry = 0;
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			predecessorOffsets[tag] = entry;
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				if (transitions[prevTag * tagSize + tag] > 0)
+					predecessors[entry++] = prevTag;
+			}
+		}
+		predecessorOffsets[tagSize] = entry;
+		this.tagIds = new WordTable(tags, false);
+	}
+	
+	/**
+	 * @return the {@link Lexicon}, without the additions of a model compiled
+	 *         after new training data
+	 */
+	Lexicon getLexicon()
+	{
+		return lexicon;
+	}
+	
+	/**
+	 * @return the word id of each word added or recounted since the
+	 *         {@link Lexicon} was compiled, in increasing order, or null
+	 */
+	int[] getAdditionIds()
+	{
+		return additionIds;
+	}
+	
+	/**
+	 * @return the {@link UnknownWordModel}
+	 */
+	UnknownWordModel getUnknownWordModel()
+	{
+		return unknownWords;
+	}
+	
+	/**
+	 * @return the quantized log trigrams, or null
+	 */
+	QuantizedTable getTrigramCodes()
+	{
+		return trigramCodes;
+	}
+	
+	/**
+	 * Compiles a copy of the model whose log emissions, and log trigrams if
+	 * any, are quantized to codes of the given size with a scale per tag
+	 * for the emissions and per (prevPrevTag, prevTag) row for the
+	 * trigrams. The bigram transitions, a tag x tag matrix read whole by
+	 * the dense decoder loops, are kept in full precision. The training
+	 * counts are left out, so the quantized model cannot seed a
+	 * {@link BaumWelchTrainer}.
+	 * 
+	 * @param bits
+	 *            8 or 16
+	 * @return the quantized {@link HMMModel}
+	 */
+	public HMMModel quantize(int bits)
+	{
+		QuantizedTable.checkBits(bits);
+		QuantizedTable codes = trigramCodes;
+		if (trigrams != null)
+			codes = QuantizedTable.quantize(logTrigrams, tags.length, bits);
+		return new HMMModel(tags, transitions, codes, pack(bits),
+		        unknownWords.compact());
+	}
+	
+	/**
+	 * Merges the additions into the lexicon and the {@link UnknownWordModel}
+	 * with its base, as a model must be to be written to a file, quantized
+	 * or trained further.
+	 * 
+	 * @return a model with the same probabilities held by one
+	 *         {@link Lexicon}, or this model when it already is
+	 */
+	HMMModel compact()
+	{
+		UnknownWordModel compactWords = unknownWords.compact();
+		if (additions == null && compactWords == unknownWords)
+			return this;
+		return new HMMModel(tags, transitions, trigrams, trigramCodes,
+		        (additions == null) ? lexicon : pack(0), null, null, null,
+		        compactWords);
+	}
+	
+	/**
+	 * Packs the words and the emissions of the model, in word id order, into
+	 * a new {@link Lexicon}.
+	 * 
+	 * @param codeBits
+	 *            0 for full precision, or the 8 or 16 bits of the codes
+	 * @return {@link Lexicon}
+	 */
+	private Lexicon pack(int codeBits)
+	{
+		int vocabularySize = getVocabularySize();
+		String[] words = new String[vocabularySize];
+		int[] wordOffsets = new int[vocabularySize + 1];
+		for (int word = 0; word < vocabularySize; word++)
+		{
+			words[word] = getWord(word);
+			wordOffsets[word + 1] = wordOffsets[word] + getEmissionEnd(word)
+			        - getEmissionStart(word);
+		}
+		int entries = wordOffsets[vocabularySize];
+		int[] emissionTags = new int[entries];
+		int[] emissionCounts = new int[entries];
+		double[] emissions = new double[entries];
+		int entry = 0;
+		for (int word = 0; word < vocabularySize; word++)
+		{
+			int end = getEmissionEnd(word);
+			for (int i = getEmissionStart(word); i < end; i++)
+			{
+				emissionTags[entry] = getEmissionTag(i);
+				emissionCounts[entry] = getEmissionCountAt(i);
+				emissions[entry] = getEmissionAt(i);
+				entry++;
+			}
+		}
+		return Lexicon.build(words, wordOffsets, emissionTags,
+		        emissionCounts, emissions, codeBits, tags.length);
+	}
+	
+	/**
+	 * @return the number of bits of the quantized log emissions, 0 for a
+	 *         model in full precision
+	 */
+	public int getCodeBits()
+	{
+		return lexicon.getCodeBits();
+	}
+	
+	/**
+	 * @return the number of the model, distinct for every model built and
+	 *         higher for every model built after it
+	 */
+	long getGeneration()
+	{
+		return generation;
+	}
+	
+	/**
+	 * @return the number of bytes of the tables of the model, on and off the
+	 *         heap
+	 */
+	public long getByteSize()
+	{
+		long size = 16L * transitions.length + 4L
+		        * (predecessors.length + predecessorOffsets.length);
+		if (trigrams != null)
+			size += 16L * trigrams.length;
+		if (trigramCodes != null)
+			size += trigramCodes.byteSize();
+		if (additions != null)
+			size += additions.byteSize() + 8L * tags.length + 4L
+			        * (additionIds.length + additionIndex.length);
+		return size + lexicon.byteSize() + unknownWords.byteSize();
+	}
+	
+	/**
+	 * @return the number of tags
+	 */
+	public int getTagSize()
+	{
+		return tags.length;
+	}
+	
+	/**
+	 * @return the number of words in the vocabulary
+	 */
+	public int getVocabularySize()
+	{
+		return (additionIndex == null) ? lexicon.getVocabularySize()
+		        : additionIndex.length;
+	}
+	
+	/**
+	 * @param tag
+	 *            {@link String}
+	 * @return the id of the tag or -1 when the tag is unknown
+	 */
+	public int getTagId(String tag)
+	{
+		return tagIds.find(tag);
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding the tag as UTF-8
+	 * @param start
+	 *            index of the first byte of the tag
+	 * @param end
+	 *            index after the last byte of the tag
+	 * @return the id of the tag or -1 when the tag is unknown
+	 */
+	public int getTagId(ByteBuffer buffer, int start, int end)
+	{
+		return tagIds.find(buffer, start, end);
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the tag name
+	 */
+	public String getTag(int tagId)
+	{
+		return tags[tagId];
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}, lower cased during the lookup
+	 * @return the id of the word or -1 when the word is unknown
+	 */
+	public int getWordId(CharSequence word)
+	{
+		if (additions != null)
+		{
+			int addition = additions.find(word);
+			if (addition >= 0)
+				return additionIds[addition];
+		}
+		return lexicon.find(word);
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding the word as UTF-8
+	 * @param start
+	 *            index of the first byte of the word
+	 * @param end
+	 *            index after the last byte of the word
+	 * @return the id of the word or -1 when the word is unknown, the word
+	 *         being lower cased during the lookup
+	 */
+	public int getWordId(ByteBuffer buffer, int start, int end)
+	{
+		if (additions != null)
+		{
+			int addition = additions.find(buffer, start, end);
+			if (addition >= 0)
+				return additionIds[addition];
+		}
+		return lexicon.find(buffer, start, end);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return the word
+	 */
+	public String getWord(int wordId)
+	{
+		int addition = addition(wordId);
+		return (addition < 0) ? lexicon.getWord(wordId) : additions
+		        .getWord(addition);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return the index of the word in the additions, -1 for a word of the
+	 *         lexicon
+	 */
+	private int addition(int wordId)
+	{
+		return (additionIndex == null) ? -1 : additionIndex[wordId];
+	}
+	
+	/**
+	 * @param prevTagId
+	 * @param tagId
+	 * @return P(tag | prevTag)
+	 */
+	public double getTransition(int prevTagId, int tagId)
+	{
+		return transitions[prevTagId * tags.length + tagId];
+	}
+	
+	/**
+	 * @param prevTagId
+	 * @param tagId
+	 * @return log P(tag | prevTag), negative infinity for an unseen
+	 *         transition
+	 */
+	public double getLogTransition(int prevTagId, int tagId)
+	{
+		return logTransitions[prevTagId * tags.length + tagId];
+	}
+	
+	/**
+	 * @return the transition matrix, P(tag | prevTag) being stored at
+	 *         [prevTag * tagSize + tag], for the loops of the decoders over
+	 *         whole rows; the array must not be written
+	 */
+	double[] getTransitionMatrix()
+	{
+		return transitions;
+	}
+	
+	/**
+	 * @param tagId
+	 * @return index of the first predecessor of the tag
+	 */
+	public int getPredecessorStart(int tagId)
+	{
+		return predecessorOffsets[tagId];
+	}
+	
+	/**
+	 * @param tagId
+	 * @return index after the last predecessor of the tag
+	 */
+	public int getPredecessorEnd(int tagId)
+	{
+		return predecessorOffsets[tagId + 1];
+	}
+	
+	/**
+	 * @param index
+	 *            predecessor index
+	 * @return the id of a tag with a non-zero transition into the tag of the
+	 *         index
+	 */
+	public int getPredecessor(int index)
+	{
+		return predecessors[index];
+	}
+	
+	/**
+	 * @return whether the model has trigram transitions
+	 */
+	public boolean hasTrigrams()
+	{
+		return trigrams != null || trigramCodes != null;
+	}
+	
+	/**
+	 * @param prevPrevTagId
+	 * @param prevTagId
+	 * @param tagId
+	 * @return the interpolated P(tag | prevPrevTag, prevTag)
+	 */
+	public double getTrigram(int prevPrevTagId, int prevTagId, int tagId)
+	{
+		if (trigramCodes != null)
+			return Math.exp(getLogTrigram(prevPrevTagId, prevTagId, tagId));
+		return trigrams[(prevPrevTagId * tags.length + prevTagId)
+		        * tags.length + tagId];
+	}
+	
+	/**
+	 * @param prevPrevTagId
+	 * @param prevTagId
+	 * @param tagId
+	 * @return log of the interpolated P(tag | prevPrevTag, prevTag)
+	 */
+	public double getLogTrigram(int prevPrevTagId, int prevTagId, int tagId)
+	{
+		if (trigramCodes != null)
+			return trigramCodes.get(prevPrevTagId * tags.length + prevTagId,
+			        tagId);
+		return logTrigrams[(prevPrevTagId * tags.length + prevTagId)
+		        * tags.length + tagId];
+	}
+	
+	/**
+	 * @param wordId
+	 * @return index of the first emission entry of the word
+	 */
+	public int getEmissionStart(int wordId)
+	{
+		int addition = addition(wordId);
+		return (addition < 0) ? lexicon.getEmissionStart(wordId)
+		        : lexiconEntries + additions.getEmissionStart(addition);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return index after the last emission entry of the word
+	 */
+	public int getEmissionEnd(int wordId)
+	{
+		int addition = addition(wordId);
+		return (addition < 0) ? lexicon.getEmissionEnd(wordId)
+		        : lexiconEntries + additions.getEmissionEnd(addition);
+	}
+	
+	/**
+	 * @param index
+	 *            emission entry index
+	 * @return the tag id of the emission entry
+	 */
+	public int getEmissionTag(int index)
+	{
+		return (index < lexiconEntries) ? lexicon.getEmissionTag(index)
+		        : additions.getEmissionTag(index - lexiconEntries);
+	}
+	
+	/**
+	 * @param index
+	 *            emission entry index
+	 * @return P(word | tag) of the emission entry
+	 */
+	public double getEmissionAt(int index)
+	{
+		return Math.exp(getLogEmissionAt(index));
+	}
+	
+	/**
+	 * @param index
+	 *            emission entry index
+	 * @return the training count of the word under the tag of the emission
+	 *         entry, 0 in a quantized model
+	 */
+	public int getEmissionCountAt(int index)
+	{
+		return (index < lexiconEntries) ? lexicon.getEmissionCount(index)
+		        : additions.getEmissionCount(index - lexiconEntries);
+	}
+	
+	/**
+	 * @param wordId
+	 * @param tagId
+	 * @return the training count of the word under the tag, 0 when the word
+	 *         was never seen with the tag
+	 */
+	public int getEmissionCount(int wordId, int tagId)
+	{
+		int index = getEmissionIndex(wordId, tagId);
+		return (index < 0) ? 0 : getEmissionCountAt(index);
+	}
+	
+	/**
+	 * @param index
+	 *            emission entry index
+	 * @return log P(word | tag) of the emission entry
+	 */
+	public double getLogEmissionAt(int index)
+	{
+		if (index >= lexiconEntries)
+			return additions.getLogEmissionAt(index - lexiconEntries);
+		if (emissionShifts == null)
+			return lexicon.getLogEmissionAt(index);
+		return lexicon.getLogEmissionAt(index)
+		        + emissionShifts[lexicon.getEmissionTag(index)];
+	}
+	
+	/**
+	 * @param wordId
+	 * @param tagId
+	 * @return P(word | tag), 0 when the word was never seen with the tag
+	 */
+	public double getEmission(int wordId, int tagId)
+	{
+		int index = getEmissionIndex(wordId, tagId);
+		return (index < 0) ? 0.0 : getEmissionAt(index);
+	}
+	
+	/**
+	 * @param wordId
+	 * @param tagId
+	 * @return log P(word | tag), negative infinity when the word was never
+	 *         seen with the tag
+	 */
+	public double getLogEmission(int wordId, int tagId)
+	{
+		int index = getEmissionIndex(wordId, tagId);
+		return (index < 0) ? Double.NEGATIVE_INFINITY
+		        : getLogEmissionAt(index);
+	}
+	
+	/**
+	 * @param wordId
+	 * @param tagId
+	 * @return the emission entry index of the word and tag, -1 when the word
+	 *         was never seen with the tag, found by a binary search of the
+	 *         entries of the word
+	 */
+	public int getEmissionIndex(int wordId, int tagId)
+	{
+		int low = getEmissionStart(wordId);
+		int high = getEmissionEnd(wordId) - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int midTag = getEmissionTag(mid);
+			if (midTag < tagId)
+				low = mid + 1;
+			else if (midTag > tagId)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param lexiconSize
+	 *            number of words of the lexicon
+	 * @param additionIds
+	 *            word id of each word of the additions
+	 * @return the index in the additions of each word id, -1 for the words
+	 *         of the lexicon
+	 */
+	private static int[] additionIndex(int lexiconSize, int[] additionIds)
+	{
+		int vocabularySize = lexiconSize;
+		for (int wordId : additionIds)
+		{
+			vocabularySize = Math.max(vocabularySize, wordId + 1);
+		}
+		int[] index = new int[vocabularySize];
+		Arrays.fill(index, -1);
+		for (int addition = 0; addition < additionIds.length; addition++)
+		{
+			index[additionIds[addition]] = addition;
+		}
+		return index;
+	}
+	
+	/**
+	 * @param probabilities
+	 * @return the natural logarithm of each probability
+	 */
+	private static double[] log(double[] probabilities)
+	{
+		double[] logs = new double[probabilities.length];
+		for (int i = 0; i < probabilities.length; i++)
+		{
+			logs[i] = Math.log(probabilities[i]);
+		}
+		return logs;
+	}
+}
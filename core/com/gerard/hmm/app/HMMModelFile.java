@@ -0,0 +1,298 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * @author Gerard
+ *         Saves an {@link HMMModel} in a compact, versioned binary file and
+ *         loads it back by memory-mapping the file.
+ *         The file is in little endian order and holds the magic number, the
+ *         format version, the tag count, the trigram flag and the code size
+ *         of a quantized model, the tag table as length prefixed UTF-8 names,
+ *         the tag x tag transition matrix aligned to 8 bytes, the tag x tag x
+ *         tag trigram matrix, or its {@link QuantizedTable} in a quantized
+ *         model, when the flag is set,
+ *         the suffix tables of the {@link UnknownWordModel} and the packed
+ *         {@link Lexicon} of the vocabulary and the sparse emissions aligned
+ *         to 8 bytes. The tag table, the transition matrix and the unknown
+ *         word model are copied to the heap on loading, being small, while
+ *         all word lookups are served from the mapped lexicon.
+ *         A model file is never rewritten in place: a new model is written
+ *         to a temporary file beside it and renamed over it, so a process
+ *         still mapping the old file keeps reading the old model.
+ */
+public class HMMModelFile
+{
+	/** "HMMM" */
+	private static final int MAGIC   = 0x4D4D4D48;
+	
+	/** The format version written by this class */
+	private static final int VERSION = 7;
+	
+	/**
+	 * Not instantiable.
+	 */
+	private HMMModelFile()
+	{
+	}
+	
+	/**
+	 * Writes the model to a temporary file in the directory of the model
+	 * file, forces it to disk and atomically renames it over the model file.
+	 * A model compiled after new training data is compacted first.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param modelFile
+	 *            {@link String}
+	 * @throws IOException
+	 */
+	public static void write(HMMModel model, String modelFile)
+	        throws IOException
+	{
+		model = model.compact();
+		int tagSize = model.getTagSize();
+		byte[][] tags = new byte[tagSize][];
+		int headerSize = 20;
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			tags[tag] = model.getTag(tag).getBytes(StandardCharsets.UTF_8);
+			headerSize += 4 + tags[tag].length;
+		}
+		int transitionsBase = Lexicon.align(headerSize);
+		int trigramsBase = transitionsBase + 8 * tagSize * tagSize;
+		QuantizedTable trigramCodes = model.getTrigramCodes();
+		int trigramsSize = (trigramCodes != null) ? trigramCodes.byteSize()
+		        : 8 * tagSize * tagSize * tagSize;
+		int unknownWordsBase = trigramsBase
+		        + (model.hasTrigrams() ? trigramsSize : 0);
+		UnknownWordModel unknownWords = model.getUnknownWordModel();
+		int lexiconBase = Lexicon.align(unknownWordsBase
+		        + unknownWords.byteSize());
+		
+		ByteBuffer header = ByteBuffer.allocate(lexiconBase).order(
+		        ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(tagSize)
+		        .putInt(model.hasTrigrams() ? 1 : 0).putInt(model.getCodeBits());
+		for (byte[] tag : tags)
+		{
+			header.putInt(tag.length).put(tag);
+		}
+		header.position(transitionsBase);
+		for (int prevTag = 0; prevTag < tagSize; prevTag++)
+		{
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				header.putDouble(model.getTransition(prevTag, tag));
+			}
+		}
+		if (trigramCodes != null)
+			trigramCodes.write(header);
+		for (int prevPrevTag = 0; trigramCodes == null && model.hasTrigrams()
+		        && prevPrevTag < tagSize; prevPrevTag++)
+		{
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					header.putDouble(model.getTrigram(prevPrevTag, prevTag, tag));
+				}
+			}
+		}
+		unknownWords.write(header);
+		header.position(lexiconBase);
+		header.flip();
+		
+		File target = new File(modelFile).getAbsoluteFile();
+		File temp = File.createTempFile(target.getName(), ".tmp",
+		        target.getParentFile());
+		boolean moved = false;
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(temp, "rw");
+			try
+			{
+				FileChannel channel = file.getChannel();
+				write(channel, header);
+				write(channel, model.getLexicon().getBuffer());
+				channel.force(true);
+			}
+			finally
+			{
+				file.close();
+			}
+			Files.move(temp.toPath(), target.toPath(),
+			        StandardCopyOption.ATOMIC_MOVE,
+			        StandardCopyOption.REPLACE_EXISTING);
+			moved = true;
+		}
+		finally
+		{
+			if (!moved)
+				temp.delete();
+		}
+	}
+	
+	/**
+	 * Memory-maps a model file.
+	 * 
+	 * @param modelFile
+	 *            {@link String}
+	 * @return the {@link HMMModel} served from the mapped file
+	 * @throws IOException
+	 *             when the file is not a model file of a supported version,
+	 *             or is truncated or corrupt
+	 */
+	public static HMMModel map(String modelFile) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(modelFile, "r");
+		MappedByteBuffer mapped;
+		try
+		{
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Model file too large: " + modelFile);
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+			        channel.size());
+		}
+		finally
+		{
+			// The mapping stays valid once the file is closed.
+			file.close();
+		}
+		
+		try
+		{
+			return read(mapped.order(ByteOrder.LITTLE_ENDIAN), modelFile);
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException
+		        | IllegalArgumentException | NegativeArraySizeException e)
+		{
+			throw new IOException("Corrupt model file: " + modelFile, e);
+		}
+	}
+	
+	/**
+	 * Reads a model from a mapped model file, checking the end of each
+	 * section against the size of the file.
+	 * 
+	 * @param buffer
+	 *            little endian {@link ByteBuffer} of the whole file
+	 * @param modelFile
+	 *            {@link String}, for the messages
+	 * @return the {@link HMMModel} served from the buffer
+	 * @throws IOException
+	 *             when the file is not a model file of a supported version
+	 *             or a section ends past the end of the file
+	 */
+	private static HMMModel read(ByteBuffer buffer, String modelFile)
+	        throws IOException
+	{
+		if (buffer.remaining() < 20 || buffer.getInt() != MAGIC)
+			throw new IOException("Not an HMM model file: " + modelFile);
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported model version " + version
+			        + ": " + modelFile);
+		
+		int tagSize = buffer.getInt();
+		boolean hasTrigrams = buffer.getInt() != 0;
+		int codeBits = buffer.getInt();
+		require(buffer, 4L * tagSize, modelFile);
+		String[] tags = new String[tagSize];
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			int length = buffer.getInt();
+			require(buffer, length, modelFile);
+			byte[] name = new byte[length];
+			buffer.get(name);
+			tags[tag] = new String(name, StandardCharsets.UTF_8);
+		}
+		require(buffer, Lexicon.align(buffer.position()) - buffer.position(),
+		        modelFile);
+		buffer.position(Lexicon.align(buffer.position()));
+		long cells = (long) tagSize * tagSize;
+		require(buffer, 8 * cells, modelFile);
+		if (hasTrigrams)
+			require(buffer, (codeBits == 0) ? 8 * cells * tagSize : 16
+			        * cells + codeBits / 8 * cells * tagSize, modelFile);
+		double[] transitions = new double[tagSize * tagSize];
+		for (int i = 0; i < transitions.length; i++)
+		{
+			transitions[i] = buffer.getDouble();
+		}
+		double[] trigrams = null;
+		QuantizedTable trigramCodes = null;
+		if (hasTrigrams && codeBits != 0)
+			trigramCodes = QuantizedTable.read(buffer, tagSize * tagSize,
+			        tagSize, codeBits);
+		else if (hasTrigrams)
+		{
+			trigrams = new double[tagSize * tagSize * tagSize];
+			for (int i = 0; i < trigrams.length; i++)
+			{
+				trigrams[i] = buffer.getDouble();
+			}
+		}
+		UnknownWordModel unknownWords = UnknownWordModel.read(buffer);
+		require(buffer, Lexicon.align(buffer.position()) - buffer.position(),
+		        modelFile);
+		buffer.position(Lexicon.align(buffer.position()));
+		require(buffer, Lexicon.packedSize(buffer), modelFile);
+		if (trigramCodes != null)
+			return new HMMModel(tags, transitions, trigramCodes, new Lexicon(
+			        buffer), unknownWords);
+		return new HMMModel(tags, transitions, trigrams, new Lexicon(buffer),
+		        unknownWords);
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param size
+	 *            number of bytes the next section takes, -1 when its header
+	 *            is corrupt
+	 * @param modelFile
+	 *            {@link String}, for the message
+	 * @throws IOException
+	 *             when the section ends past the end of the file
+	 */
+	private static void require(ByteBuffer buffer, long size, String modelFile)
+	        throws IOException
+	{
+		if (size < 0 || size > buffer.remaining())
+			throw new IOException("Truncated or corrupt model file: "
+			        + modelFile);
+	}
+	
+	/**
+	 * Writes all remaining bytes of the buffer.
+	 * 
+	 * @param channel
+	 *            {@link FileChannel}
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @throws IOException
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer)
+	        throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+}
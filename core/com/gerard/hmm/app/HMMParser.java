@@ -3,11 +3,19 @@
  */
 package com.gerard.hmm.app;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.gerard.hmm.exception.HMMParserException;
 
@@ -17,6 +25,12 @@ import com.gerard.hmm.exception.HMMParserException;
  */
 public class HMMParser
 {
+	/** Number of shards of the training set per counting thread */
+	private static final int                          SHARDS_PER_THREAD = 4;
+	
+	/** Smallest number of bytes of a training set shard */
+	private static final long                         MIN_SHARD_BYTES   = 1 << 19;
+	
 	/** Stores tag count used in the training set */
 	private HashMap<String, Integer>                  tagCount;
 	/**
@@ -36,6 +50,18 @@ public class HMMParser
 	/** The data structure is used to store tag-to-tag counts */
 	private HashMap<String, HashMap<String, Integer>> tagToTagCount;
 	
+	/**
+	 * The merged counts of the training sets, from which the word maps are
+	 * built on first use.
+	 */
+	private TrainingCounts                            counts;
+	
+	/** Counts the shards of the training sets */
+	private final ExecutorService                     executor;
+	
+	/** Whether the tag triples are counted for a trigram model */
+	private final boolean                             trigrams;
+	
 	/**
 	 * @return the tagCount
 	 */
@@ -45,21 +71,61 @@ public class HMMParser
 	}
 	
 	/**
+	 * The map is built from the training counts on first use, as it holds
+	 * an entry per word and tag.
+	 * 
 	 * @return the tagToWordCount
 	 */
 	public HashMap<String, HashMap<String, Integer>> getTagToWordCount()
 	{
+		buildWordCounts();
 		return tagToWordCount;
 	}
 	
 	/**
+	 * The map is built from the training counts on first use, as it holds
+	 * an entry per word and tag.
+	 * 
 	 * @return the wordToTagCount
 	 */
 	public HashMap<String, HashMap<String, Integer>> getWordToTagCount()
 	{
+		buildWordCounts();
 		return wordToTagCount;
 	}
 	
+	/**
+	 * @return whether the tag triples are counted, as a trigram
+	 *         {@link HMMGenerator} needs
+	 */
+	public boolean hasTrigramCounts()
+	{
+		return trigrams;
+	}
+	
+	/**
+	 * @return the merged {@link TrainingCounts} of the training set
+	 */
+	TrainingCounts getCounts()
+	{
+		return counts;
+	}
+	
+	/**
+	 * Builds the word maps from the training counts.
+	 */
+	private synchronized void buildWordCounts()
+	{
+		if (wordToTagCount != null)
+			return;
+		
+		HashMap<String, HashMap<String, Integer>> tagToWords = new HashMap<String, HashMap<String, Integer>>();
+		HashMap<String, HashMap<String, Integer>> wordToTags = new HashMap<String, HashMap<String, Integer>>();
+		counts.copyWordsTo(tagToWords, wordToTags);
+		tagToWordCount = tagToWords;
+		wordToTagCount = wordToTags;
+	}
+	
 	/**
 	 * @return the tagToTagCount
 	 */
@@ -69,175 +135,352 @@ public class HMMParser
 	}
 	
 	/**
+	 * Parses the training set in parallel on the common {@link ForkJoinPool}.
+	 * 
 	 * @throws IOException
 	 * @throws HMMParserException
 	 */
 	public HMMParser(String trainingSetFile) throws IOException,
 	        HMMParserException
 	{
-		this.tagCount = new HashMap<String, Integer>();
-		this.tagToWordCount = new HashMap<String, HashMap<String, Integer>>();
-		this.wordToTagCount = new HashMap<String, HashMap<String, Integer>>();
-		this.tagToTagCount = new HashMap<String, HashMap<String, Integer>>();
-		parseTrainingSet(trainingSetFile);
+		this(trainingSetFile, false);
 	}
 	
 	/**
+	 * Parses the training set in parallel on the common {@link ForkJoinPool},
+	 * with or without the tag triple counts.
+	 * 
 	 * @param trainingSetFile
-	 * @throws HMMParserException
+	 *            {@link String}
+	 * @param trigrams
+	 *            whether to count the tag triples of a trigram model
 	 * @throws IOException
+	 * @throws HMMParserException
 	 */
-	private void parseTrainingSet(String trainingSetFile)
-	        throws HMMParserException, IOException
+	public HMMParser(String trainingSetFile, boolean trigrams)
+	        throws IOException, HMMParserException
 	{
-		boolean isStart = false;
-		String prevTag = "###";
-		BufferedReader reader = null;
-		try
-		{
-			reader = new BufferedReader(new InputStreamReader(
-			        new FileInputStream(trainingSetFile)));
-			String line;
-			while ((line = reader.readLine()) != null)
-			{
-				if (line.equals("###/###"))
-					isStart = (isStart) ? false : true;
-				
-				prevTag = parseLine(line, prevTag);
-				if (!isStart)
-				{
-					isStart = true;
-					tagtoTagCount(prevTag, "###");
-					prevTag = "###";
-				}
-			}
-		}
-		catch (Exception e)
-		{
-			throw new HMMParserException(e);
-		}
-		finally
-		{
-			if (reader != null)
-				reader.close();
-		}
+		this(trainingSetFile, ForkJoinPool.commonPool(), trigrams);
 	}
 	
 	/**
-	 * @param line
-	 * @return
+	 * Parses the training set in parallel on the given executor.
+	 * 
+	 * @param trainingSetFile
+	 *            {@link String}
+	 * @param executor
+	 *            {@link ExecutorService} counting the shards of the training
+	 *            set
+	 * @throws IOException
+	 * @throws HMMParserException
 	 */
-	private String parseLine(String line, String prevTag)
+	public HMMParser(String trainingSetFile, ExecutorService executor)
+	        throws IOException, HMMParserException
 	{
-		String[] posTaggerWord = line.split("/");
-		String word = posTaggerWord[0].toLowerCase();
-		String tag = posTaggerWord[1];
-		
-		tagCount(tag);
-		tagToWordCount(tag, word);
-		wordToTagCount(word, tag);
-		tagtoTagCount(prevTag, tag);
-		
-		return tag;
-		
+		this(trainingSetFile, executor, false);
 	}
 	
 	/**
-	 * Update the number of tags used in the training set.
+	 * Parses the training set in parallel on the given executor, with or
+	 * without the tag triple counts.
 	 * 
-	 * @param tag
+	 * @param trainingSetFile
 	 *            {@link String}
+	 * @param executor
+	 *            {@link ExecutorService} counting the shards of the training
+	 *            set
+	 * @param trigrams
+	 *            whether to count the tag triples of a trigram model
+	 * @throws IOException
+	 * @throws HMMParserException
 	 */
-	private void tagCount(String tag)
+	public HMMParser(String trainingSetFile, ExecutorService executor,
+	        boolean trigrams) throws IOException, HMMParserException
 	{
-		put(tagCount, tag);
+		this.trigrams = trigrams;
+		this.tagCount = new HashMap<String, Integer>();
+		this.tagToTagCount = new HashMap<String, HashMap<String, Integer>>();
+		this.executor = executor;
+		this.counts = countTrainingSet(trainingSetFile);
+		counts.copyTagsTo(tagCount, tagToTagCount);
 	}
 	
 	/**
-	 * Updates the word count under the tag.
+	 * Adds the counts of another annotated file, in the format of the
+	 * training set, to the counts of the parser. The tag maps are updated and
+	 * the word maps are rebuilt on their next use.
 	 * 
-	 * @param tag
-	 *            {@link String}
-	 * @param word
+	 * @param trainingSetFile
 	 *            {@link String}
+	 * @throws IOException
+	 * @throws HMMParserException
 	 */
-	private void tagToWordCount(String tag, String word)
+	public void addTrainingSet(String trainingSetFile) throws IOException,
+	        HMMParserException
 	{
-		if (this.tagToWordCount.containsKey(tag))
-		{
-			put(this.tagToWordCount.get(tag), word);
-		}
-		else
-		{
-			HashMap<String, Integer> wordCountContainer = new HashMap<String, Integer>();
-			wordCountContainer.put(word, 1);
-			this.tagToWordCount.put(tag, wordCountContainer);
-		}
+		add(countTrainingSet(trainingSetFile));
 	}
 	
 	/**
-	 * Updates the corresponding word counts being in the state of the tag in a
-	 * given sentence.
+	 * Adds the counts of one annotated sentence to the counts of the parser,
+	 * as if it was read from the training set followed by a ###/### line.
 	 * 
-	 * @param word
-	 *            {@link String}
-	 * @param tag
-	 *            {@link String}
+	 * @param words
+	 *            the words of the sentence, without boundary markers
+	 * @param tags
+	 *            the tag of each word
+	 */
+	public void addSentence(String[] words, String[] tags)
+	{
+		add(countSentence(words, tags));
+	}
+	
+	/**
+	 * Merges the counts of new annotated data into the counts of the parser.
+	 * 
+	 * @param delta
+	 *            {@link TrainingCounts} of the new data
 	 */
-	private void wordToTagCount(String word, String tag)
+	synchronized void add(TrainingCounts delta)
 	{
-		if (this.wordToTagCount.containsKey(word))
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		long startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+		long startBytes = metrics.isEnabled() ? TaggerMetrics
+		        .allocatedBytes() : 0;
+		counts.merge(delta);
+		HashMap<String, Integer> tags = new HashMap<String, Integer>();
+		HashMap<String, HashMap<String, Integer>> tagToTags = new HashMap<String, HashMap<String, Integer>>();
+		counts.copyTagsTo(tags, tagToTags);
+		tagCount = tags;
+		tagToTagCount = tagToTags;
+		tagToWordCount = null;
+		wordToTagCount = null;
+		if (metrics.isEnabled())
+			metrics.record(TaggerMetrics.Stage.TRAIN, delta
+			        .getSentenceCount(), delta.getTokenCount(), startNanos,
+			        startBytes);
+	}
+	
+	/**
+	 * Counts one annotated sentence into its own {@link TrainingCounts}.
+	 * 
+	 * @param words
+	 *            the words of the sentence, without boundary markers
+	 * @param tags
+	 *            the tag of each word
+	 * @return the {@link TrainingCounts} of the sentence
+	 */
+	TrainingCounts countSentence(String[] words, String[] tags)
+	{
+		if (words.length != tags.length)
+			throw new IllegalArgumentException(words.length + " words but "
+			        + tags.length + " tags");
+		
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		long startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+		long startBytes = metrics.isEnabled() ? TaggerMetrics
+		        .allocatedBytes() : 0;
+		int[] offsets = new int[2 * words.length + 1];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < words.length; i++)
 		{
-			put(this.wordToTagCount.get(word), tag);
+			byte[] word = words[i].getBytes(StandardCharsets.UTF_8);
+			byte[] tag = tags[i].getBytes(StandardCharsets.UTF_8);
+			bytes.write(word, 0, word.length);
+			offsets[2 * i + 1] = bytes.size();
+			bytes.write(tag, 0, tag.length);
+			offsets[2 * i + 2] = bytes.size();
 		}
-		else
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		ShardCounter counter = new ShardCounter(null, 1, 1, trigrams);
+		for (int i = 0; i < words.length; i++)
 		{
-			HashMap<String, Integer> tagCountContainer = new HashMap<String, Integer>();
-			tagCountContainer.put(tag, 1);
-			this.wordToTagCount.put(word, tagCountContainer);
+			counter.token(buffer, offsets[2 * i], offsets[2 * i + 1],
+			        offsets[2 * i + 1], offsets[2 * i + 2]);
 		}
+		counter.boundary();
+		if (metrics.isEnabled())
+			metrics.record(TaggerMetrics.Stage.PARSE, 1, words.length,
+			        startNanos, startBytes);
+		return counter.counts;
 	}
 	
 	/**
-	 * Insert the relations between current tag and prvious tag.
-	 * Updates the tag count pointing to a tag.
+	 * Splits the memory-mapped training set into shards at the ###/###
+	 * sentence boundaries. Each shard is counted in place into its own
+	 * {@link TrainingCounts} on the executor and the shard counts are merged
+	 * as they complete.
 	 * 
-	 * @param prevTag
-	 *            {@link String}
-	 * @param currentTag
-	 *            {@link String}
+	 * @param trainingSetFile
+	 * @return the merged {@link TrainingCounts} of the training set
+	 * @throws HMMParserException
+	 * @throws IOException
 	 */
-	private void tagtoTagCount(String prevTag, String currentTag)
+	TrainingCounts countTrainingSet(String trainingSetFile)
+	        throws HMMParserException, IOException
 	{
-		if (this.tagToTagCount.containsKey(prevTag))
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		long startNanos = metrics.isEnabled() ? System.nanoTime() : 0;
+		long startBytes = metrics.isEnabled() ? TaggerMetrics
+		        .allocatedBytes() : 0;
+		int parallelism = (executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor)
+		        .getParallelism() : Runtime.getRuntime().availableProcessors();
+		TrainingCounts counts = new TrainingCounts(trigrams);
+		List<Future<TrainingCounts>> shards = new ArrayList<Future<TrainingCounts>>();
+		CorpusReader corpus = new CorpusReader(trainingSetFile);
+		try
 		{
-			put(this.tagToTagCount.get(prevTag), currentTag);
+			long shardCount = Math.min(parallelism * SHARDS_PER_THREAD,
+			        corpus.size() / MIN_SHARD_BYTES);
+			long[] bounds = corpus.split((int) Math.max(1, shardCount));
+			CompletionService<TrainingCounts> completion = new ExecutorCompletionService<TrainingCounts>(
+			        executor);
+			for (int shard = 0; shard + 1 < bounds.length; shard++)
+			{
+				shards.add(completion.submit(new ShardCounter(corpus,
+				        bounds[shard], bounds[shard + 1], trigrams)));
+			}
+			for (int shard = 0; shard < shards.size(); shard++)
+			{
+				counts.merge(completion.take().get());
+			}
 		}
-		else
+		catch (Exception e)
+		{
+			for (Future<TrainingCounts> shard : shards)
+			{
+				shard.cancel(true);
+			}
+			throw new HMMParserException(e);
+		}
+		finally
 		{
-			HashMap<String, Integer> tagCountContainer = new HashMap<String, Integer>();
-			tagCountContainer.put(currentTag, 1);
-			this.tagToTagCount.put(prevTag, tagCountContainer);
+			corpus.close();
 		}
+		if (metrics.isEnabled())
+			metrics.record(TaggerMetrics.Stage.PARSE,
+			        counts.getSentenceCount(), counts.getTokenCount(),
+			        startNanos, startBytes);
+		return counts;
 	}
 	
 	/**
-	 * Increase the value of the key in the conatiner by 1.
-	 * 
-	 * @param container
-	 *            {@link HashMap}
-	 * @param key
-	 *            {@link String}
+	 * Counts one shard of the training set. A shard ends with a ###/###
+	 * line, so every shard but the first starts at the beginning of a
+	 * sentence. A single sentence added to the counts is fed to a counter
+	 * without a corpus, as if read from the middle of a training set.
 	 */
-	private void put(HashMap<String, Integer> container, String key)
+	private static class ShardCounter implements Callable<TrainingCounts>,
+	        CorpusReader.TokenHandler
 	{
-		if (container.containsKey(key))
+		/** The training set */
+		private final CorpusReader corpus;
+		
+		/** File offset of the shard */
+		private final long start;
+		
+		/** File offset after the shard */
+		private final long end;
+		
+		/** The counts of the shard */
+		private final TrainingCounts counts;
+		
+		/** Tag id of the ###/### boundary */
+		private final int boundaryTag;
+		
+		/** Whether the reader is inside a sentence */
+		private boolean isStart;
+		
+		/** Tag id of the previous word */
+		private int prevTag;
+		
+		/**
+		 * The two previous tags of the sentence for the trigram counts,
+		 * ###/### at the start of a sentence.
+		 */
+		private int historyTag;
+		
+		private int prevHistoryTag;
+		
+		/**
+		 * @param corpus
+		 *            {@link CorpusReader}, null when the tokens are fed
+		 *            directly
+		 * @param start
+		 * @param end
+		 * @param trigrams
+		 *            whether to count the tag triples
+		 */
+		ShardCounter(CorpusReader corpus, long start, long end,
+		        boolean trigrams)
+		{
+			this.corpus = corpus;
+			this.start = start;
+			this.end = end;
+			this.counts = new TrainingCounts(trigrams);
+			this.boundaryTag = counts.tagId("###");
+			this.isStart = start > 0;
+			this.prevTag = boundaryTag;
+			this.historyTag = boundaryTag;
+			this.prevHistoryTag = boundaryTag;
+		}
+		
+		/**
+		 * @return the {@link TrainingCounts} of the shard
+		 * @throws IOException
+		 */
+		@Override
+		public TrainingCounts call() throws IOException
 		{
-			container.put(key, container.get(key) + 1);
+			corpus.read(start, end, this);
+			return counts;
 		}
-		else
+		
+		/**
+		 * Counts a word/tag line.
+		 */
+		@Override
+		public void token(ByteBuffer buffer, int wordStart, int wordEnd,
+		        int tagStart, int tagEnd)
 		{
-			container.put(key, 1);
+			prevTag = counts.count(buffer, wordStart, wordEnd, tagStart,
+			        tagEnd, prevTag);
+			counts.countTrigram(prevHistoryTag, historyTag, prevTag);
+			prevHistoryTag = historyTag;
+			historyTag = prevTag;
+			endSentence();
+		}
+		
+		/**
+		 * The ###/### line is counted as a word of its own and toggles
+		 * between the start and the end of a sentence. For the trigram
+		 * counts it ends the sentence with a transition into ###.
+		 */
+		@Override
+		public void boundary()
+		{
+			if (historyTag != boundaryTag)
+				counts.countTrigram(prevHistoryTag, historyTag, boundaryTag);
+			historyTag = boundaryTag;
+			prevHistoryTag = boundaryTag;
+			isStart = (isStart) ? false : true;
+			counts.count("###", boundaryTag, prevTag);
+			prevTag = boundaryTag;
+			endSentence();
+		}
+		
+		/**
+		 * Counts the transition into the boundary after the last word of a
+		 * sentence.
+		 */
+		private void endSentence()
+		{
+			if (!isStart)
+			{
+				isStart = true;
+				counts.countTransition(prevTag, boundaryTag);
+				prevTag = boundaryTag;
+			}
 		}
 	}
 }
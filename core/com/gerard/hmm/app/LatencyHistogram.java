@@ -0,0 +1,157 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Gerard
+ *         Concurrent histogram of latencies in nanoseconds, laid out like an
+ *         HdrHistogram: values below 2^SUB_BUCKET_BITS get a bucket each, and
+ *         every power of two above is split into 2^(SUB_BUCKET_BITS - 1)
+ *         linear buckets, so any percentile is reported within about 6% of
+ *         the recorded value over the whole range of a long, in a fixed
+ *         array of counters. Recording takes no lock and allocates nothing.
+ */
+public class LatencyHistogram
+{
+	/** Bits of precision of a bucket */
+	private static final int      SUB_BUCKET_BITS = 5;
+	
+	/** Number of linear buckets per power of two */
+	private static final int      HALF_BUCKETS    = 1 << (SUB_BUCKET_BITS - 1);
+	
+	/** Number of buckets covering every non-negative long */
+	private static final int      BUCKETS         = (65 - SUB_BUCKET_BITS) * HALF_BUCKETS;
+	
+	/** Count of the values of each bucket */
+	private final AtomicLongArray counts;
+	
+	/** Sum of the recorded values */
+	private final LongAdder       sum;
+	
+	/** Largest recorded value */
+	private final AtomicLong      max;
+	
+	/**
+	 * Initialize an empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+	
+	/**
+	 * Records a value, negative values being recorded as 0.
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		sum.add(value);
+		long previous = max.get();
+		while (value > previous && !max.compareAndSet(previous, value))
+		{
+			previous = max.get();
+		}
+	}
+	
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount()
+	{
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			count += counts.get(i);
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the mean of the recorded values, 0 when empty
+	 */
+	public double getMean()
+	{
+		long count = getCount();
+		return (count == 0) ? 0.0 : sum.doubleValue() / count;
+	}
+	
+	/**
+	 * @return the largest recorded value
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the largest value of the bucket holding the percentile, capped
+	 *         by the largest recorded value, 0 when empty
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long count = getCount();
+		if (count == 0)
+			return 0;
+		long target = Math.max(1,
+		        (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Empties the histogram. Values recorded meanwhile may be kept or lost.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts.set(i, 0);
+		}
+		sum.reset();
+		max.set(0);
+	}
+	
+	/**
+	 * @param value
+	 *            non-negative value
+	 * @return the bucket of the value
+	 */
+	private static int bucket(long value)
+	{
+		int shift = 64 - SUB_BUCKET_BITS - Long.numberOfLeadingZeros(value);
+		if (shift <= 0)
+			return (int) value;
+		return shift * HALF_BUCKETS + (int) (value >>> shift);
+	}
+	
+	/**
+	 * @param bucket
+	 * @return the largest value falling in the bucket
+	 */
+	private static long highestValue(int bucket)
+	{
+		if (bucket < 2 * HALF_BUCKETS)
+			return bucket;
+		int shift = bucket / HALF_BUCKETS - 1;
+		long subBucket = bucket % HALF_BUCKETS + HALF_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
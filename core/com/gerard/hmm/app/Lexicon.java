@@ -0,0 +1,786 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Gerard
+ *         The vocabulary and the emissions of an {@link HMMModel} packed in a
+ *         single {@link ByteBuffer}. A compiled model keeps it in a direct
+ *         buffer off the Java heap and a model loaded from a file serves its
+ *         lookups straight from the mapped buffer, so even a vocabulary of
+ *         millions of words costs the garbage collector nothing. The
+ *         vocabulary is frozen, so words are found through a minimal perfect
+ *         hash built once when the lexicon is packed: the 64 bit hash of a
+ *         word picks one of about V / 4 buckets, and the pilot of the bucket
+ *         picks the slot of the word among exactly V slots with no probing.
+ *         The slot holds the word id, and the low 32 bits of the hash kept
+ *         for each id turn away almost every unknown word before the key
+ *         bytes are compared. The hash and the comparison fold the case of
+ *         the word one code point at a time as {@link WordTable} does,
+ *         straight from a {@link CharSequence} or from UTF-8 bytes, so no
+ *         lookup creates an object. The emissions of each word are a run of
+ *         (tag id, count, log probability) entries ordered by tag id.
+ *         The layout, in little endian order, is a header of the vocabulary
+ *         size V, the entry count E, the bucket count K, the key pool size,
+ *         the code size B and the tag count T followed by int[K] pilots,
+ *         int[V] word ids by slot, int[V] hash fingerprints, int[V + 1] key
+ *         offsets, int[V + 1] emission offsets, int[E]
+ *         emission tags, int[E] emission counts, the log emissions aligned to
+ *         8 bytes and the UTF-8 key pool. The log emissions are double[E] when
+ *         B is 0, and otherwise the (offset, step) scale of each tag as
+ *         double[2T] followed by byte[E] or short[E] codes of a
+ *         {@link QuantizedTable} whose rows are the tags. The decoders never
+ *         read the counts, so a quantized lexicon leaves them out.
+ */
+class Lexicon
+{
+	/** Number of header bytes */
+	private static final int  HEADER       = 24;
+	
+	/** Average number of words of a bucket of the perfect hash */
+	private static final int  BUCKET_LOAD  = 4;
+	
+	/** FNV-1a 64 bit offset basis */
+	private static final long HASH_SEED    = 0xcbf29ce484222325L;
+	
+	/** FNV-1a 64 bit prime */
+	private static final long HASH_PRIME   = 0x100000001b3L;
+	
+	/** Odd multiplier spreading the pilots over the hash bits */
+	private static final long PILOT_SPREAD = 0x9e3779b97f4a7c15L;
+	
+	/** The packed lexicon */
+	private final ByteBuffer  buffer;
+	
+	/** Number of words */
+	private final int         vocabularySize;
+	
+	/** Number of buckets of the perfect hash */
+	private final int         bucketCount;
+	
+	/** Offset of the pilot of each bucket */
+	private final int         pilotsBase;
+	
+	/** Offset of the word id of each slot */
+	private final int         idsBase;
+	
+	/** Offset of the low 32 bits of the hash of each word */
+	private final int         fingerprintsBase;
+	
+	/** Offset of the key offsets */
+	private final int         keysBase;
+	
+	/** Offset of the emission offsets */
+	private final int         wordOffsetsBase;
+	
+	/** Offset of the emission tags */
+	private final int         tagsBase;
+	
+	/** Offset of the emission counts, full precision only */
+	private final int         countsBase;
+	
+	/** Offset of the log emissions */
+	private final int         logEmissionsBase;
+	
+	/** Number of bits of the emission codes, 0 for full precision */
+	private final int         codeBits;
+	
+	/** Offset of the emission codes, after the scales of each tag */
+	private final int         codesBase;
+	
+	/** Offset of the key pool */
+	private final int         poolBase;
+	
+	/**
+	 * Initialize a lexicon over a packed buffer.
+	 * 
+	 * @param packed
+	 *            {@link ByteBuffer} positioned at the start of the lexicon
+	 */
+	Lexicon(ByteBuffer packed)
+	{
+		this.buffer = packed.slice().order(ByteOrder.LITTLE_ENDIAN);
+		this.vocabularySize = buffer.getInt(0);
+		int entryCount = buffer.getInt(4);
+		this.bucketCount = buffer.getInt(8);
+		this.codeBits = buffer.getInt(16);
+		this.pilotsBase = HEADER;
+		this.idsBase = pilotsBase + 4 * bucketCount;
+		this.fingerprintsBase = idsBase + 4 * vocabularySize;
+		this.keysBase = fingerprintsBase + 4 * vocabularySize;
+		this.wordOffsetsBase = keysBase + 4 * (vocabularySize + 1);
+		this.tagsBase = wordOffsetsBase + 4 * (vocabularySize + 1);
+		this.countsBase = tagsBase + 4 * entryCount;
+		this.logEmissionsBase = align(countsBase
+		        + ((codeBits == 0) ? 4 * entryCount : 0));
+		this.codesBase = logEmissionsBase + 16 * buffer.getInt(20);
+		this.poolBase = (codeBits == 0) ? logEmissionsBase + 8 * entryCount
+		        : codesBase + codeBits / 8 * entryCount;
+	}
+	
+	/**
+	 * @param packed
+	 *            {@link ByteBuffer} positioned at the start of a packed
+	 *            lexicon
+	 * @return the number of bytes of the lexicon according to its header, -1
+	 *         when the header is truncated or holds a negative count
+	 */
+	static long packedSize(ByteBuffer packed)
+	{
+		if (packed.remaining() < HEADER)
+			return -1;
+		ByteBuffer header = packed.slice().order(ByteOrder.LITTLE_ENDIAN);
+		long vocabularySize = header.getInt(0);
+		long entryCount = header.getInt(4);
+		long bucketCount = header.getInt(8);
+		long poolSize = header.getInt(12);
+		int codeBits = header.getInt(16);
+		long scaleCount = header.getInt(20);
+		if (vocabularySize < 0 || entryCount < 0 || bucketCount < 0
+		        || poolSize < 0 || scaleCount < 0
+		        || (codeBits != 0 && codeBits != 8 && codeBits != 16))
+			return -1;
+		long countSize = (codeBits == 0) ? 4 * entryCount : 0;
+		long tables = HEADER + 4 * bucketCount + 8 * vocabularySize + 8
+		        * (vocabularySize + 1) + 4 * entryCount + countSize;
+		return ((tables + 7) & ~7L)
+		        + ((codeBits == 0) ? 8 * entryCount : 16 * scaleCount
+		                + codeBits / 8 * entryCount) + poolSize;
+	}
+	
+	/**
+	 * Packs the vocabulary and the emissions into a direct buffer.
+	 * 
+	 * @param words
+	 *            distinct lower cased words indexed by word id
+	 * @param wordOffsets
+	 *            start of the emissions of each word, and the entry count
+	 * @param emissionTags
+	 *            tag id of each emission entry
+	 * @param emissionCounts
+	 *            training count of each emission entry
+	 * @param emissions
+	 *            P(word | tag) of each emission entry
+	 * @return {@link Lexicon}
+	 */
+	static Lexicon build(String[] words, int[] wordOffsets,
+	        int[] emissionTags, int[] emissionCounts, double[] emissions)
+	{
+		return build(words, wordOffsets, emissionTags, emissionCounts,
+		        emissions, 0, 0);
+	}
+	
+	/**
+	 * Packs the vocabulary and the emissions into a direct buffer, with the
+	 * log emissions in full precision or quantized per tag.
+	 * 
+	 * @param words
+	 *            distinct lower cased words indexed by word id
+	 * @param wordOffsets
+	 *            start of the emissions of each word, and the entry count
+	 * @param emissionTags
+	 *            tag id of each emission entry
+	 * @param emissionCounts
+	 *            training count of each emission entry, left out when
+	 *            quantized
+	 * @param emissions
+	 *            P(word | tag) of each emission entry
+	 * @param codeBits
+	 *            0 for full precision, or the 8 or 16 bits of the codes
+	 * @param tagSize
+	 *            number of tags, for the scales of quantized emissions
+	 * @return {@link Lexicon}
+	 */
+	static Lexicon build(String[] words, int[] wordOffsets,
+	        int[] emissionTags, int[] emissionCounts, double[] emissions,
+	        int codeBits, int tagSize)
+	{
+		if (codeBits != 0)
+			QuantizedTable.checkBits(codeBits);
+		int scaleCount = (codeBits == 0) ? 0 : tagSize;
+		int vocabularySize = words.length;
+		int entryCount = wordOffsets[vocabularySize];
+		byte[][] keys = new byte[vocabularySize][];
+		long[] hashes = new long[vocabularySize];
+		int poolSize = 0;
+		for (int word = 0; word < vocabularySize; word++)
+		{
+			keys[word] = words[word].getBytes(StandardCharsets.UTF_8);
+			hashes[word] = hash(keys[word]);
+			poolSize += keys[word].length;
+		}
+		int bucketCount = Math.max(1, (vocabularySize + BUCKET_LOAD - 1)
+		        / BUCKET_LOAD);
+		int countSize = (codeBits == 0) ? 4 * entryCount : 0;
+		int size = align(HEADER + 4 * bucketCount + 8 * vocabularySize + 8
+		        * (vocabularySize + 1) + 4 * entryCount + countSize)
+		        + ((codeBits == 0) ? 8 * entryCount : 16 * scaleCount
+		                + codeBits / 8 * entryCount) + poolSize;
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(
+		        ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(0, vocabularySize);
+		buffer.putInt(4, entryCount);
+		buffer.putInt(8, bucketCount);
+		buffer.putInt(12, poolSize);
+		buffer.putInt(16, codeBits);
+		buffer.putInt(20, scaleCount);
+		Lexicon lexicon = new Lexicon(buffer);
+		
+		int keyOffset = 0;
+		for (int word = 0; word < vocabularySize; word++)
+		{
+			buffer.putInt(lexicon.fingerprintsBase + 4 * word,
+			        (int) hashes[word]);
+			buffer.putInt(lexicon.keysBase + 4 * word, keyOffset);
+			for (byte b : keys[word])
+			{
+				buffer.put(lexicon.poolBase + keyOffset++, b);
+			}
+		}
+		buffer.putInt(lexicon.keysBase + 4 * vocabularySize, keyOffset);
+		lexicon.index(words, hashes);
+		
+		for (int word = 0; word <= vocabularySize; word++)
+		{
+			buffer.putInt(lexicon.wordOffsetsBase + 4 * word,
+			        wordOffsets[word]);
+		}
+		for (int entry = 0; entry < entryCount; entry++)
+		{
+			buffer.putInt(lexicon.tagsBase + 4 * entry, emissionTags[entry]);
+			if (codeBits != 0)
+				continue;
+			buffer.putInt(lexicon.countsBase + 4 * entry,
+			        emissionCounts[entry]);
+			buffer.putDouble(lexicon.logEmissionsBase + 8 * entry,
+			        Math.log(emissions[entry]));
+		}
+		if (codeBits != 0)
+			lexicon.quantize(emissionTags, emissions);
+		return lexicon;
+	}
+	
+	/**
+	 * Builds the minimal perfect hash. The buckets are placed from the
+	 * largest to the smallest, each with the first pilot that sends all its
+	 * words to distinct free slots, so the large buckets meet an almost empty
+	 * table and the single words left at the end each need about V / free
+	 * tries.
+	 * 
+	 * @param words
+	 *            the words indexed by word id
+	 * @param hashes
+	 *            the hash of each word
+	 * @throws IllegalArgumentException
+	 *             when a word occurs twice
+	 */
+	private void index(String[] words, long[] hashes)
+	{
+		// Counting sort of the words by bucket
+		int[] bucketStarts = new int[bucketCount + 1];
+		for (long hash : hashes)
+		{
+			bucketStarts[bucket(hash, bucketCount) + 1]++;
+		}
+		int maxBucket = 0;
+		for (int bucket = 0; bucket < bucketCount; bucket++)
+		{
+			maxBucket = Math.max(maxBucket, bucketStarts[bucket + 1]);
+			bucketStarts[bucket + 1] += bucketStarts[bucket];
+		}
+		int[] members = new int[vocabularySize];
+		int[] next = Arrays.copyOf(bucketStarts, bucketCount);
+		for (int word = 0; word < vocabularySize; word++)
+		{
+			members[next[bucket(hashes[word], bucketCount)]++] = word;
+		}
+		
+		// Counting sort of the buckets by decreasing size
+		int[] sizeStarts = new int[maxBucket + 2];
+		for (int bucket = 0; bucket < bucketCount; bucket++)
+		{
+			int bucketSize = bucketStarts[bucket + 1] - bucketStarts[bucket];
+			sizeStarts[maxBucket - bucketSize + 1]++;
+		}
+		for (int i = 0; i <= maxBucket; i++)
+		{
+			sizeStarts[i + 1] += sizeStarts[i];
+		}
+		int[] order = new int[bucketCount];
+		for (int bucket = 0; bucket < bucketCount; bucket++)
+		{
+			int bucketSize = bucketStarts[bucket + 1] - bucketStarts[bucket];
+			order[sizeStarts[maxBucket - bucketSize]++] = bucket;
+		}
+		
+		boolean[] taken = new boolean[vocabularySize];
+		int[] slots = new int[maxBucket];
+		for (int bucket : order)
+		{
+			int start = bucketStarts[bucket];
+			int bucketSize = bucketStarts[bucket + 1] - start;
+			if (bucketSize == 0)
+				break;
+			for (int i = 1; i < bucketSize; i++)
+			{
+				for (int j = 0; j < i; j++)
+				{
+					// Equal hashes cannot be told apart by any pilot
+					long hash = hashes[members[start + i]];
+					if (hash == hashes[members[start + j]])
+						throw new IllegalArgumentException("Duplicate word "
+						        + words[members[start + i]]);
+				}
+			}
+			int pilot = 0;
+			while (!place(hashes, members, start, bucketSize, pilot, taken,
+			        slots))
+			{
+				pilot++;
+			}
+			buffer.putInt(pilotsBase + 4 * bucket, pilot);
+			for (int i = 0; i < bucketSize; i++)
+			{
+				taken[slots[i]] = true;
+				buffer.putInt(idsBase + 4 * slots[i], members[start + i]);
+			}
+		}
+	}
+	
+	/**
+	 * @param hashes
+	 *            the hash of each word
+	 * @param members
+	 *            the words grouped by bucket
+	 * @param start
+	 *            index of the first word of the bucket in the members
+	 * @param bucketSize
+	 *            number of words of the bucket
+	 * @param pilot
+	 * @param taken
+	 *            whether each slot holds a word
+	 * @param slots
+	 *            receives the slot of each word of the bucket
+	 * @return whether the pilot sends the words of the bucket to distinct
+	 *         free slots
+	 */
+	private boolean place(long[] hashes, int[] members, int start,
+	        int bucketSize, int pilot, boolean[] taken, int[] slots)
+	{
+		for (int i = 0; i < bucketSize; i++)
+		{
+			slots[i] = slot(hashes[members[start + i]], pilot, vocabularySize);
+			if (taken[slots[i]])
+				return false;
+			for (int j = 0; j < i; j++)
+			{
+				if (slots[j] == slots[i])
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the scale of each tag, spanning the log emissions of the tag,
+	 * and the code of each emission entry.
+	 * 
+	 * @param emissionTags
+	 *            tag id of each emission entry
+	 * @param emissions
+	 *            P(word | tag) of each emission entry
+	 */
+	private void quantize(int[] emissionTags, double[] emissions)
+	{
+		int tagSize = (codesBase - logEmissionsBase) / 16;
+		double[] min = new double[tagSize];
+		double[] max = new double[tagSize];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		for (int entry = 0; entry < emissions.length; entry++)
+		{
+			double log = Math.log(emissions[entry]);
+			if (log == Double.NEGATIVE_INFINITY)
+				continue;
+			min[emissionTags[entry]] = Math.min(min[emissionTags[entry]], log);
+			max[emissionTags[entry]] = Math.max(max[emissionTags[entry]], log);
+		}
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			boolean empty = max[tag] < min[tag];
+			buffer.putDouble(logEmissionsBase + 16 * tag, empty ? 0.0
+			        : min[tag]);
+			buffer.putDouble(logEmissionsBase + 16 * tag + 8, empty ? 0.0
+			        : QuantizedTable.step(min[tag], max[tag], codeBits));
+		}
+		for (int entry = 0; entry < emissions.length; entry++)
+		{
+			int scale = logEmissionsBase + 16 * emissionTags[entry];
+			int code = QuantizedTable.encode(Math.log(emissions[entry]),
+			        buffer.getDouble(scale), buffer.getDouble(scale + 8),
+			        codeBits);
+			if (codeBits == 8)
+				buffer.put(codesBase + entry, (byte) code);
+			else
+				buffer.putShort(codesBase + 2 * entry, (short) code);
+		}
+	}
+	
+	/**
+	 * @return a read only view of the packed lexicon
+	 */
+	ByteBuffer getBuffer()
+	{
+		return buffer.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * @return the number of bits of the emission codes, 0 for full precision
+	 */
+	int getCodeBits()
+	{
+		return codeBits;
+	}
+	
+	/**
+	 * @return the number of bytes of the packed lexicon
+	 */
+	int byteSize()
+	{
+		return buffer.capacity();
+	}
+	
+	/**
+	 * @return the number of words
+	 */
+	int getVocabularySize()
+	{
+		return vocabularySize;
+	}
+	
+	/**
+	 * @return the number of emission entries
+	 */
+	int getEntryCount()
+	{
+		return buffer.getInt(4);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return the word
+	 */
+	String getWord(int wordId)
+	{
+		int start = buffer.getInt(keysBase + 4 * wordId);
+		int end = buffer.getInt(keysBase + 4 * (wordId + 1));
+		return WordTable.decode(buffer, poolBase + start, poolBase + end);
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}, lower cased during the lookup
+	 * @return the word id, -1 when the word is unknown
+	 */
+	int find(CharSequence word)
+	{
+		long hash = HASH_SEED;
+		for (int i = 0; i < word.length();)
+		{
+			char c = word.charAt(i);
+			if (c < 0x80)
+			{
+				hash = (hash ^ WordTable.fold((byte) c, true)) * HASH_PRIME;
+				i++;
+			}
+			else
+			{
+				int codePoint = Character.codePointAt(word, i);
+				i += Character.charCount(codePoint);
+				hash = hash(hash, WordTable.foldCodePoint(codePoint));
+			}
+		}
+		int id = candidate(mix(hash));
+		return (id >= 0 && equals(id, word)) ? id : -1;
+	}
+	
+	/**
+	 * @param source
+	 *            {@link ByteBuffer} holding the word as UTF-8, lower cased
+	 *            during the lookup
+	 * @param start
+	 * @param end
+	 * @return the word id, -1 when the word is unknown
+	 */
+	int find(ByteBuffer source, int start, int end)
+	{
+		long hash = HASH_SEED;
+		for (int i = start; i < end;)
+		{
+			byte b = source.get(i);
+			if (b >= 0)
+			{
+				hash = (hash ^ WordTable.fold(b, true)) * HASH_PRIME;
+				i++;
+			}
+			else
+			{
+				int length = WordTable.utf8SequenceLength(source, i, end);
+				hash = hash(hash, WordTable.foldCodePoint(WordTable
+				        .codePointAt(source, i, length)));
+				i += length;
+			}
+		}
+		int id = candidate(mix(hash));
+		return (id >= 0 && equals(id, source, start, end)) ? id : -1;
+	}
+	
+	/**
+	 * @param wordId
+	 * @return index of the first emission entry of the word
+	 */
+	int getEmissionStart(int wordId)
+	{
+		return buffer.getInt(wordOffsetsBase + 4 * wordId);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return index after the last emission entry of the word
+	 */
+	int getEmissionEnd(int wordId)
+	{
+		return buffer.getInt(wordOffsetsBase + 4 * (wordId + 1));
+	}
+	
+	/**
+	 * @param index
+	 * @return the tag id of the emission entry
+	 */
+	int getEmissionTag(int index)
+	{
+		return buffer.getInt(tagsBase + 4 * index);
+	}
+	
+	/**
+	 * @param index
+	 * @return the training count of the emission entry, 0 when quantized
+	 */
+	int getEmissionCount(int index)
+	{
+		if (codeBits != 0)
+			return 0;
+		return buffer.getInt(countsBase + 4 * index);
+	}
+	
+	/**
+	 * @param index
+	 * @return log P(word | tag) of the emission entry
+	 */
+	double getLogEmissionAt(int index)
+	{
+		if (codeBits == 0)
+			return buffer.getDouble(logEmissionsBase + 8 * index);
+		int scale = logEmissionsBase + 16 * getEmissionTag(index);
+		int code = (codeBits == 8) ? buffer.get(codesBase + index) & 0xFF
+		        : buffer.getShort(codesBase + 2 * index) & 0xFFFF;
+		return QuantizedTable.decode(code, buffer.getDouble(scale),
+		        buffer.getDouble(scale + 8));
+	}
+	
+	/**
+	 * @param hash
+	 *            the mixed hash of a folded word
+	 * @return the id of the only word that may have the hash, -1 when the
+	 *         fingerprint of the hash rules out every word
+	 */
+	private int candidate(long hash)
+	{
+		if (vocabularySize == 0)
+			return -1;
+		int pilot = buffer.getInt(pilotsBase + 4 * bucket(hash, bucketCount));
+		int id = buffer.getInt(idsBase + 4
+		        * slot(hash, pilot, vocabularySize));
+		return (buffer.getInt(fingerprintsBase + 4 * id) == (int) hash) ? id
+		        : -1;
+	}
+	
+	/**
+	 * @param id
+	 * @param source
+	 *            {@link ByteBuffer} holding UTF-8 text
+	 * @param start
+	 * @param end
+	 * @return whether the key of the id equals the folded bytes
+	 */
+	private boolean equals(int id, ByteBuffer source, int start, int end)
+	{
+		int offset = poolBase + buffer.getInt(keysBase + 4 * id);
+		int keyEnd = poolBase + buffer.getInt(keysBase + 4 * (id + 1));
+		for (int i = start; i < end;)
+		{
+			byte b = source.get(i);
+			if (b >= 0)
+			{
+				if (offset == keyEnd
+				        || buffer.get(offset++) != WordTable.fold(b, true))
+					return false;
+				i++;
+			}
+			else
+			{
+				int length = WordTable.utf8SequenceLength(source, i, end);
+				int codePoint = WordTable.codePointAt(source, i, length);
+				offset = match(offset, keyEnd,
+				        WordTable.foldCodePoint(codePoint));
+				if (offset < 0)
+					return false;
+				i += length;
+			}
+		}
+		return offset == keyEnd;
+	}
+	
+	/**
+	 * @param id
+	 * @param word
+	 *            {@link CharSequence}
+	 * @return whether the key of the id equals the folded word
+	 */
+	private boolean equals(int id, CharSequence word)
+	{
+		int offset = poolBase + buffer.getInt(keysBase + 4 * id);
+		int keyEnd = poolBase + buffer.getInt(keysBase + 4 * (id + 1));
+		for (int i = 0; i < word.length();)
+		{
+			char c = word.charAt(i);
+			if (c < 0x80)
+			{
+				if (offset == keyEnd
+				        || buffer.get(offset++) != WordTable.fold((byte) c,
+				                true))
+					return false;
+				i++;
+			}
+			else
+			{
+				int codePoint = Character.codePointAt(word, i);
+				i += Character.charCount(codePoint);
+				offset = match(offset, keyEnd,
+				        WordTable.foldCodePoint(codePoint));
+				if (offset < 0)
+					return false;
+			}
+		}
+		return offset == keyEnd;
+	}
+	
+	/**
+	 * @param offset
+	 *            offset of the next key byte
+	 * @param keyEnd
+	 *            offset after the last key byte
+	 * @param codePoint
+	 *            a folded code point
+	 * @return the offset after the UTF-8 bytes of the code point when the
+	 *         key holds them at the offset, -1 otherwise
+	 */
+	private int match(int offset, int keyEnd, int codePoint)
+	{
+		int length = WordTable.utf8Length(codePoint);
+		if (offset + length > keyEnd)
+			return -1;
+		for (int i = 0; i < length; i++)
+		{
+			if (buffer.get(offset + i) != WordTable.utf8Byte(codePoint, i,
+			        length))
+				return -1;
+		}
+		return offset + length;
+	}
+	
+	/**
+	 * @param key
+	 *            folded UTF-8 bytes
+	 * @return the mixed FNV-1a hash of the key
+	 */
+	private static long hash(byte[] key)
+	{
+		long hash = HASH_SEED;
+		for (byte b : key)
+		{
+			hash = (hash ^ (b & 0xFF)) * HASH_PRIME;
+		}
+		return mix(hash);
+	}
+	
+	/**
+	 * @param hash
+	 *            the FNV-1a hash of the preceding bytes
+	 * @param codePoint
+	 *            a folded code point
+	 * @return the hash extended with the UTF-8 bytes of the code point
+	 */
+	private static long hash(long hash, int codePoint)
+	{
+		int length = WordTable.utf8Length(codePoint);
+		for (int i = 0; i < length; i++)
+		{
+			hash = (hash ^ (WordTable.utf8Byte(codePoint, i, length) & 0xFF))
+			        * HASH_PRIME;
+		}
+		return hash;
+	}
+	
+	/**
+	 * @param hash
+	 * @return the hash with all bits mixed, the finalizer of MurmurHash3
+	 */
+	private static long mix(long hash)
+	{
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+	
+	/**
+	 * @param hash
+	 *            a mixed hash
+	 * @param bucketCount
+	 * @return the bucket of the hash, from its high 32 bits
+	 */
+	private static int bucket(long hash, int bucketCount)
+	{
+		return (int) (((hash >>> 32) * bucketCount) >>> 32);
+	}
+	
+	/**
+	 * @param hash
+	 *            a mixed hash
+	 * @param pilot
+	 *            the pilot of the bucket of the hash
+	 * @param slotCount
+	 * @return the slot of the hash under the pilot
+	 */
+	private static int slot(long hash, int pilot, int slotCount)
+	{
+		long mixed = mix(hash ^ ((pilot + 1L) * PILOT_SPREAD));
+		return (int) (((mixed >>> 32) * slotCount) >>> 32);
+	}
+	
+	/**
+	 * @param offset
+	 * @return the offset rounded up to a multiple of 8
+	 */
+	static int align(int offset)
+	{
+		return (offset + 7) & ~7;
+	}
+}
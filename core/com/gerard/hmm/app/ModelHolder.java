@@ -0,0 +1,97 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Gerard
+ *         Holds the current {@link HMMModel} of a long running tagger and
+ *         lets a newly trained or loaded model replace it while tagging
+ *         threads keep running. Reads are a single volatile load, without
+ *         locking, and a model is published atomically. A tagger reads the
+ *         holder once per sentence, so a sentence always finishes on the
+ *         model it started with, and the old model stays usable until its
+ *         last sentence is done. That holds for a model loaded from a file
+ *         only as long as its file is never rewritten in place, since the
+ *         old model reads the mapped bytes of the file; see
+ *         {@link #load(String)}.
+ */
+public class ModelHolder
+{
+	/** The current model */
+	private final AtomicReference<HMMModel> current;
+	
+	/**
+	 * @param model
+	 *            the initial {@link HMMModel}
+	 */
+	public ModelHolder(HMMModel model)
+	{
+		if (model == null)
+			throw new IllegalArgumentException("No model");
+		this.current = new AtomicReference<HMMModel>(model);
+	}
+	
+	/**
+	 * @return the current {@link HMMModel}
+	 */
+	public HMMModel get()
+	{
+		return current.get();
+	}
+	
+	/**
+	 * Publishes a new model for the sentences started from now on.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @return the replaced model
+	 */
+	public HMMModel swap(HMMModel model)
+	{
+		if (model == null)
+			throw new IllegalArgumentException("No model");
+		return current.getAndSet(model);
+	}
+	
+	/**
+	 * Publishes a new model unless another one was published since the
+	 * expected model was read.
+	 * 
+	 * @param expected
+	 *            the model the new one was derived from
+	 * @param model
+	 *            {@link HMMModel}
+	 * @return whether the model was published
+	 */
+	public boolean swap(HMMModel expected, HMMModel model)
+	{
+		if (model == null)
+			throw new IllegalArgumentException("No model");
+		return current.compareAndSet(expected, model);
+	}
+	
+	/**
+	 * Maps a model file and publishes its model. The file is mapped before
+	 * the swap, so tagging never waits for the load.
+	 * The file must be a new file, such as one written by
+	 * {@link HMMModelFile#write(HMMModel, String)}, which renames a complete
+	 * temporary file over the model file. It must never be a file rewritten
+	 * in place: the current model may be mapped from that same file, and its
+	 * sentences in progress would read the new bytes at the old offsets.
+	 * 
+	 * @param modelFile
+	 *            {@link String}
+	 * @return the replaced model
+	 * @throws IOException
+	 *             when the file is not a model file, the current model then
+	 *             being kept
+	 */
+	public HMMModel load(String modelFile) throws IOException
+	{
+		return swap(HMMModelFile.map(modelFile));
+	}
+}
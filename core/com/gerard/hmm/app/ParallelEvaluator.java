@@ -0,0 +1,227 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.gerard.hmm.exception.HMMParserException;
+
+/**
+ * @author Gerard
+ *         Evaluates a model against a hand tagged test file in parallel. The
+ *         memory-mapped file is split into shards at the ###/### sentence
+ *         boundaries, as {@link HMMParser} splits a training set, and each
+ *         shard is decoded in place by its own {@link SentenceDecoder} into
+ *         its own {@link Evaluation}. The shard evaluations are merged as
+ *         they complete, so the result does not depend on the number of
+ *         threads.
+ */
+public class ParallelEvaluator
+{
+	/** Number of shards of the test set per decoding thread */
+	private static final int      SHARDS_PER_THREAD = 4;
+	
+	/** Smallest number of bytes of a test set shard */
+	private static final long     MIN_SHARD_BYTES   = 1 << 14;
+	
+	/** {@link HMMModel} */
+	private final HMMModel        model;
+	
+	/** Decodes the shards of the test set */
+	private final ExecutorService executor;
+	
+	/** Number of threads of the executor */
+	private final int             parallelism;
+	
+	/**
+	 * Initialize an evaluator running on the common {@link ForkJoinPool}.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	public ParallelEvaluator(HMMModel model)
+	{
+		this(model, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Initialize an evaluator running on the given executor.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param executor
+	 *            {@link ExecutorService} decoding the shards of the test set
+	 */
+	public ParallelEvaluator(HMMModel model, ExecutorService executor)
+	{
+		this.model = model;
+		this.executor = executor;
+		this.parallelism = (executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor)
+		        .getParallelism() : Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Decodes every sentence of the test file and compares the tags with the
+	 * hand tags.
+	 * 
+	 * @param testFile
+	 *            {@link String}
+	 * @return the merged {@link Evaluation}
+	 * @throws HMMParserException
+	 * @throws IOException
+	 */
+	public Evaluation evaluate(String testFile) throws HMMParserException,
+	        IOException
+	{
+		Evaluation evaluation = new Evaluation(model);
+		List<Future<Evaluation>> shards = new ArrayList<Future<Evaluation>>();
+		CorpusReader corpus = new CorpusReader(testFile);
+		try
+		{
+			long shardCount = Math.min(parallelism * SHARDS_PER_THREAD,
+			        corpus.size() / MIN_SHARD_BYTES);
+			long[] bounds = corpus.split((int) Math.max(1, shardCount));
+			CompletionService<Evaluation> completion = new ExecutorCompletionService<Evaluation>(
+			        executor);
+			for (int shard = 0; shard + 1 < bounds.length; shard++)
+			{
+				shards.add(completion.submit(new ShardEvaluator(corpus,
+				        bounds[shard], bounds[shard + 1])));
+			}
+			for (int shard = 0; shard < shards.size(); shard++)
+			{
+				evaluation.merge(completion.take().get());
+			}
+		}
+		catch (Exception e)
+		{
+			for (Future<Evaluation> shard : shards)
+			{
+				shard.cancel(true);
+			}
+			throw new HMMParserException(e);
+		}
+		finally
+		{
+			corpus.close();
+		}
+		return evaluation;
+	}
+	
+	/**
+	 * Collects the word ids and hand tag ids of each sentence of a shard,
+	 * and decodes and compares them at the sentence boundary.
+	 */
+	private class ShardEvaluator implements Callable<Evaluation>,
+	        CorpusReader.TokenHandler
+	{
+		/** The test set */
+		private final CorpusReader    corpus;
+		
+		/** File offset of the shard */
+		private final long            start;
+		
+		/** File offset after the shard */
+		private final long            end;
+		
+		/** The counts of the shard */
+		private final Evaluation      evaluation;
+		
+		/** Decodes the sentences of the shard */
+		private final SentenceDecoder decoder;
+		
+		/** Word ids of the sentence */
+		private int[]                 wordIds  = new int[64];
+		
+		/** Hand tag ids of the sentence, -1 for a tag unknown to the model */
+		private int[]                 goldTags = new int[64];
+		
+		/** The unknown words of the sentence, null for known words */
+		private String[]              tokens   = new String[64];
+		
+		/** Number of words of the sentence */
+		private int                   length;
+		
+		/**
+		 * @param corpus
+		 *            {@link CorpusReader}
+		 * @param start
+		 * @param end
+		 */
+		ShardEvaluator(CorpusReader corpus, long start, long end)
+		{
+			this.corpus = corpus;
+			this.start = start;
+			this.end = end;
+			this.evaluation = new Evaluation(model);
+			this.decoder = SentenceDecoder.forModel(model);
+		}
+		
+		/**
+		 * @return the {@link Evaluation} of the shard
+		 * @throws IOException
+		 */
+		@Override
+		public Evaluation call() throws IOException
+		{
+			corpus.read(start, end, this);
+			boundary();
+			return evaluation;
+		}
+		
+		/**
+		 * Adds a word of the sentence.
+		 */
+		@Override
+		public void token(ByteBuffer buffer, int wordStart, int wordEnd,
+		        int tagStart, int tagEnd)
+		{
+			if (length == wordIds.length)
+			{
+				wordIds = Arrays.copyOf(wordIds, length * 2);
+				goldTags = Arrays.copyOf(goldTags, length * 2);
+				tokens = Arrays.copyOf(tokens, length * 2);
+			}
+			wordIds[length] = model.getWordId(buffer, wordStart, wordEnd);
+			tokens[length] = (wordIds[length] < 0) ? WordTable.decode(buffer,
+			        wordStart, wordEnd) : null;
+			goldTags[length] = model.getTagId(buffer, tagStart, tagEnd);
+			length++;
+		}
+		
+		/**
+		 * Decodes the sentence and compares the result with the hand tags.
+		 */
+		@Override
+		public void boundary()
+		{
+			if (length == 0)
+				return;
+			
+			TaggerMetrics metrics = TaggerMetrics.getDefault();
+			boolean measured = metrics.isEnabled();
+			long startNanos = measured ? System.nanoTime() : 0;
+			long startBytes = measured ? TaggerMetrics.allocatedBytes() : 0;
+			int[] probableTags = decoder.decode(wordIds, tokens, length);
+			if (measured)
+				metrics.recordSentence(length, decoder.getUnknownCount(),
+				        startNanos, startBytes);
+			for (int i = 0; i < length; i++)
+			{
+				evaluation.count(goldTags[i], probableTags[i], wordIds[i] < 0);
+			}
+			length = 0;
+		}
+	}
+}
@@ -0,0 +1,446 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+/**
+ * @author Gerard
+ *         Forward-backward decoder computing the posterior distribution of
+ *         the tags of each token over a compiled {@link HMMModel}. The
+ *         forward and backward passes run in probability space on dense
+ *         position x tag rows, rescaled to sum to 1 at each position so long
+ *         sentences do not underflow, and the scaling cancels out when the
+ *         posteriors of a position are normalized. Each step is a loop over a
+ *         whole row of the transition matrix, an axpy for the forward pass
+ *         and a dot product for the backward pass, which the JIT compiles to
+ *         SIMD code, and only the previous states with a non-zero score are
+ *         visited. Emissions are those of the {@link ViterbiDecoder}: the
+ *         entries of the {@link Lexicon} for known words and the
+ *         {@link UnknownWordModel} through an {@link UnknownWordCache} for
+ *         unknown words. Trigram models are decoded with their bigram
+ *         transitions. As a {@link SentenceDecoder} it tags each token with
+ *         its most probable tag. The scratch rows are reused between
+ *         sentences, so a decoder must not be shared between threads.
+ */
+public class PosteriorDecoder implements SentenceDecoder
+{
+	/**
+	 * {@link HMMModel}
+	 */
+	private final HMMModel         model;
+	
+	/** Number of tags in the model */
+	private final int              tagSize;
+	
+	/** Tag id of the sentence boundary */
+	private final int              boundaryTag;
+	
+	/** P(tag | prevTag) stored at [prevTag * tagSize + tag] */
+	private final double[]         transitions;
+	
+	/** Log emissions of the unknown words seen recently */
+	private final UnknownWordCache unknownEmissions;
+	
+	/**
+	 * Emission weight of each tag of each position, 0 for the tags the token
+	 * cannot have, stored at [position * tagSize + tag]
+	 */
+	private double[]               emissions;
+	
+	/** Scaled forward probabilities, laid out as emissions */
+	private double[]               forward;
+	
+	/** Scaled backward probabilities, laid out as emissions */
+	private double[]               backward;
+	
+	/** Emission times backward probability of the next position */
+	private final double[]         weighted;
+	
+	/** Word ids of the sentence being decoded, -1 for unknown words */
+	private int[]                  wordIds;
+	
+	/** Number of unknown words of the last sentence decoded */
+	private int                    unknownCount;
+	
+	/**
+	 * Initialize the decoder for the given model.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	public PosteriorDecoder(HMMModel model)
+	{
+		this.model = model;
+		this.tagSize = model.getTagSize();
+		this.boundaryTag = model.getTagId(ViterbiDecoder.BOUNDARY_TAG);
+		if (boundaryTag < 0)
+			throw new IllegalArgumentException("Model has no "
+			        + ViterbiDecoder.BOUNDARY_TAG + " boundary tag");
+		this.transitions = model.getTransitionMatrix();
+		this.unknownEmissions = new UnknownWordCache(model);
+		this.emissions = new double[0];
+		this.forward = new double[0];
+		this.backward = new double[0];
+		this.weighted = new double[tagSize];
+		this.wordIds = new int[0];
+	}
+	
+	/**
+	 * @return the {@link HMMModel}
+	 */
+	@Override
+	public HMMModel getModel()
+	{
+		return model;
+	}
+	
+	/**
+	 * @return the number of unknown words of the last sentence decoded
+	 */
+	@Override
+	public int getUnknownCount()
+	{
+		return unknownCount;
+	}
+	
+	/**
+	 * Tags each token of a sentence with its most probable tag.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence, without boundary markers
+	 * @return the tag of the largest posterior of each token
+	 */
+	@Override
+	public String[] tag(String[] tokens)
+	{
+		return posteriors(tokens).getTags();
+	}
+	
+	/**
+	 * @param words
+	 *            word ids, -1 for unknown words
+	 * @param tokens
+	 *            the tokens, read only for the unknown words, or null to
+	 *            emit unknown words with the same probability from every
+	 *            state
+	 * @param length
+	 *            number of tokens to decode
+	 * @return the tag id of the largest posterior of each token
+	 */
+	@Override
+	public int[] decode(int[] words, CharSequence[] tokens, int length)
+	{
+		TagPosteriors posteriors = posteriors(words, tokens, length);
+		int[] path = new int[length];
+		for (int i = 0; i < length; i++)
+		{
+			path[i] = posteriors.getBestTag(i);
+		}
+		return path;
+	}
+	
+	/**
+	 * Computes the posterior tag distribution of each token of a sentence.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence, without boundary markers
+	 * @return {@link TagPosteriors}
+	 */
+	public TagPosteriors posteriors(String[] tokens)
+	{
+		int length = tokens.length;
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++)
+		{
+			wordIds[i] = model.getWordId(tokens[i]);
+		}
+		return posteriors(wordIds, tokens, length);
+	}
+	
+	/**
+	 * Runs the forward and backward passes over the word ids and multiplies
+	 * them into the posteriors.
+	 * 
+	 * @param words
+	 *            word ids, -1 for unknown words
+	 * @param tokens
+	 *            the tokens, read only for the unknown words, or null to
+	 *            emit unknown words with the same probability from every
+	 *            state
+	 * @param length
+	 *            number of tokens to decode
+	 * @return {@link TagPosteriors}
+	 */
+	public TagPosteriors posteriors(int[] words, CharSequence[] tokens,
+	        int length)
+	{
+		double[] posteriors = new double[length * tagSize];
+		int[] bestTags = new int[length];
+		unknownCount = 0;
+		if (length == 0)
+			return new TagPosteriors(model, length, posteriors, bestTags);
+		ensureCapacity(length);
+		for (int position = 0; position < length; position++)
+		{
+			if (words[position] < 0)
+				unknownCount++;
+			emissions(position, words[position], (tokens == null) ? null
+			        : tokens[position]);
+		}
+		
+		for (int position = 0; position < length; position++)
+		{
+			int row = position * tagSize;
+			if (position == 0)
+			{
+				System.arraycopy(transitions, boundaryTag * tagSize, forward,
+				        0, tagSize);
+			}
+			else
+			{
+				int prevRow = row - tagSize;
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					forward[row + tag] = 0.0;
+				}
+				for (int prevTag = 0; prevTag < tagSize; prevTag++)
+				{
+					double score = forward[prevRow + prevTag];
+					if (score != 0.0)
+						axpy(score, transitions, prevTag * tagSize, forward,
+						        row, tagSize);
+				}
+			}
+			multiply(forward, emissions, row, tagSize);
+			if (!normalize(forward, row, tagSize))
+			{
+				// No candidate tag is reachable, restart the path from the
+				// emissions as the Viterbi decoder keeps a path through.
+				System.arraycopy(emissions, row, forward, row, tagSize);
+				normalize(forward, row, tagSize);
+			}
+		}
+		
+		int lastRow = (length - 1) * tagSize;
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			backward[lastRow + tag] = (emissions[lastRow + tag] == 0.0) ? 0.0
+			        : transitions[tag * tagSize + boundaryTag];
+		}
+		if (!normalize(backward, lastRow, tagSize))
+			candidates(lastRow);
+		for (int row = lastRow - tagSize; row >= 0; row -= tagSize)
+		{
+			int nextRow = row + tagSize;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				weighted[tag] = emissions[nextRow + tag]
+				        * backward[nextRow + tag];
+			}
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				backward[row + tag] = (emissions[row + tag] == 0.0) ? 0.0
+				        : dot(transitions, tag * tagSize, weighted, tagSize);
+			}
+			if (!normalize(backward, row, tagSize))
+				candidates(row);
+		}
+		
+		for (int position = 0; position < length; position++)
+		{
+			int row = position * tagSize;
+			int best = -1;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				posteriors[row + tag] = forward[row + tag]
+				        * backward[row + tag];
+			}
+			if (!normalize(posteriors, row, tagSize))
+			{
+				System.arraycopy(forward, row, posteriors, row, tagSize);
+				normalize(posteriors, row, tagSize);
+			}
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				if (best < 0 || posteriors[row + tag] > posteriors[row + best])
+					best = tag;
+			}
+			bestTags[position] = best;
+		}
+		return new TagPosteriors(model, length, posteriors, bestTags);
+	}
+	
+	/**
+	 * Fills the emission row of a position, with the probabilities of the
+	 * lexicon for a known word and the {@link UnknownWordModel} weights,
+	 * scaled to a largest weight of 1, for an unknown word.
+	 * 
+	 * @param position
+	 * @param word
+	 *            word id, -1 for an unknown word
+	 * @param token
+	 *            the token, or null
+	 */
+	private void emissions(int position, int word, CharSequence token)
+	{
+		int row = position * tagSize;
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			emissions[row + tag] = 0.0;
+		}
+		if (word >= 0)
+		{
+			int end = model.getEmissionEnd(word);
+			for (int i = model.getEmissionStart(word); i < end; i++)
+			{
+				emissions[row + model.getEmissionTag(i)] = Math.exp(model
+				        .getLogEmissionAt(i));
+			}
+			return;
+		}
+		
+		boolean found = false;
+		if (token != null)
+		{
+			double[] logEmissions = unknownEmissions.logEmissions(token);
+			double max = Double.NEGATIVE_INFINITY;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				if (tag != boundaryTag && logEmissions[tag] > max)
+					max = logEmissions[tag];
+			}
+			if (max != Double.NEGATIVE_INFINITY)
+			{
+				found = true;
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					if (tag != boundaryTag)
+						emissions[row + tag] = Math.exp(logEmissions[tag]
+						        - max);
+				}
+			}
+		}
+		if (!found)
+		{
+			// Without a shape or suffix match, unknown words are assumed
+			// to be emitted with the same probability from every state.
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				if (tag != boundaryTag)
+					emissions[row + tag] = 1.0;
+			}
+		}
+	}
+	
+	/**
+	 * Sets the backward row of a position, none of whose tags reaches the
+	 * rest of the sentence, to 1 for each candidate tag.
+	 * 
+	 * @param row
+	 */
+	private void candidates(int row)
+	{
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			backward[row + tag] = (emissions[row + tag] == 0.0) ? 0.0 : 1.0;
+		}
+		normalize(backward, row, tagSize);
+	}
+	
+	/**
+	 * y[yOffset + i] += a * x[xOffset + i] for i below length.
+	 * 
+	 * @param a
+	 * @param x
+	 * @param xOffset
+	 * @param y
+	 * @param yOffset
+	 * @param length
+	 */
+	private static void axpy(double a, double[] x, int xOffset, double[] y,
+	        int yOffset, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			y[yOffset + i] += a * x[xOffset + i];
+		}
+	}
+	
+	/**
+	 * @param x
+	 * @param xOffset
+	 * @param y
+	 * @param length
+	 * @return the sum of x[xOffset + i] * y[i] for i below length
+	 */
+	private static double dot(double[] x, int xOffset, double[] y, int length)
+	{
+		double sum = 0.0;
+		for (int i = 0; i < length; i++)
+		{
+			sum += x[xOffset + i] * y[i];
+		}
+		return sum;
+	}
+	
+	/**
+	 * x[offset + i] *= y[offset + i] for i below length.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param offset
+	 * @param length
+	 */
+	private static void multiply(double[] x, double[] y, int offset,
+	        int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			x[offset + i] *= y[offset + i];
+		}
+	}
+	
+	/**
+	 * Scales a row to sum to 1.
+	 * 
+	 * @param x
+	 * @param offset
+	 * @param length
+	 * @return false, leaving the row unchanged, when the row sums to 0
+	 */
+	private static boolean normalize(double[] x, int offset, int length)
+	{
+		double sum = 0.0;
+		for (int i = 0; i < length; i++)
+		{
+			sum += x[offset + i];
+		}
+		if (sum == 0.0)
+			return false;
+		double scale = 1.0 / sum;
+		for (int i = 0; i < length; i++)
+		{
+			x[offset + i] *= scale;
+		}
+		return true;
+	}
+	
+	/**
+	 * Grows the scratch rows to hold a sentence of the given length.
+	 * 
+	 * @param length
+	 */
+	private void ensureCapacity(int length)
+	{
+		if (wordIds.length < length)
+		{
+			int capacity = Math.max(length, wordIds.length * 2);
+			int[] ids = new int[capacity];
+			System.arraycopy(wordIds, 0, ids, 0, wordIds.length);
+			wordIds = ids;
+			emissions = new double[capacity * tagSize];
+			forward = new double[capacity * tagSize];
+			backward = new double[capacity * tagSize];
+		}
+	}
+}
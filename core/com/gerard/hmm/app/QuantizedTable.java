@@ -0,0 +1,272 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Gerard
+ *         A table of log probabilities stored as 8 or 16 bit codes, each row
+ *         with its own scale. Code 0 stands for a zero probability and codes
+ *         1 to 2^bits - 1 for evenly spaced logs from the smallest log of the
+ *         row to the largest, so a log is read back within half a step of
+ *         its value with one multiply-add. The static helpers are shared with
+ *         the quantized emissions of the {@link Lexicon}, whose rows are the
+ *         tags.
+ */
+class QuantizedTable
+{
+	/** Number of bits of each code, 8 or 16 */
+	private final int      bits;
+	
+	/** Number of entries of each row */
+	private final int      rowLength;
+	
+	/** The codes of an 8 bit table, or null */
+	private final byte[]   byteCodes;
+	
+	/** The codes of a 16 bit table, or null */
+	private final short[]  shortCodes;
+	
+	/** Log decoded from code 1 of each row */
+	private final double[] offsets;
+	
+	/** Log step between two codes of each row */
+	private final double[] steps;
+	
+	/**
+	 * @param bits
+	 *            number of bits of each code
+	 * @param rowLength
+	 *            number of entries of each row
+	 * @param byteCodes
+	 *            the codes of an 8 bit table, or null
+	 * @param shortCodes
+	 *            the codes of a 16 bit table, or null
+	 * @param offsets
+	 *            log decoded from code 1 of each row
+	 * @param steps
+	 *            log step between two codes of each row
+	 */
+	private QuantizedTable(int bits, int rowLength, byte[] byteCodes,
+	        short[] shortCodes, double[] offsets, double[] steps)
+	{
+		this.bits = bits;
+		this.rowLength = rowLength;
+		this.byteCodes = byteCodes;
+		this.shortCodes = shortCodes;
+		this.offsets = offsets;
+		this.steps = steps;
+	}
+	
+	/**
+	 * Quantizes a table of log probabilities row by row.
+	 * 
+	 * @param logs
+	 *            the table, row after row
+	 * @param rowLength
+	 *            number of entries of each row
+	 * @param bits
+	 *            number of bits of each code, 8 or 16
+	 * @return {@link QuantizedTable}
+	 */
+	static QuantizedTable quantize(double[] logs, int rowLength, int bits)
+	{
+		checkBits(bits);
+		int rows = logs.length / rowLength;
+		double[] offsets = new double[rows];
+		double[] steps = new double[rows];
+		byte[] byteCodes = (bits == 8) ? new byte[logs.length] : null;
+		short[] shortCodes = (bits == 16) ? new short[logs.length] : null;
+		for (int row = 0; row < rows; row++)
+		{
+			int start = row * rowLength;
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = start; i < start + rowLength; i++)
+			{
+				if (logs[i] == Double.NEGATIVE_INFINITY)
+					continue;
+				min = Math.min(min, logs[i]);
+				max = Math.max(max, logs[i]);
+			}
+			offsets[row] = (max < min) ? 0.0 : min;
+			steps[row] = (max < min) ? 0.0 : step(min, max, bits);
+			for (int i = start; i < start + rowLength; i++)
+			{
+				int code = encode(logs[i], offsets[row], steps[row], bits);
+				if (bits == 8)
+					byteCodes[i] = (byte) code;
+				else
+					shortCodes[i] = (short) code;
+			}
+		}
+		return new QuantizedTable(bits, rowLength, byteCodes, shortCodes,
+		        offsets, steps);
+	}
+	
+	/**
+	 * @param row
+	 * @param column
+	 * @return the decoded log of the entry
+	 */
+	double get(int row, int column)
+	{
+		int index = row * rowLength + column;
+		int code = (byteCodes != null) ? byteCodes[index] & 0xFF
+		        : shortCodes[index] & 0xFFFF;
+		return decode(code, offsets[row], steps[row]);
+	}
+	
+	/**
+	 * @return the number of bits of each code
+	 */
+	int getBits()
+	{
+		return bits;
+	}
+	
+	/**
+	 * @return the number of bytes of the table written by
+	 *         {@link #write(ByteBuffer)}, aligned to 8 bytes
+	 */
+	int byteSize()
+	{
+		int codes = (byteCodes != null) ? byteCodes.length
+		        : 2 * shortCodes.length;
+		return 16 * offsets.length + Lexicon.align(codes);
+	}
+	
+	/**
+	 * Writes the row scales and the codes.
+	 * 
+	 * @param buffer
+	 *            little endian {@link ByteBuffer}
+	 */
+	void write(ByteBuffer buffer)
+	{
+		int start = buffer.position();
+		for (int row = 0; row < offsets.length; row++)
+		{
+			buffer.putDouble(offsets[row]).putDouble(steps[row]);
+		}
+		if (byteCodes != null)
+			buffer.put(byteCodes);
+		else
+		{
+			for (short code : shortCodes)
+			{
+				buffer.putShort(code);
+			}
+		}
+		buffer.position(start + byteSize());
+	}
+	
+	/**
+	 * Reads a table written by {@link #write(ByteBuffer)}.
+	 * 
+	 * @param buffer
+	 *            little endian {@link ByteBuffer}
+	 * @param rows
+	 *            number of rows
+	 * @param rowLength
+	 *            number of entries of each row
+	 * @param bits
+	 *            number of bits of each code
+	 * @return {@link QuantizedTable}
+	 */
+	static QuantizedTable read(ByteBuffer buffer, int rows, int rowLength,
+	        int bits)
+	{
+		checkBits(bits);
+		int start = buffer.position();
+		double[] offsets = new double[rows];
+		double[] steps = new double[rows];
+		for (int row = 0; row < rows; row++)
+		{
+			offsets[row] = buffer.getDouble();
+			steps[row] = buffer.getDouble();
+		}
+		byte[] byteCodes = null;
+		short[] shortCodes = null;
+		if (bits == 8)
+		{
+			byteCodes = new byte[rows * rowLength];
+			buffer.get(byteCodes);
+		}
+		else
+		{
+			shortCodes = new short[rows * rowLength];
+			for (int i = 0; i < shortCodes.length; i++)
+			{
+				shortCodes[i] = buffer.getShort();
+			}
+		}
+		QuantizedTable table = new QuantizedTable(bits, rowLength, byteCodes,
+		        shortCodes, offsets, steps);
+		buffer.position(start + table.byteSize());
+		return table;
+	}
+	
+	/**
+	 * @param bits
+	 * @throws IllegalArgumentException
+	 *             unless the bits are 8 or 16
+	 */
+	static void checkBits(int bits)
+	{
+		if (bits != 8 && bits != 16)
+			throw new IllegalArgumentException("Unsupported code size "
+			        + bits + ", use 8 or 16 bits");
+	}
+	
+	/**
+	 * @param min
+	 *            smallest finite log of the row
+	 * @param max
+	 *            largest log of the row
+	 * @param bits
+	 *            number of bits of each code
+	 * @return the log step between two codes spanning the row
+	 */
+	static double step(double min, double max, int bits)
+	{
+		return (max - min) / ((1 << bits) - 2);
+	}
+	
+	/**
+	 * @param log
+	 *            a log probability of the row
+	 * @param offset
+	 *            the smallest finite log of the row
+	 * @param step
+	 *            the log step of the row
+	 * @param bits
+	 *            number of bits of each code
+	 * @return the code of the log, 0 for negative infinity
+	 */
+	static int encode(double log, double offset, double step, int bits)
+	{
+		if (log == Double.NEGATIVE_INFINITY)
+			return 0;
+		if (step == 0.0)
+			return 1;
+		long code = 1 + Math.round((log - offset) / step);
+		return (int) Math.max(1, Math.min((1 << bits) - 1, code));
+	}
+	
+	/**
+	 * @param code
+	 * @param offset
+	 *            the smallest finite log of the row
+	 * @param step
+	 *            the log step of the row
+	 * @return the log of the code, negative infinity for code 0
+	 */
+	static double decode(int code, double offset, double step)
+	{
+		return (code == 0) ? Double.NEGATIVE_INFINITY : offset + (code - 1)
+		        * step;
+	}
+}
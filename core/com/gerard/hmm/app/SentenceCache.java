@@ -0,0 +1,340 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Gerard
+ *         Bounded cache of the tags of whole sentences, for traffic where the
+ *         same sentences recur. Entries are keyed by the generation of the
+ *         {@link HMMModel} that tagged them and the exact token sequence,
+ *         case included since the shape of an unknown word changes its tags.
+ *         The cache serves the newest model it has seen: the first lookup
+ *         with a newer model empties it, so a swapped model never serves
+ *         stale tags, and the sentences of the threads still finishing on an
+ *         older model are neither served nor cached. Keys hold no model, so
+ *         the cache never keeps a replaced model and its lexicon alive.
+ *         The entries are spread over independently locked stripes by hash,
+ *         each evicting in least recently used order once its share of the
+ *         entry limit or of the estimated memory limit is passed, so the
+ *         tagging threads of a {@link BatchTagger} rarely wait on each other.
+ */
+public class SentenceCache
+{
+	/** Largest number of stripes */
+	private static final int MAX_STRIPES = 16;
+	
+	/** Estimated bytes of an entry besides its tokens */
+	private static final int ENTRY_BYTES = 128;
+	
+	/** Estimated bytes of a token besides its characters */
+	private static final int TOKEN_BYTES = 48;
+	
+	/** The stripes, a power of two of them */
+	private final Stripe[]   stripes;
+	
+	/** Maximum number of cached sentences of a stripe */
+	private final int        stripeSentences;
+	
+	/** Maximum estimated bytes of the cached sentences of a stripe */
+	private final long       stripeBytes;
+	
+	/** Generation of the newest model seen, the only one cached */
+	private final AtomicLong generation;
+	
+	private final LongAdder  hits;
+	
+	private final LongAdder  misses;
+	
+	private final LongAdder  evictions;
+	
+	/**
+	 * A model generation and a token sequence with its hash computed once.
+	 */
+	private static final class SentenceKey
+	{
+		private final long     generation;
+		private final String[] tokens;
+		private final int      hash;
+		
+		SentenceKey(long generation, String[] tokens)
+		{
+			this.generation = generation;
+			this.tokens = tokens;
+			int hash = Long.hashCode(generation) * 31
+			        + Arrays.hashCode(tokens);
+			this.hash = hash ^ (hash >>> 16);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object other)
+		{
+			return other instanceof SentenceKey
+			        && hash == ((SentenceKey) other).hash
+			        && generation == ((SentenceKey) other).generation
+			        && Arrays.equals(tokens, ((SentenceKey) other).tokens);
+		}
+	}
+	
+	/**
+	 * The entries of one stripe in access order, guarded by the stripe.
+	 */
+	private static final class Stripe extends
+	        LinkedHashMap<SentenceKey, String[]>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		/** Estimated bytes of the cached sentences of the stripe */
+		long                      bytes;
+		
+		Stripe()
+		{
+			super(16, 0.75f, true);
+		}
+	}
+	
+	/**
+	 * Initialize an empty cache.
+	 * 
+	 * @param maxSentences
+	 *            maximum number of cached sentences
+	 * @param maxBytes
+	 *            maximum estimated heap bytes of the cached sentences
+	 */
+	public SentenceCache(int maxSentences, long maxBytes)
+	{
+		if (maxSentences < 1 || maxBytes < 1)
+			throw new IllegalArgumentException("Empty cache limits");
+		int stripeCount = Integer.highestOneBit(Math.min(MAX_STRIPES,
+		        maxSentences));
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+		{
+			stripes[i] = new Stripe();
+		}
+		this.stripeSentences = (maxSentences + stripeCount - 1) / stripeCount;
+		this.stripeBytes = Math.max(1, maxBytes / stripeCount);
+		this.generation = new AtomicLong();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+	}
+	
+	/**
+	 * @param model
+	 *            the {@link HMMModel} the caller tags with
+	 * @param tokens
+	 *            the words of the sentence
+	 * @return a copy of the tags of the sentence cached for the model, or
+	 *         null when the sentence is not cached
+	 */
+	public String[] get(HMMModel model, String[] tokens)
+	{
+		SentenceKey key = new SentenceKey(model.getGeneration(), tokens);
+		if (!advance(key.generation))
+		{
+			misses.increment();
+			return null;
+		}
+		Stripe stripe = stripe(key);
+		String[] tags;
+		synchronized (stripe)
+		{
+			tags = stripe.get(key);
+		}
+		if (tags == null)
+		{
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return tags.clone();
+	}
+	
+	/**
+	 * Caches the tags of a sentence, evicting the least recently used
+	 * sentences of its stripe beyond the limits. A sentence tagged with a
+	 * model older than the newest one seen is not cached.
+	 * 
+	 * @param model
+	 *            the {@link HMMModel} the sentence was tagged with
+	 * @param tokens
+	 *            the words of the sentence
+	 * @param tags
+	 *            the tag of each word
+	 */
+	public void put(HMMModel model, String[] tokens, String[] tags)
+	{
+		long size = size(tokens);
+		if (size > stripeBytes)
+			return;
+		long modelGeneration = model.getGeneration();
+		if (!advance(modelGeneration))
+			return;
+		SentenceKey key = new SentenceKey(modelGeneration, tokens.clone());
+		Stripe stripe = stripe(key);
+		String[] copy = tags.clone();
+		synchronized (stripe)
+		{
+			// A newer model may have emptied the stripe since the check
+			if (modelGeneration != generation.get())
+				return;
+			if (stripe.put(key, copy) == null)
+				stripe.bytes += size;
+			
+			Iterator<Map.Entry<SentenceKey, String[]>> eldest = stripe
+			        .entrySet().iterator();
+			while (stripe.size() > stripeSentences
+			        || stripe.bytes > stripeBytes)
+			{
+				stripe.bytes -= size(eldest.next().getKey().tokens);
+				eldest.remove();
+				evictions.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Empties the cache.
+	 */
+	public void clear()
+	{
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				stripe.clear();
+				stripe.bytes = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Makes a model generation the cached one when it is newer than the
+	 * newest seen, evicting the sentences of the older models.
+	 * 
+	 * @param modelGeneration
+	 *            the generation of the model of a lookup
+	 * @return whether the generation is the cached one
+	 */
+	private boolean advance(long modelGeneration)
+	{
+		while (true)
+		{
+			long current = generation.get();
+			if (modelGeneration == current)
+				return true;
+			if (modelGeneration < current)
+				return false;
+			if (generation.compareAndSet(current, modelGeneration))
+				break;
+		}
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				evictions.add(stripe.size());
+				stripe.clear();
+				stripe.bytes = 0;
+			}
+		}
+		return generation.get() == modelGeneration;
+	}
+	
+	/**
+	 * @return the number of cached sentences
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * @return the estimated heap bytes of the cached sentences
+	 */
+	public long getBytes()
+	{
+		long bytes = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				bytes += stripe.bytes;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return the number of lookups that found the sentence
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+	
+	/**
+	 * @return the number of lookups that missed the sentence
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+	
+	/**
+	 * @return the number of sentences evicted by the limits or by a newer
+	 *         model
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+	
+	/**
+	 * @param key
+	 *            {@link SentenceKey}
+	 * @return the stripe of the key
+	 */
+	private Stripe stripe(SentenceKey key)
+	{
+		// The high bits of the Fibonacci hash, the stripe maps hashing the
+		// low ones
+		int stripe = (key.hash * 0x9E3779B9) >>> 28;
+		return stripes[stripe & (stripes.length - 1)];
+	}
+	
+	/**
+	 * @param tokens
+	 * @return the estimated heap bytes of an entry
+	 */
+	private static long size(String[] tokens)
+	{
+		long size = ENTRY_BYTES;
+		for (String token : tokens)
+		{
+			size += TOKEN_BYTES + 2L * token.length();
+		}
+		return size;
+	}
+}
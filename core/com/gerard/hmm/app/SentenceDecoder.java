@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+/**
+ * @author Gerard
+ *         Finds the most probable tags of a sentence over an
+ *         {@link HMMModel}. Decoders keep scratch state between sentences, so
+ *         each thread needs its own.
+ */
+public interface SentenceDecoder
+{
+	/**
+	 * Tags a single sentence.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence, without boundary markers
+	 * @return the most probable tag for each token
+	 */
+	String[] tag(String[] tokens);
+	
+	/**
+	 * Decodes a sentence given as word ids.
+	 * 
+	 * @param words
+	 *            word ids, -1 for unknown words
+	 * @param tokens
+	 *            the tokens, read only for the unknown words, or null to
+	 *            emit unknown words with the same probability from every
+	 *            state
+	 * @param length
+	 *            number of tokens to decode
+	 * @return the tag id for each token
+	 */
+	int[] decode(int[] words, CharSequence[] tokens, int length);
+	
+	/**
+	 * @return the number of tokens of the last sentence decoded that are
+	 *         missing from the lexicon
+	 */
+	int getUnknownCount();
+	
+	/**
+	 * @return the {@link HMMModel} the decoder runs on
+	 */
+	HMMModel getModel();
+	
+	/**
+	 * @param model
+	 *            {@link HMMModel}
+	 * @return a {@link TrigramDecoder} when the model has trigram
+	 *         transitions, a {@link ViterbiDecoder} otherwise
+	 */
+	static SentenceDecoder forModel(HMMModel model)
+	{
+		if (model.hasTrigrams())
+			return new TrigramDecoder(model);
+		return new ViterbiDecoder(model);
+	}
+}
@@ -0,0 +1,451 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * @author Gerard
+ *         Tags an unbounded stream of tokens. Tokens are pushed one at a
+ *         time and every sentence is tagged and handed to a
+ *         {@link SentenceListener} as soon as its boundary is seen: a ###/###
+ *         token, a blank line, the end of a line when reading one sentence
+ *         per line, or an explicit {@link #endSentence()}. Readers are
+ *         read through a fixed buffer, never a line at a time: a token
+ *         longer than {@link #MAX_TOKEN_LENGTH} characters is cut in pieces
+ *         and a sentence longer than the maximum length is tagged in pieces,
+ *         so memory stays bounded whatever the stream holds, even a stream
+ *         without line breaks.
+ *         A streaming tagger keeps its own decoder and must be used from one
+ *         thread at a time.
+ */
+public class StreamingTagger
+{
+	/** Default maximum number of tokens of a sentence */
+	public static final int        DEFAULT_MAX_SENTENCE_LENGTH = 1024;
+	
+	/** Largest number of characters of a token read from a reader */
+	public static final int        MAX_TOKEN_LENGTH            = 1024;
+	
+	/** The token that marks a sentence boundary in the training set */
+	private static final String    BOUNDARY                    = "###/###";
+	
+	/** Number of characters read from a reader at once */
+	private static final int       INPUT_SIZE                  = 8192;
+	
+	/**
+	 * Receives the tagged sentences of a stream.
+	 */
+	public interface SentenceListener
+	{
+		/**
+		 * Called once for every sentence of the stream, in stream order.
+		 * 
+		 * @param sentence
+		 *            {@link TaggedSentence}
+		 */
+		void sentenceTagged(TaggedSentence sentence);
+	}
+	
+	/** Holds the current {@link HMMModel} */
+	private final ModelHolder      models;
+	
+	/** Decodes each sentence, replaced when the model changes */
+	private SentenceDecoder        decoder;
+	
+	/** Receives the tagged sentences */
+	private final SentenceListener listener;
+	
+	/** The tokens of the current sentence */
+	private final String[]         tokens;
+	
+	/** Number of tokens of the current sentence */
+	private int                    length;
+	
+	/** Records the tagged sentences while enabled */
+	private TaggerMetrics          metrics;
+	
+	/** Characters read ahead from the reader */
+	private final char[]           input;
+	
+	/** Index of the next character of the input */
+	private int                    inputPosition;
+	
+	/** Number of characters of the input */
+	private int                    inputLimit;
+	
+	/** The characters of the token being read */
+	private final StringBuilder    token;
+	
+	/** Whether the last line read ended with '\r' */
+	private boolean                carriageReturn;
+	
+	/** Whether the line being read is empty so far */
+	private boolean                emptyLine                   = true;
+	
+	/** Number of sentences tagged */
+	private long                   sentenceCount;
+	
+	/**
+	 * Initialize a streaming tagger with the default maximum sentence length.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param listener
+	 *            {@link SentenceListener}
+	 */
+	public StreamingTagger(HMMModel model, SentenceListener listener)
+	{
+		this(model, listener, DEFAULT_MAX_SENTENCE_LENGTH);
+	}
+	
+	/**
+	 * Initialize a streaming tagger.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param listener
+	 *            {@link SentenceListener}
+	 * @param maxSentenceLength
+	 *            number of tokens after which a sentence is tagged without
+	 *            waiting for its boundary
+	 */
+	public StreamingTagger(HMMModel model, SentenceListener listener,
+	        int maxSentenceLength)
+	{
+		this(new ModelHolder(model), listener, maxSentenceLength);
+	}
+	
+	/**
+	 * Initialize a streaming tagger over the current model of the holder,
+	 * which is read again for every sentence.
+	 * 
+	 * @param models
+	 *            {@link ModelHolder}
+	 * @param listener
+	 *            {@link SentenceListener}
+	 * @param maxSentenceLength
+	 *            number of tokens after which a sentence is tagged without
+	 *            waiting for its boundary
+	 */
+	public StreamingTagger(ModelHolder models, SentenceListener listener,
+	        int maxSentenceLength)
+	{
+		if (maxSentenceLength < 1)
+			throw new IllegalArgumentException("maxSentenceLength < 1");
+		this.models = models;
+		this.decoder = SentenceDecoder.forModel(models.get());
+		this.listener = listener;
+		this.tokens = new String[maxSentenceLength];
+		this.metrics = TaggerMetrics.getDefault();
+		this.input = new char[INPUT_SIZE];
+		this.token = new StringBuilder();
+	}
+	
+	/**
+	 * Adds the next token of the stream. A ###/### token ends the current
+	 * sentence.
+	 * 
+	 * @param token
+	 *            {@link String}
+	 */
+	public void push(String token)
+	{
+		if (token.equals(BOUNDARY))
+		{
+			endSentence();
+			return;
+		}
+		tokens[length++] = token;
+		if (length == tokens.length)
+			endSentence();
+	}
+	
+	/**
+	 * Tags the current sentence, if it has any token, and hands it to the
+	 * listener.
+	 */
+	public void endSentence()
+	{
+		if (length == 0)
+			return;
+		
+		boolean measured = metrics.isEnabled();
+		long startNanos = measured ? System.nanoTime() : 0;
+		long startBytes = measured ? TaggerMetrics.allocatedBytes() : 0;
+		String[] sentence = Arrays.copyOf(tokens, length);
+		Arrays.fill(tokens, 0, length, null);
+		length = 0;
+		HMMModel model = models.get();
+		if (decoder.getModel() != model)
+			decoder = SentenceDecoder.forModel(model);
+		String[] tags = decoder.tag(sentence);
+		if (measured)
+			metrics.recordSentence(sentence.length, decoder.getUnknownCount(),
+			        startNanos, startBytes);
+		sentenceCount++;
+		listener.sentenceTagged(new TaggedSentence(sentence, tags));
+	}
+	
+	/**
+	 * @param metrics
+	 *            the {@link TaggerMetrics} recording the tagged sentences,
+	 *            the default metrics unless set
+	 */
+	public void setMetrics(TaggerMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Reads text with one sentence per line, the tokens of a line being
+	 * separated by white space, until the end of the reader.
+	 * 
+	 * @param reader
+	 *            {@link Reader}
+	 * @throws IOException
+	 */
+	public void tagLines(Reader reader) throws IOException
+	{
+		resetInput();
+		while (readLine(reader, true))
+		{
+		}
+	}
+	
+	/**
+	 * Reads UTF-8 text with one sentence per line.
+	 * 
+	 * @param input
+	 *            {@link InputStream}
+	 * @throws IOException
+	 * @see #tagLines(Reader)
+	 */
+	public void tagLines(InputStream input) throws IOException
+	{
+		tagLines(new InputStreamReader(input, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Reads text with one token per line, sentences being separated by
+	 * ###/### or blank lines, until the end of the reader.
+	 * 
+	 * @param reader
+	 *            {@link Reader}
+	 * @throws IOException
+	 */
+	public void tagTokens(Reader reader) throws IOException
+	{
+		resetInput();
+		while (readLine(reader, false))
+		{
+		}
+		endSentence();
+	}
+	
+	/**
+	 * Reads UTF-8 text with one token per line.
+	 * 
+	 * @param input
+	 *            {@link InputStream}
+	 * @throws IOException
+	 * @see #tagTokens(Reader)
+	 */
+	public void tagTokens(InputStream input) throws IOException
+	{
+		tagTokens(new InputStreamReader(input, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Returns the tagged sentences of a reader with one sentence per line.
+	 * The reader is read only as the iterator advances, up to the next
+	 * tagged sentence, so the reader may be unbounded, even without line
+	 * breaks.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param reader
+	 *            {@link Reader}
+	 * @return {@link Iterator} of the tagged sentences, whose methods throw
+	 *         {@link IllegalStateException} when the reader fails
+	 */
+	public static Iterator<TaggedSentence> sentences(HMMModel model,
+	        final Reader reader)
+	{
+		final ArrayDeque<TaggedSentence> ready = new ArrayDeque<TaggedSentence>();
+		final StreamingTagger tagger = new StreamingTagger(model,
+		        new SentenceListener()
+		        {
+			        @Override
+			        public void sentenceTagged(TaggedSentence sentence)
+			        {
+				        ready.add(sentence);
+			        }
+		        });
+		
+		return new Iterator<TaggedSentence>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				try
+				{
+					while (ready.isEmpty() && tagger.readLine(reader, true))
+					{
+					}
+				}
+				catch (IOException e)
+				{
+					throw new IllegalStateException(e);
+				}
+				return !ready.isEmpty();
+			}
+			
+			@Override
+			public TaggedSentence next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return ready.poll();
+			}
+			
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Pushes the tokens of the next line, reading the reader one buffer at a
+	 * time, and returns early once a sentence was tagged, a long line being
+	 * tagged in pieces; the next call goes on with the same line.
+	 * 
+	 * @param reader
+	 *            {@link Reader}
+	 * @param lineIsSentence
+	 *            whether the end of the line ends the sentence, or the line
+	 *            holds a single token
+	 * @return false at the end of the reader
+	 * @throws IOException
+	 */
+	private boolean readLine(Reader reader, boolean lineIsSentence)
+	        throws IOException
+	{
+		long tagged = sentenceCount;
+		while (sentenceCount == tagged)
+		{
+			if (inputPosition == inputLimit)
+			{
+				int read = reader.read(input, 0, input.length);
+				if (read < 0)
+				{
+					if (emptyLine)
+						return false;
+					endLine(lineIsSentence);
+					return true;
+				}
+				inputPosition = 0;
+				inputLimit = read;
+				continue;
+			}
+			
+			char c = input[inputPosition++];
+			if (c == '\n' && carriageReturn)
+			{
+				// The second half of a \r\n line break
+				carriageReturn = false;
+				continue;
+			}
+			carriageReturn = c == '\r';
+			if (c == '\n' || c == '\r')
+			{
+				endLine(lineIsSentence);
+				return true;
+			}
+			emptyLine = false;
+			if (!Character.isWhitespace(c))
+				append(c);
+			else if (lineIsSentence)
+				pushToken();
+			else if (token.length() > 0)
+				append(c);
+		}
+		return true;
+	}
+	
+	/**
+	 * Ends the line being read: the sentence of a sentence per line, or the
+	 * token of a token per line, trimmed, a blank line ending the sentence.
+	 * 
+	 * @param lineIsSentence
+	 *            whether the end of the line ends the sentence
+	 */
+	private void endLine(boolean lineIsSentence)
+	{
+		emptyLine = true;
+		if (lineIsSentence)
+		{
+			pushToken();
+			endSentence();
+			return;
+		}
+		int length = token.length();
+		while (length > 0 && Character.isWhitespace(token.charAt(length - 1)))
+		{
+			length--;
+		}
+		token.setLength(length);
+		if (length == 0)
+			endSentence();
+		else
+			pushToken();
+	}
+	
+	/**
+	 * Adds a character to the token being read, first pushing the token when
+	 * it is {@link #MAX_TOKEN_LENGTH} characters long. A surrogate pair is
+	 * never split.
+	 * 
+	 * @param c
+	 */
+	private void append(char c)
+	{
+		if (token.length() >= MAX_TOKEN_LENGTH && !Character.isLowSurrogate(c))
+			pushToken();
+		token.append(c);
+	}
+	
+	/**
+	 * Pushes the token being read, if it has any character.
+	 */
+	private void pushToken()
+	{
+		if (token.length() == 0)
+			return;
+		push(token.toString());
+		token.setLength(0);
+	}
+	
+	/**
+	 * Drops the characters read ahead from a previous reader.
+	 */
+	private void resetInput()
+	{
+		inputPosition = 0;
+		inputLimit = 0;
+		carriageReturn = false;
+		emptyLine = true;
+		token.setLength(0);
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.Arrays;
+
+/**
+ * @author Gerard
+ *         The posterior tag distribution of each token of a sentence, as
+ *         computed by a {@link PosteriorDecoder}, with the most probable tag
+ *         of each token and its posterior as the confidence of the token.
+ */
+public class TagPosteriors
+{
+	/** {@link HMMModel} whose tags the posteriors are indexed by */
+	private final HMMModel model;
+	
+	/** Number of tokens */
+	private final int      length;
+	
+	/** P(tag | sentence) stored at [position * tagSize + tag] */
+	private final double[] posteriors;
+	
+	/** The tag id of the largest posterior of each token */
+	private final int[]    bestTags;
+	
+	/**
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param length
+	 *            number of tokens
+	 * @param posteriors
+	 *            position x tag posteriors, each row summing to 1
+	 * @param bestTags
+	 *            the tag id of the largest posterior of each token
+	 */
+	TagPosteriors(HMMModel model, int length, double[] posteriors,
+	        int[] bestTags)
+	{
+		this.model = model;
+		this.length = length;
+		this.posteriors = posteriors;
+		this.bestTags = bestTags;
+	}
+	
+	/**
+	 * @return the number of tokens
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+	
+	/**
+	 * @return the {@link HMMModel} the tag ids belong to
+	 */
+	public HMMModel getModel()
+	{
+		return model;
+	}
+	
+	/**
+	 * @param position
+	 * @param tagId
+	 * @return P(tag | sentence) of the token
+	 */
+	public double getPosterior(int position, int tagId)
+	{
+		return posteriors[position * model.getTagSize() + tagId];
+	}
+	
+	/**
+	 * @param position
+	 * @return P(tag | sentence) of the token for each tag id
+	 */
+	public double[] getDistribution(int position)
+	{
+		int tagSize = model.getTagSize();
+		return Arrays.copyOfRange(posteriors, position * tagSize,
+		        (position + 1) * tagSize);
+	}
+	
+	/**
+	 * @param position
+	 * @return the tag id of the largest posterior of the token
+	 */
+	public int getBestTag(int position)
+	{
+		return bestTags[position];
+	}
+	
+	/**
+	 * @param position
+	 * @return the posterior of the most probable tag of the token
+	 */
+	public double getConfidence(int position)
+	{
+		return getPosterior(position, bestTags[position]);
+	}
+	
+	/**
+	 * @return the most probable tag of each token
+	 */
+	public String[] getTags()
+	{
+		String[] tags = new String[length];
+		for (int i = 0; i < length; i++)
+		{
+			tags[i] = model.getTag(bestTags[i]);
+		}
+		return tags;
+	}
+	
+	/**
+	 * @param threshold
+	 * @return the positions of the tokens whose confidence is below the
+	 *         threshold
+	 */
+	public int[] getUncertainPositions(double threshold)
+	{
+		int[] positions = new int[length];
+		int count = 0;
+		for (int i = 0; i < length; i++)
+		{
+			if (getConfidence(i) < threshold)
+				positions[count++] = i;
+		}
+		return Arrays.copyOf(positions, count);
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+/**
+ * @author Gerard
+ *         A sentence and the tag chosen for each of its tokens.
+ */
+public class TaggedSentence
+{
+	/** The tokens of the sentence */
+	private final String[] tokens;
+	
+	/** The tag of each token */
+	private final String[] tags;
+	
+	/**
+	 * @param tokens
+	 *            the tokens of the sentence
+	 * @param tags
+	 *            the tag of each token
+	 */
+	public TaggedSentence(String[] tokens, String[] tags)
+	{
+		this.tokens = tokens;
+		this.tags = tags;
+	}
+	
+	/**
+	 * @return the tokens
+	 */
+	public String[] getTokens()
+	{
+		return tokens;
+	}
+	
+	/**
+	 * @return the tags
+	 */
+	public String[] getTags()
+	{
+		return tags;
+	}
+	
+	/**
+	 * @return the sentence in word/tag form
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < tokens.length; i++)
+		{
+			if (i > 0)
+				builder.append(' ');
+			builder.append(tokens[i]).append('/').append(tags[i]);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,592 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * @author Gerard
+ *         Throughput, latency and allocation metrics of the parse, train,
+ *         build and decode stages. {@link HMMParser} reports the annotated
+ *         data it counts and the new data merged into its counts,
+ *         {@link HMMGenerator} the models it compiles, and
+ *         {@link BatchTagger}, {@link StreamingTagger} and
+ *         {@link ParallelEvaluator} report every sentence they tag, along with
+ *         its unknown words and the {@link SentenceCache} outcome. Each
+ *         record is added to lock free counters and to a
+ *         {@link LatencyHistogram} per stage, and handed to the
+ *         {@link Listener}s, so the metrics can be read in process, pushed
+ *         elsewhere by a listener or read through JMX once registered.
+ *         Allocated bytes are those of the recording thread, as counted by
+ *         the JVM, so the shard counting of a parallel parse is not
+ *         included.
+ *         Metrics are disabled until enabled, given a listener or
+ *         registered, and the stages skip their clock reads while disabled.
+ */
+public class TaggerMetrics implements TaggerMetricsMBean
+{
+	/** Name of the MBean of the default metrics */
+	public static final String                           OBJECT_NAME = "com.gerard.hmm:type=TaggerMetrics";
+	
+	/** The metrics reported to when no other metrics are given */
+	private static final TaggerMetrics                   DEFAULT     = new TaggerMetrics();
+	
+	/** Allocation counters of the JVM, null when not supported */
+	private static final com.sun.management.ThreadMXBean THREADS     = threads();
+	
+	/**
+	 * The instrumented stages.
+	 */
+	public enum Stage
+	{
+		/** Counting annotated data */
+		PARSE,
+		/** Merging the counts of new data into trained counts */
+		TRAIN,
+		/** Compiling a model from counts */
+		BUILD,
+		/** Tagging sentences */
+		DECODE
+	}
+	
+	/**
+	 * Receives every record, on the recording thread.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param stage
+		 *            {@link Stage}
+		 * @param sentences
+		 *            number of sentences of the record
+		 * @param tokens
+		 *            number of tokens of the record
+		 * @param unknownTokens
+		 *            number of decoded tokens missing from the lexicon, 0
+		 *            outside of the decode stage and for a sentence served
+		 *            by a {@link SentenceCache}
+		 * @param nanos
+		 *            duration of the record
+		 * @param allocatedBytes
+		 *            bytes allocated by the thread during the record, -1 when
+		 *            the JVM does not count allocations
+		 */
+		void stageCompleted(Stage stage, int sentences, int tokens,
+		        int unknownTokens, long nanos, long allocatedBytes);
+	}
+	
+	/** Number of records of each stage */
+	private final LongAdder[]                            counts;
+	
+	private final LongAdder[]                            sentences;
+	
+	private final LongAdder[]                            tokens;
+	
+	/** Duration of the records of each stage */
+	private final LongAdder[]                            nanos;
+	
+	private final LongAdder[]                            allocatedBytes;
+	
+	/** Duration of each record, per stage */
+	private final LatencyHistogram[]                     latencies;
+	
+	/** Tokens decoded, not served by a cache */
+	private final LongAdder                              decodedTokens;
+	
+	/** Decoded tokens missing from the lexicon */
+	private final LongAdder                              unknownTokens;
+	
+	private final LongAdder                              cacheHits;
+	
+	private final LongAdder                              cacheMisses;
+	
+	private final List<Listener>                         listeners;
+	
+	/** Time of the last reset */
+	private volatile long                                resetNanos;
+	
+	private volatile boolean                             enabled;
+	
+	/**
+	 * Initialize disabled, empty metrics.
+	 */
+	public TaggerMetrics()
+	{
+		int stages = Stage.values().length;
+		this.counts = adders(stages);
+		this.sentences = adders(stages);
+		this.tokens = adders(stages);
+		this.nanos = adders(stages);
+		this.allocatedBytes = adders(stages);
+		this.latencies = new LatencyHistogram[stages];
+		for (int stage = 0; stage < stages; stage++)
+		{
+			latencies[stage] = new LatencyHistogram();
+		}
+		this.decodedTokens = new LongAdder();
+		this.unknownTokens = new LongAdder();
+		this.cacheHits = new LongAdder();
+		this.cacheMisses = new LongAdder();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.resetNanos = System.nanoTime();
+	}
+	
+	/**
+	 * @return the metrics reported to when no other metrics are given
+	 */
+	public static TaggerMetrics getDefault()
+	{
+		return DEFAULT;
+	}
+	
+	/**
+	 * @return the bytes allocated so far by the current thread, -1 when the
+	 *         JVM does not count allocations
+	 */
+	public static long allocatedBytes()
+	{
+		if (THREADS == null)
+			return -1;
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	@Override
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	@Override
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Adds a listener and enables the metrics.
+	 * 
+	 * @param listener
+	 *            {@link Listener}
+	 */
+	public void addListener(Listener listener)
+	{
+		listeners.add(listener);
+		enabled = true;
+	}
+	
+	/**
+	 * @param listener
+	 *            {@link Listener}
+	 */
+	public void removeListener(Listener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Registers the metrics with the platform MBean server and enables them.
+	 * 
+	 * @param name
+	 *            the object name, such as {@link #OBJECT_NAME}
+	 * @throws JMException
+	 */
+	public void register(String name) throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, new ObjectName(name));
+		enabled = true;
+	}
+	
+	/**
+	 * @param name
+	 *            the object name the metrics were registered with
+	 * @throws JMException
+	 */
+	public void unregister(String name) throws JMException
+	{
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+		        new ObjectName(name));
+	}
+	
+	/**
+	 * Records a run of a stage started at the given clock readings.
+	 * 
+	 * @param stage
+	 *            {@link Stage}
+	 * @param sentenceCount
+	 * @param tokenCount
+	 * @param startNanos
+	 *            {@link System#nanoTime()} at the start
+	 * @param startBytes
+	 *            {@link #allocatedBytes()} at the start
+	 */
+	public void record(Stage stage, int sentenceCount, int tokenCount,
+	        long startNanos, long startBytes)
+	{
+		record(stage, sentenceCount, tokenCount, 0, startNanos, startBytes);
+	}
+	
+	/**
+	 * Records a decoded sentence and its unknown words.
+	 * 
+	 * @param tokenCount
+	 * @param unknownCount
+	 *            number of tokens missing from the lexicon
+	 * @param startNanos
+	 *            {@link System#nanoTime()} at the start
+	 * @param startBytes
+	 *            {@link #allocatedBytes()} at the start
+	 */
+	public void recordSentence(int tokenCount, int unknownCount,
+	        long startNanos, long startBytes)
+	{
+		decodedTokens.add(tokenCount);
+		unknownTokens.add(unknownCount);
+		record(Stage.DECODE, 1, tokenCount, unknownCount, startNanos,
+		        startBytes);
+	}
+	
+	/**
+	 * Records a sentence served by a {@link SentenceCache}.
+	 * 
+	 * @param tokenCount
+	 * @param startNanos
+	 *            {@link System#nanoTime()} at the start
+	 * @param startBytes
+	 *            {@link #allocatedBytes()} at the start
+	 */
+	public void recordCacheHit(int tokenCount, long startNanos,
+	        long startBytes)
+	{
+		cacheHits.increment();
+		record(Stage.DECODE, 1, tokenCount, 0, startNanos, startBytes);
+	}
+	
+	/**
+	 * Records a sentence missing from a {@link SentenceCache}, which is then
+	 * recorded by {@link #recordSentence(int, int, long, long)}.
+	 */
+	public void recordCacheMiss()
+	{
+		cacheMisses.increment();
+	}
+	
+	/**
+	 * @param stage
+	 * @param sentenceCount
+	 * @param tokenCount
+	 * @param unknownCount
+	 * @param startNanos
+	 * @param startBytes
+	 */
+	private void record(Stage stage, int sentenceCount, int tokenCount,
+	        int unknownCount, long startNanos, long startBytes)
+	{
+		long duration = System.nanoTime() - startNanos;
+		long endBytes = allocatedBytes();
+		long bytes = (startBytes < 0 || endBytes < 0) ? -1 : endBytes
+		        - startBytes;
+		int index = stage.ordinal();
+		counts[index].increment();
+		sentences[index].add(sentenceCount);
+		tokens[index].add(tokenCount);
+		nanos[index].add(duration);
+		if (bytes > 0)
+			allocatedBytes[index].add(bytes);
+		latencies[index].record(duration);
+		for (Listener listener : listeners)
+		{
+			listener.stageCompleted(stage, sentenceCount, tokenCount,
+			        unknownCount, duration, bytes);
+		}
+	}
+	
+	/**
+	 * @param stage
+	 * @return number of records of the stage
+	 */
+	public long getCount(Stage stage)
+	{
+		return counts[stage.ordinal()].sum();
+	}
+	
+	/**
+	 * @param stage
+	 * @return number of sentences recorded by the stage
+	 */
+	public long getSentences(Stage stage)
+	{
+		return sentences[stage.ordinal()].sum();
+	}
+	
+	/**
+	 * @param stage
+	 * @return number of tokens recorded by the stage
+	 */
+	public long getTokens(Stage stage)
+	{
+		return tokens[stage.ordinal()].sum();
+	}
+	
+	/**
+	 * @param stage
+	 * @return total duration of the records of the stage, summed over the
+	 *         threads
+	 */
+	public long getNanos(Stage stage)
+	{
+		return nanos[stage.ordinal()].sum();
+	}
+	
+	/**
+	 * @param stage
+	 * @return bytes allocated by the recording threads during the stage
+	 */
+	public long getAllocatedBytes(Stage stage)
+	{
+		return allocatedBytes[stage.ordinal()].sum();
+	}
+	
+	/**
+	 * @param stage
+	 * @return tokens per second of the time spent in the stage, that is per
+	 *         busy thread
+	 */
+	public double getTokensPerSecond(Stage stage)
+	{
+		return perSecond(getTokens(stage), getNanos(stage));
+	}
+	
+	/**
+	 * @param stage
+	 * @return {@link LatencyHistogram} of the records of the stage, per
+	 *         sentence for the decode stage
+	 */
+	public LatencyHistogram getLatencies(Stage stage)
+	{
+		return latencies[stage.ordinal()];
+	}
+	
+	@Override
+	public double getSeconds()
+	{
+		return (System.nanoTime() - resetNanos) / 1e9;
+	}
+	
+	@Override
+	public long getDecodeSentences()
+	{
+		return getSentences(Stage.DECODE);
+	}
+	
+	@Override
+	public long getDecodeTokens()
+	{
+		return getTokens(Stage.DECODE);
+	}
+	
+	@Override
+	public double getDecodeSentencesPerSecond()
+	{
+		return perSecond(getDecodeSentences(), System.nanoTime() - resetNanos);
+	}
+	
+	@Override
+	public double getDecodeTokensPerSecond()
+	{
+		return perSecond(getDecodeTokens(), System.nanoTime() - resetNanos);
+	}
+	
+	@Override
+	public long getDecodeAllocatedBytes()
+	{
+		return getAllocatedBytes(Stage.DECODE);
+	}
+	
+	@Override
+	public double getLatencyMeanMicros()
+	{
+		return getLatencies(Stage.DECODE).getMean() / 1e3;
+	}
+	
+	@Override
+	public double getLatencyP50Micros()
+	{
+		return getLatencies(Stage.DECODE).getValueAtPercentile(50) / 1e3;
+	}
+	
+	@Override
+	public double getLatencyP99Micros()
+	{
+		return getLatencies(Stage.DECODE).getValueAtPercentile(99) / 1e3;
+	}
+	
+	@Override
+	public double getLatencyP999Micros()
+	{
+		return getLatencies(Stage.DECODE).getValueAtPercentile(99.9) / 1e3;
+	}
+	
+	@Override
+	public double getLatencyMaxMicros()
+	{
+		return getLatencies(Stage.DECODE).getMax() / 1e3;
+	}
+	
+	@Override
+	public double getUnknownWordRate()
+	{
+		long decoded = decodedTokens.sum();
+		return (decoded == 0) ? 0.0 : (double) unknownTokens.sum() / decoded;
+	}
+	
+	@Override
+	public double getCacheHitRate()
+	{
+		long hits = cacheHits.sum();
+		long lookups = hits + cacheMisses.sum();
+		return (lookups == 0) ? 0.0 : (double) hits / lookups;
+	}
+	
+	@Override
+	public long getParseTokens()
+	{
+		return getTokens(Stage.PARSE);
+	}
+	
+	@Override
+	public double getParseTokensPerSecond()
+	{
+		return getTokensPerSecond(Stage.PARSE);
+	}
+	
+	@Override
+	public long getParseAllocatedBytes()
+	{
+		return getAllocatedBytes(Stage.PARSE);
+	}
+	
+	@Override
+	public long getTrainSentences()
+	{
+		return getSentences(Stage.TRAIN);
+	}
+	
+	@Override
+	public double getTrainMillis()
+	{
+		return getNanos(Stage.TRAIN) / 1e6;
+	}
+	
+	@Override
+	public long getBuildCount()
+	{
+		return getCount(Stage.BUILD);
+	}
+	
+	@Override
+	public double getBuildMillis()
+	{
+		return getNanos(Stage.BUILD) / 1e6;
+	}
+	
+	@Override
+	public long getBuildAllocatedBytes()
+	{
+		return getAllocatedBytes(Stage.BUILD);
+	}
+	
+	@Override
+	public void reset()
+	{
+		for (int stage = 0; stage < counts.length; stage++)
+		{
+			counts[stage].reset();
+			sentences[stage].reset();
+			tokens[stage].reset();
+			nanos[stage].reset();
+			allocatedBytes[stage].reset();
+			latencies[stage].reset();
+		}
+		decodedTokens.reset();
+		unknownTokens.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		resetNanos = System.nanoTime();
+	}
+	
+	/**
+	 * @return a summary of every stage
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder summary = new StringBuilder();
+		for (Stage stage : Stage.values())
+		{
+			LatencyHistogram latency = getLatencies(stage);
+			summary.append(String.format(
+			        "%-6s %8d runs %9d sentences %10d tokens %12.0f tokens/s "
+			                + "p50 %10.1f us p99 %10.1f us max %10.1f us "
+			                + "%14d bytes%n", stage, getCount(stage),
+			        getSentences(stage), getTokens(stage),
+			        getTokensPerSecond(stage),
+			        latency.getValueAtPercentile(50) / 1e3,
+			        latency.getValueAtPercentile(99) / 1e3,
+			        latency.getMax() / 1e3, getAllocatedBytes(stage)));
+		}
+		summary.append(String.format(
+		        "unknown words %.4f, cache hits %.4f", getUnknownWordRate(),
+		        getCacheHitRate()));
+		return summary.toString();
+	}
+	
+	/**
+	 * @param count
+	 * @param nanoseconds
+	 * @return count per second, 0 for no time
+	 */
+	private static double perSecond(long count, long nanoseconds)
+	{
+		return (nanoseconds <= 0) ? 0.0 : count * 1e9 / nanoseconds;
+	}
+	
+	/**
+	 * @param size
+	 * @return new adders
+	 */
+	private static LongAdder[] adders(int size)
+	{
+		LongAdder[] adders = new LongAdder[size];
+		for (int i = 0; i < size; i++)
+		{
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+	
+	/**
+	 * @return the allocation counters of the JVM, null when it does not
+	 *         count the allocations of each thread
+	 */
+	private static com.sun.management.ThreadMXBean threads()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		if (!allocations.isThreadAllocatedMemorySupported()
+		        || !allocations.isThreadAllocatedMemoryEnabled())
+			return null;
+		return allocations;
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+/**
+ * @author Gerard
+ *         JMX view of the {@link TaggerMetrics}. Rates are measured over the
+ *         wall clock time since the last reset and latencies are per
+ *         sentence.
+ */
+public interface TaggerMetricsMBean
+{
+	/**
+	 * @return whether the metrics are recorded
+	 */
+	boolean isEnabled();
+	
+	/**
+	 * @param enabled
+	 *            whether to record the metrics
+	 */
+	void setEnabled(boolean enabled);
+	
+	/**
+	 * @return seconds since the last reset
+	 */
+	double getSeconds();
+	
+	/**
+	 * @return number of sentences tagged
+	 */
+	long getDecodeSentences();
+	
+	/**
+	 * @return number of tokens tagged
+	 */
+	long getDecodeTokens();
+	
+	/**
+	 * @return sentences tagged per second since the last reset
+	 */
+	double getDecodeSentencesPerSecond();
+	
+	/**
+	 * @return tokens tagged per second since the last reset
+	 */
+	double getDecodeTokensPerSecond();
+	
+	/**
+	 * @return bytes allocated by the tagging threads while tagging
+	 */
+	long getDecodeAllocatedBytes();
+	
+	/**
+	 * @return mean latency of a sentence in microseconds
+	 */
+	double getLatencyMeanMicros();
+	
+	/**
+	 * @return median latency of a sentence in microseconds
+	 */
+	double getLatencyP50Micros();
+	
+	/**
+	 * @return 99th percentile latency of a sentence in microseconds
+	 */
+	double getLatencyP99Micros();
+	
+	/**
+	 * @return 99.9th percentile latency of a sentence in microseconds
+	 */
+	double getLatencyP999Micros();
+	
+	/**
+	 * @return largest latency of a sentence in microseconds
+	 */
+	double getLatencyMaxMicros();
+	
+	/**
+	 * @return share of the decoded tokens missing from the lexicon
+	 */
+	double getUnknownWordRate();
+	
+	/**
+	 * @return share of the sentences served by a {@link SentenceCache}
+	 */
+	double getCacheHitRate();
+	
+	/**
+	 * @return number of tokens of annotated data parsed
+	 */
+	long getParseTokens();
+	
+	/**
+	 * @return tokens of annotated data parsed per second of parsing
+	 */
+	double getParseTokensPerSecond();
+	
+	/**
+	 * @return bytes allocated by the parsing threads while parsing
+	 */
+	long getParseAllocatedBytes();
+	
+	/**
+	 * @return number of sentences of new data merged into trained counts
+	 */
+	long getTrainSentences();
+	
+	/**
+	 * @return milliseconds spent merging new data into trained counts
+	 */
+	double getTrainMillis();
+	
+	/**
+	 * @return number of models built
+	 */
+	long getBuildCount();
+	
+	/**
+	 * @return milliseconds spent building models
+	 */
+	double getBuildMillis();
+	
+	/**
+	 * @return bytes allocated by the building threads while building models
+	 */
+	long getBuildAllocatedBytes();
+	
+	/**
+	 * Clears the metrics and restarts the clock of the rates.
+	 */
+	void reset();
+}
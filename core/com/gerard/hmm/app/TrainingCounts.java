@@ -0,0 +1,565 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author Gerard
+ *         Count tables of a training shard held in primitive arrays.
+ *         Tags and words are interned to ids local to the table, and the
+ *         tables of several shards are combined with
+ *         {@link #merge(TrainingCounts)}.
+ */
+class TrainingCounts
+{
+	/** Initial number of tag slots of the tag tables */
+	private static final int   INITIAL_TAGS = 32;
+	
+	/** Tag counts of a word not counted yet */
+	private static final int[] EMPTY        = new int[0];
+	
+	/** Shape counts of a word not counted yet */
+	private static final int[] EMPTY_SHAPES = new int[1];
+	
+	/** Tag ids */
+	private final WordTable    tags;
+	
+	/** Lower cased word ids */
+	private final WordTable    words;
+	
+	/**
+	 * Count of each tag of each word, indexed by word id then tag id. The
+	 * rows grow with the tag ids seen for the word.
+	 */
+	private final List<int[]>  wordTagCounts;
+	
+	/**
+	 * Count of each tag and shape of each word, indexed by word id. A row
+	 * holds its pair count followed by (tag id << SHAPE_BITS | shape, count)
+	 * pairs, the shape being taken from the word before it is lower cased.
+	 */
+	private final List<int[]>  wordShapeCounts;
+	
+	/** Count of each tag */
+	private int[]              tagCounts;
+	
+	/** Count of each tag pair, stored at [prevTag * tagCapacity + tag] */
+	private int[]              tagToTagCounts;
+	
+	/**
+	 * Count of each tag triple, stored at [(prevPrevTag * tagCapacity +
+	 * prevTag) * tagCapacity + tag], null unless trigrams are counted
+	 */
+	private int[]              trigramCounts;
+	
+	/** Number of tag slots of the tag tables */
+	private int                tagCapacity;
+	
+	/**
+	 * Initialize empty count tables.
+	 * 
+	 * @param trigrams
+	 *            whether to count tag triples, whose table grows with the
+	 *            cube of the tag count
+	 */
+	TrainingCounts(boolean trigrams)
+	{
+		this.tags = new WordTable(false);
+		this.words = new WordTable(true);
+		this.wordTagCounts = new ArrayList<int[]>();
+		this.wordShapeCounts = new ArrayList<int[]>();
+		this.tagCapacity = INITIAL_TAGS;
+		this.tagCounts = new int[tagCapacity];
+		this.tagToTagCounts = new int[tagCapacity * tagCapacity];
+		this.trigramCounts = trigrams ? new int[tagCapacity * tagCapacity
+		        * tagCapacity] : null;
+	}
+	
+	/**
+	 * Counts one word of the training set read in place from a corpus
+	 * buffer. The word is lower cased once its {@link UnknownWordModel}
+	 * shape is counted.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param wordStart
+	 * @param wordEnd
+	 * @param tagStart
+	 * @param tagEnd
+	 * @param prevTagId
+	 *            the tag id of the previous word
+	 * @return the tag id of the word
+	 */
+	int count(ByteBuffer buffer, int wordStart, int wordEnd, int tagStart,
+	        int tagEnd, int prevTagId)
+	{
+		int tagId = tagId(buffer, tagStart, tagEnd);
+		int wordId = words.intern(buffer, wordStart, wordEnd);
+		count(wordId, tagId, prevTagId, 1);
+		addWordShape(wordId, tagId,
+		        UnknownWordModel.shape(buffer, wordStart, wordEnd), 1);
+		return tagId;
+	}
+	
+	/**
+	 * Counts one word of the training set.
+	 * 
+	 * @param word
+	 *            {@link String}
+	 * @param tagId
+	 * @param prevTagId
+	 *            the tag id of the previous word
+	 */
+	void count(String word, int tagId, int prevTagId)
+	{
+		count(words.intern(word), tagId, prevTagId, 1);
+	}
+	
+	/**
+	 * Counts a transition between two tags.
+	 * 
+	 * @param prevTagId
+	 * @param tagId
+	 */
+	void countTransition(int prevTagId, int tagId)
+	{
+		tagToTagCounts[prevTagId * tagCapacity + tagId]++;
+	}
+	
+	/**
+	 * Counts a tag following two tags, when trigrams are counted.
+	 * 
+	 * @param prevPrevTagId
+	 * @param prevTagId
+	 * @param tagId
+	 */
+	void countTrigram(int prevPrevTagId, int prevTagId, int tagId)
+	{
+		if (trigramCounts != null)
+			trigramCounts[(prevPrevTagId * tagCapacity + prevTagId)
+		        * tagCapacity + tagId]++;
+	}
+	
+	/**
+	 * @param tag
+	 *            {@link String}
+	 * @return the id of the tag, interning it when it is new
+	 */
+	int tagId(String tag)
+	{
+		int size = tags.size();
+		int id = tags.intern(tag);
+		if (id == size)
+			ensureTagCapacity();
+		return id;
+	}
+	
+	/**
+	 * Adds all counts of the other table into this table. The trigram counts
+	 * are merged when both tables count trigrams.
+	 * 
+	 * @param other
+	 *            {@link TrainingCounts}
+	 */
+	void merge(TrainingCounts other)
+	{
+		int[] tagMap = new int[other.tags.size()];
+		for (int tag = 0; tag < tagMap.length; tag++)
+		{
+			tagMap[tag] = tagId(other.tags.get(tag));
+			tagCounts[tagMap[tag]] += other.tagCounts[tag];
+		}
+		for (int prevTag = 0; prevTag < tagMap.length; prevTag++)
+		{
+			for (int tag = 0; tag < tagMap.length; tag++)
+			{
+				tagToTagCounts[tagMap[prevTag] * tagCapacity + tagMap[tag]] += other.tagToTagCounts[prevTag
+				        * other.tagCapacity + tag];
+			}
+		}
+		if (trigramCounts != null && other.trigramCounts != null)
+		{
+			for (int prevPrevTag = 0; prevPrevTag < tagMap.length; prevPrevTag++)
+			{
+				for (int prevTag = 0; prevTag < tagMap.length; prevTag++)
+				{
+					for (int tag = 0; tag < tagMap.length; tag++)
+					{
+						trigramCounts[(tagMap[prevPrevTag] * tagCapacity + tagMap[prevTag])
+						        * tagCapacity + tagMap[tag]] += other
+						        .getTrigramCount(prevPrevTag, prevTag, tag);
+					}
+				}
+			}
+		}
+		for (int word = 0; word < other.wordTagCounts.size(); word++)
+		{
+			int wordId = words.intern(other.words, word);
+			int[] counts = other.wordTagCounts.get(word);
+			for (int tag = 0; tag < counts.length; tag++)
+			{
+				if (counts[tag] > 0)
+					addWordTag(wordId, tagMap[tag], counts[tag]);
+			}
+			int[] shapes = other.getWordShapeCounts(word);
+			for (int i = 1; i < 2 * shapes[0]; i += 2)
+			{
+				addWordShape(wordId, tagMap[shapes[i]
+				        >>> UnknownWordModel.SHAPE_BITS], shapes[i]
+				        & UnknownWordModel.SHAPE_MASK, shapes[i + 1]);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of tags
+	 */
+	int getTagSize()
+	{
+		return tags.size();
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the tag name
+	 */
+	String getTag(int tagId)
+	{
+		return tags.get(tagId);
+	}
+	
+	/**
+	 * @param tag
+	 *            {@link String}
+	 * @return the id of the tag or -1 when the tag was never counted
+	 */
+	int getTagId(String tag)
+	{
+		return tags.find(tag);
+	}
+	
+	/**
+	 * @param tagId
+	 * @return the number of times the tag was counted
+	 */
+	int getTagCount(int tagId)
+	{
+		return tagCounts[tagId];
+	}
+	
+	/**
+	 * @param prevTagId
+	 * @param tagId
+	 * @return the number of times the tag was counted after the previous tag
+	 */
+	int getTransitionCount(int prevTagId, int tagId)
+	{
+		return tagToTagCounts[prevTagId * tagCapacity + tagId];
+	}
+	
+	/**
+	 * @return whether tag triples are counted
+	 */
+	boolean hasTrigrams()
+	{
+		return trigramCounts != null;
+	}
+	
+	/**
+	 * @param prevPrevTagId
+	 * @param prevTagId
+	 * @param tagId
+	 * @return the number of times the tag was counted after the two tags,
+	 *         when trigrams are counted
+	 */
+	int getTrigramCount(int prevPrevTagId, int prevTagId, int tagId)
+	{
+		return trigramCounts[(prevPrevTagId * tagCapacity + prevTagId)
+		        * tagCapacity + tagId];
+	}
+	
+	/**
+	 * @return the number of ###/### lines counted, one per sentence
+	 */
+	int getSentenceCount()
+	{
+		int boundaryTag = tags.find("###");
+		return (boundaryTag < 0) ? 0 : tagCounts[boundaryTag];
+	}
+	
+	/**
+	 * @return the number of words counted, ###/### lines excluded
+	 */
+	int getTokenCount()
+	{
+		int total = 0;
+		for (int tag = 0; tag < tags.size(); tag++)
+		{
+			total += tagCounts[tag];
+		}
+		return total - getSentenceCount();
+	}
+	
+	/**
+	 * @return the number of words
+	 */
+	int getVocabularySize()
+	{
+		return wordTagCounts.size();
+	}
+	
+	/**
+	 * @param word
+	 *            {@link String}, lower cased during the lookup
+	 * @return the id of the word or -1 when the word was never counted
+	 */
+	int getWordId(String word)
+	{
+		return words.find(word);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return the lower cased word
+	 */
+	String getWord(int wordId)
+	{
+		return words.get(wordId);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return the pair count of the word followed by its (tag id <<
+	 *         SHAPE_BITS | shape, count) pairs
+	 */
+	int[] getWordShapeCounts(int wordId)
+	{
+		if (wordId >= wordShapeCounts.size())
+			return EMPTY_SHAPES;
+		return wordShapeCounts.get(wordId);
+	}
+	
+	/**
+	 * @param wordId
+	 * @return the count of the word under each tag id, the row being shorter
+	 *         than the tag count when the word was never seen with the last
+	 *         tags
+	 */
+	int[] getWordTagCounts(int wordId)
+	{
+		return wordTagCounts.get(wordId);
+	}
+	
+	/**
+	 * Copies the tag counts into the map layout exposed by {@link HMMParser}.
+	 * 
+	 * @param tagCount
+	 *            tag(key) to count(value)
+	 * @param tagToTagCount
+	 *            prevTag(key) to tag(key) to count(value)
+	 */
+	void copyTagsTo(HashMap<String, Integer> tagCount,
+	        HashMap<String, HashMap<String, Integer>> tagToTagCount)
+	{
+		int tagSize = tags.size();
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			if (tagCounts[tag] > 0)
+				tagCount.put(tags.get(tag), tagCounts[tag]);
+			for (int nextTag = 0; nextTag < tagSize; nextTag++)
+			{
+				int count = tagToTagCounts[tag * tagCapacity + nextTag];
+				if (count > 0)
+					put(tagToTagCount, tags.get(tag), tags.get(nextTag), count);
+			}
+		}
+	}
+	
+	/**
+	 * Copies the word counts into the map layout exposed by
+	 * {@link HMMParser}.
+	 * 
+	 * @param tagToWordCount
+	 *            tag(key) to word(key) to count(value)
+	 * @param wordToTagCount
+	 *            word(key) to tag(key) to count(value)
+	 */
+	void copyWordsTo(HashMap<String, HashMap<String, Integer>> tagToWordCount,
+	        HashMap<String, HashMap<String, Integer>> wordToTagCount)
+	{
+		for (int word = 0; word < wordTagCounts.size(); word++)
+		{
+			int[] counts = wordTagCounts.get(word);
+			for (int tag = 0; tag < counts.length; tag++)
+			{
+				if (counts[tag] > 0)
+				{
+					put(wordToTagCount, words.get(word), tags.get(tag),
+					        counts[tag]);
+					put(tagToWordCount, tags.get(tag), words.get(word),
+					        counts[tag]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Counts a word under a tag and the transition into the tag.
+	 * 
+	 * @param wordId
+	 * @param tagId
+	 * @param prevTagId
+	 * @param count
+	 */
+	private void count(int wordId, int tagId, int prevTagId, int count)
+	{
+		tagCounts[tagId] += count;
+		tagToTagCounts[prevTagId * tagCapacity + tagId] += count;
+		addWordTag(wordId, tagId, count);
+	}
+	
+	/**
+	 * Adds to the count of the tag of the word, growing its row as needed.
+	 * 
+	 * @param wordId
+	 * @param tagId
+	 * @param count
+	 */
+	private void addWordTag(int wordId, int tagId, int count)
+	{
+		while (wordTagCounts.size() <= wordId)
+		{
+			wordTagCounts.add(EMPTY);
+		}
+		int[] counts = wordTagCounts.get(wordId);
+		if (counts.length <= tagId)
+		{
+			int[] grown = new int[tagId + 1];
+			System.arraycopy(counts, 0, grown, 0, counts.length);
+			counts = grown;
+			wordTagCounts.set(wordId, counts);
+		}
+		counts[tagId] += count;
+	}
+	
+	/**
+	 * Adds to the count of the tag and shape of the word, growing its row as
+	 * needed.
+	 * 
+	 * @param wordId
+	 * @param tagId
+	 * @param shape
+	 *            {@link UnknownWordModel} shape of the word
+	 * @param count
+	 */
+	private void addWordShape(int wordId, int tagId, int shape, int count)
+	{
+		while (wordShapeCounts.size() <= wordId)
+		{
+			wordShapeCounts.add(EMPTY_SHAPES);
+		}
+		int[] shapes = wordShapeCounts.get(wordId);
+		int key = tagId << UnknownWordModel.SHAPE_BITS | shape;
+		int end = 1 + 2 * shapes[0];
+		for (int i = 1; i < end; i += 2)
+		{
+			if (shapes[i] == key)
+			{
+				shapes[i + 1] += count;
+				return;
+			}
+		}
+		if (end == shapes.length)
+		{
+			shapes = Arrays.copyOf(shapes, end + 4);
+			wordShapeCounts.set(wordId, shapes);
+		}
+		shapes[0]++;
+		shapes[end] = key;
+		shapes[end + 1] = count;
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param start
+	 * @param end
+	 * @return the id of the tag, interning it when it is new
+	 */
+	private int tagId(ByteBuffer buffer, int start, int end)
+	{
+		int size = tags.size();
+		int id = tags.intern(buffer, start, end);
+		if (id == size)
+			ensureTagCapacity();
+		return id;
+	}
+	
+	/**
+	 * Doubles the number of tag slots of the tag tables once every slot is
+	 * used.
+	 */
+	private void ensureTagCapacity()
+	{
+		if (tags.size() <= tagCapacity)
+			return;
+		
+		int capacity = tagCapacity * 2;
+		int[] counts = new int[capacity];
+		System.arraycopy(tagCounts, 0, counts, 0, tagCapacity);
+		int[] transitions = new int[capacity * capacity];
+		for (int prevTag = 0; prevTag < tagCapacity; prevTag++)
+		{
+			System.arraycopy(tagToTagCounts, prevTag * tagCapacity,
+			        transitions, prevTag * capacity, tagCapacity);
+		}
+		if (trigramCounts != null)
+		{
+			int[] trigrams = new int[capacity * capacity * capacity];
+			for (int prevPrevTag = 0; prevPrevTag < tagCapacity; prevPrevTag++)
+			{
+				for (int prevTag = 0; prevTag < tagCapacity; prevTag++)
+				{
+					System.arraycopy(trigramCounts, (prevPrevTag * tagCapacity + prevTag)
+					        * tagCapacity, trigrams, (prevPrevTag * capacity + prevTag)
+					        * capacity, tagCapacity);
+				}
+			}
+			trigramCounts = trigrams;
+		}
+		tagCounts = counts;
+		tagToTagCounts = transitions;
+		tagCapacity = capacity;
+	}
+	
+	/**
+	 * Stores the count in the inner map of the container, creating it when
+	 * needed.
+	 * 
+	 * @param container
+	 *            {@link HashMap}
+	 * @param outerKey
+	 *            {@link String}
+	 * @param innerKey
+	 *            {@link String}
+	 * @param count
+	 */
+	private static void put(
+	        HashMap<String, HashMap<String, Integer>> container,
+	        String outerKey, String innerKey, int count)
+	{
+		HashMap<String, Integer> inner = container.get(outerKey);
+		if (inner == null)
+		{
+			inner = new HashMap<String, Integer>();
+			container.put(outerKey, inner);
+		}
+		inner.put(innerKey, count);
+	}
+}
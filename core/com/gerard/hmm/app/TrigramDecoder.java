@@ -0,0 +1,457 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.Arrays;
+
+/**
+ * @author Gerard
+ *         Beam search decoder over the trigram transitions of an
+ *         {@link HMMModel}. A state is the pair of the previous tag and the
+ *         tag of a position, so the full lattice has tagSize x tagSize states
+ *         per token. Only the best beamWidth states of each position are
+ *         kept and extended, which bounds the work per token to beamWidth
+ *         times the candidate tags of the word, whatever the size of the tag
+ *         set. Scores are sums of log probabilities as in
+ *         {@link ViterbiDecoder}, and unknown words are scored the same way.
+ *         The scratch arrays are reused between sentences, so a decoder must
+ *         not be shared between threads.
+ */
+public class TrigramDecoder implements SentenceDecoder
+{
+	/** Default number of states kept per position */
+	public static final int        DEFAULT_BEAM_WIDTH = 16;
+	
+	/**
+	 * {@link HMMModel}
+	 */
+	private final HMMModel         model;
+	
+	/** Number of tags in the model */
+	private final int              tagSize;
+	
+	/** Tag id of the sentence boundary */
+	private final int              boundaryTag;
+	
+	/** Number of states kept per position */
+	private final int              beamWidth;
+	
+	/** Log emissions of the unknown words seen recently */
+	private final UnknownWordCache unknownEmissions;
+	
+	/**
+	 * The tag of each kept state, stored from stateTags[position *
+	 * beamWidth]
+	 */
+	private int[]                  stateTags;
+	
+	/** Index of the previous state on the best path of each kept state */
+	private int[]                  stateBacks;
+	
+	/** Log probability of the best path of each kept state */
+	private double[]               stateScores;
+	
+	/** Number of kept states of each position */
+	private int[]                  stateCounts;
+	
+	/** Word ids of the sentence being decoded, -1 for unknown words */
+	private int[]                  wordIds;
+	
+	/** Number of unknown words of the last sentence decoded */
+	private int                    unknownCount;
+	
+	/**
+	 * Best score of each (previous tag, tag) state of the current position,
+	 * valid where stamps equals the generation
+	 */
+	private final double[]         pairScores;
+	
+	/** Previous state index of each pair score */
+	private final int[]            pairBacks;
+	
+	/** Generation at which each pair score was written */
+	private final int[]            pairStamps;
+	
+	/** The pairs scored at the current position */
+	private final int[]            pairs;
+	
+	/** Generation of the current position */
+	private int                    generation;
+	
+	/** Candidate tags of the current position */
+	private final int[]            candidates;
+	
+	/** Log emission of each candidate tag */
+	private final double[]         candidateEmissions;
+	
+	/** Min-heap of the best pairs while pruning */
+	private final int[]            heap;
+	
+	/**
+	 * Initialize the decoder with the default beam width.
+	 * 
+	 * @param model
+	 *            {@link HMMModel} with trigram transitions
+	 */
+	public TrigramDecoder(HMMModel model)
+	{
+		this(model, DEFAULT_BEAM_WIDTH);
+	}
+	
+	/**
+	 * Initialize the decoder.
+	 * 
+	 * @param model
+	 *            {@link HMMModel} with trigram transitions
+	 * @param beamWidth
+	 *            number of states kept per position
+	 */
+	public TrigramDecoder(HMMModel model, int beamWidth)
+	{
+		if (!model.hasTrigrams())
+			throw new IllegalArgumentException("Model has no trigrams");
+		if (beamWidth < 1)
+			throw new IllegalArgumentException("beamWidth < 1");
+		this.model = model;
+		this.tagSize = model.getTagSize();
+		this.boundaryTag = model.getTagId(ViterbiDecoder.BOUNDARY_TAG);
+		if (boundaryTag < 0)
+			throw new IllegalArgumentException("Model has no "
+			        + ViterbiDecoder.BOUNDARY_TAG + " boundary tag");
+		this.beamWidth = beamWidth;
+		this.unknownEmissions = new UnknownWordCache(model);
+		this.stateTags = new int[0];
+		this.stateBacks = new int[0];
+		this.stateScores = new double[0];
+		this.stateCounts = new int[0];
+		this.wordIds = new int[0];
+		this.pairScores = new double[tagSize * tagSize];
+		this.pairBacks = new int[tagSize * tagSize];
+		this.pairStamps = new int[tagSize * tagSize];
+		this.pairs = new int[tagSize * tagSize];
+		this.candidates = new int[tagSize];
+		this.candidateEmissions = new double[tagSize];
+		this.heap = new int[beamWidth];
+	}
+	
+	/**
+	 * @return the number of unknown words of the last sentence decoded
+	 */
+	@Override
+	public int getUnknownCount()
+	{
+		return unknownCount;
+	}
+	
+	/**
+	 * @return the {@link HMMModel}
+	 */
+	@Override
+	public HMMModel getModel()
+	{
+		return model;
+	}
+	
+	/**
+	 * Tags a single sentence.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence, without boundary markers
+	 * @return the most probable tag for each token within the beam
+	 */
+	@Override
+	public String[] tag(String[] tokens)
+	{
+		int length = tokens.length;
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++)
+		{
+			wordIds[i] = model.getWordId(tokens[i]);
+		}
+		
+		int[] tagIds = decode(wordIds, tokens, length);
+		String[] tags = new String[length];
+		for (int i = 0; i < length; i++)
+		{
+			tags[i] = model.getTag(tagIds[i]);
+		}
+		return tags;
+	}
+	
+	/**
+	 * Runs the beam search over the word ids and backtraces the best path.
+	 * 
+	 * @param words
+	 *            word ids, -1 for unknown words
+	 * @param tokens
+	 *            the tokens, read only for the unknown words, or null to
+	 *            emit unknown words with the same probability from every
+	 *            state
+	 * @param length
+	 *            number of tokens to decode
+	 * @return the tag id for each token
+	 */
+	@Override
+	public int[] decode(int[] words, CharSequence[] tokens, int length)
+	{
+		int[] path = new int[length];
+		unknownCount = 0;
+		if (length == 0)
+			return path;
+		ensureCapacity(length);
+		
+		for (int position = 0; position < length; position++)
+		{
+			if (words[position] < 0)
+				unknownCount++;
+			int candidateCount = candidates(words[position],
+			        (tokens == null) ? null : tokens[position]);
+			if (++generation == 0)
+			{
+				Arrays.fill(pairStamps, 0);
+				generation = 1;
+			}
+			int pairCount = 0;
+			int prevStates = (position == 0) ? 1 : stateCounts[position - 1];
+			int prevBase = (position - 1) * beamWidth;
+			for (int state = 0; state < prevStates; state++)
+			{
+				int prevPrevTag = boundaryTag;
+				int prevTag = boundaryTag;
+				double score = 0.0;
+				if (position > 0)
+				{
+					prevTag = stateTags[prevBase + state];
+					score = stateScores[prevBase + state];
+					if (position > 1)
+						prevPrevTag = stateTags[prevBase - beamWidth
+						        + stateBacks[prevBase + state]];
+				}
+				for (int i = 0; i < candidateCount; i++)
+				{
+					int tag = candidates[i];
+					double logProb = score
+					        + model.getLogTrigram(prevPrevTag, prevTag, tag)
+					        + candidateEmissions[i];
+					int pair = prevTag * tagSize + tag;
+					if (pairStamps[pair] != generation)
+					{
+						pairStamps[pair] = generation;
+						pairScores[pair] = logProb;
+						pairBacks[pair] = (position == 0) ? -1 : state;
+						pairs[pairCount++] = pair;
+					}
+					else if (logProb > pairScores[pair])
+					{
+						pairScores[pair] = logProb;
+						pairBacks[pair] = state;
+					}
+				}
+			}
+			keepBest(position, pairCount);
+		}
+		
+		int last = length - 1;
+		int lastBase = last * beamWidth;
+		double best = Double.NEGATIVE_INFINITY;
+		int bestState = -1;
+		for (int state = 0; state < stateCounts[last]; state++)
+		{
+			int prevTag = (last == 0) ? boundaryTag : stateTags[lastBase
+			        - beamWidth + stateBacks[lastBase + state]];
+			double logProb = stateScores[lastBase + state]
+			        + model.getLogTrigram(prevTag, stateTags[lastBase + state],
+			                boundaryTag);
+			if (bestState < 0 || logProb > best)
+			{
+				best = logProb;
+				bestState = state;
+			}
+		}
+		
+		for (int position = last; position >= 0; position--)
+		{
+			path[position] = stateTags[position * beamWidth + bestState];
+			bestState = stateBacks[position * beamWidth + bestState];
+		}
+		return path;
+	}
+	
+	/**
+	 * Fills the candidate tags of a word and their log emissions.
+	 * 
+	 * @param word
+	 *            word id, -1 for an unknown word
+	 * @param token
+	 *            the word, or null
+	 * @return the number of candidate tags
+	 */
+	private int candidates(int word, CharSequence token)
+	{
+		int count = 0;
+		if (word >= 0)
+		{
+			int end = model.getEmissionEnd(word);
+			for (int i = model.getEmissionStart(word); i < end; i++)
+			{
+				candidates[count] = model.getEmissionTag(i);
+				candidateEmissions[count++] = model.getLogEmissionAt(i);
+			}
+			return count;
+		}
+		
+		if (token != null)
+		{
+			double[] logEmissions = unknownEmissions.logEmissions(token);
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				if (tag != boundaryTag
+				        && logEmissions[tag] != Double.NEGATIVE_INFINITY)
+				{
+					candidates[count] = tag;
+					candidateEmissions[count++] = logEmissions[tag];
+				}
+			}
+		}
+		if (count == 0)
+		{
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				if (tag != boundaryTag)
+				{
+					candidates[count] = tag;
+					candidateEmissions[count++] = 0.0;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Keeps the best beamWidth of the scored pairs as the states of the
+	 * position.
+	 * 
+	 * @param position
+	 * @param pairCount
+	 *            number of scored pairs
+	 */
+	private void keepBest(int position, int pairCount)
+	{
+		int kept;
+		if (pairCount <= beamWidth)
+		{
+			System.arraycopy(pairs, 0, heap, 0, pairCount);
+			kept = pairCount;
+		}
+		else
+		{
+			// Min-heap on the score, so the root is the worst kept pair
+			kept = 0;
+			for (int i = 0; i < pairCount; i++)
+			{
+				int pair = pairs[i];
+				if (kept < beamWidth)
+				{
+					heap[kept] = pair;
+					siftUp(kept++);
+				}
+				else if (better(pair, heap[0]))
+				{
+					heap[0] = pair;
+					siftDown(kept);
+				}
+			}
+		}
+		
+		int base = position * beamWidth;
+		for (int state = 0; state < kept; state++)
+		{
+			int pair = heap[state];
+			stateTags[base + state] = pair % tagSize;
+			stateBacks[base + state] = pairBacks[pair];
+			stateScores[base + state] = pairScores[pair];
+		}
+		stateCounts[position] = kept;
+	}
+	
+	/**
+	 * @param pair
+	 * @param other
+	 * @return whether the pair scores higher than the other, ties going to
+	 *         the lower pair
+	 */
+	private boolean better(int pair, int other)
+	{
+		double score = pairScores[pair];
+		double otherScore = pairScores[other];
+		return score > otherScore || (score == otherScore && pair < other);
+	}
+	
+	/**
+	 * @param index
+	 *            heap index of a pair just added
+	 */
+	private void siftUp(int index)
+	{
+		while (index > 0)
+		{
+			int parent = (index - 1) >>> 1;
+			if (!better(heap[parent], heap[index]))
+				break;
+			swap(parent, index);
+			index = parent;
+		}
+	}
+	
+	/**
+	 * @param size
+	 *            heap size, the root having just been replaced
+	 */
+	private void siftDown(int size)
+	{
+		int index = 0;
+		while (true)
+		{
+			int child = 2 * index + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && better(heap[child], heap[child + 1]))
+				child++;
+			if (!better(heap[index], heap[child]))
+				break;
+			swap(index, child);
+			index = child;
+		}
+	}
+	
+	/**
+	 * @param i
+	 * @param j
+	 *            heap indexes
+	 */
+	private void swap(int i, int j)
+	{
+		int pair = heap[i];
+		heap[i] = heap[j];
+		heap[j] = pair;
+	}
+	
+	/**
+	 * Grows the scratch arrays to hold a sentence of the given length.
+	 * 
+	 * @param length
+	 */
+	private void ensureCapacity(int length)
+	{
+		if (stateCounts.length < length)
+		{
+			int capacity = Math.max(length, stateCounts.length * 2);
+			wordIds = Arrays.copyOf(wordIds, capacity);
+			stateCounts = new int[capacity];
+			stateTags = new int[capacity * beamWidth];
+			stateBacks = new int[capacity * beamWidth];
+			stateScores = new double[capacity * beamWidth];
+		}
+	}
+}
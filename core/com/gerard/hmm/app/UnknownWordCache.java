@@ -0,0 +1,69 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Gerard
+ *         Bounded least recently used cache of the log emissions of unknown
+ *         words, keyed by their {@link UnknownWordModel} signature as the
+ *         same shapes and suffixes recur. Each decoder keeps its own cache,
+ *         so it is not thread-safe.
+ */
+class UnknownWordCache
+{
+	/** Number of unknown word signatures whose emissions are cached */
+	private static final int                      CACHE_SIZE = 4096;
+	
+	/** {@link UnknownWordModel} of the model */
+	private final UnknownWordModel                unknownWords;
+	
+	/** Number of tags in the model */
+	private final int                             tagSize;
+	
+	/** Signature to log emissions, in access order */
+	private final LinkedHashMap<String, double[]> cache;
+	
+	/**
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	UnknownWordCache(HMMModel model)
+	{
+		this.unknownWords = model.getUnknownWordModel();
+		this.tagSize = model.getTagSize();
+		this.cache = new LinkedHashMap<String, double[]>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(
+			        Map.Entry<String, double[]> eldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+	
+	/**
+	 * @param token
+	 *            an unknown word
+	 * @return the log emissions of the word for each tag id, negative
+	 *         infinity for the tags the word cannot have
+	 */
+	double[] logEmissions(CharSequence token)
+	{
+		String signature = UnknownWordModel.signature(token);
+		double[] logEmissions = cache.get(signature);
+		if (logEmissions == null)
+		{
+			logEmissions = new double[tagSize];
+			unknownWords.logEmissions(signature, logEmissions);
+			cache.put(signature, logEmissions);
+		}
+		return logEmissions;
+	}
+}
@@ -0,0 +1,742 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @author Gerard
+ *         Emission model of the words missing from the vocabulary of an
+ *         {@link HMMModel}, learned from the rare words of the training set.
+ *         Every rare word is counted under its shape, the capitalization,
+ *         digit and hyphen features taken before the word is lower cased, and
+ *         under each of its suffixes up to {@link #MAX_SUFFIX} characters.
+ *         The keys form a suffix trie per shape, flattened into a
+ *         {@link WordTable} of shape character + suffix, and each key holds
+ *         the sparse distribution P(tag | shape, suffix).
+ *         An unknown word gets the distribution of its longest suffix
+ *         smoothed by successive interpolation with the shorter suffixes,
+ *         divided by the tag priors to score like P(word | tag). The result
+ *         depends only on the {@link #signature(CharSequence)} of the word,
+ *         so decoders cache it by signature.
+ *         A model compiled after new training data may hold only the keys
+ *         the data changed, over the base model of the other keys, so that
+ *         it is compiled from the keys of the new words alone; see
+ *         {@link SuffixCounts}.
+ */
+class UnknownWordModel
+{
+	/** Longest suffix of the model */
+	static final int               MAX_SUFFIX      = 5;
+	
+	/** Highest training count of a word counted as rare */
+	static final int               RARE_WORD_COUNT = 10;
+	
+	/** Shape bit of a word starting with an upper case letter */
+	static final int               CAPITALIZED     = 1;
+	
+	/** Shape bit of a word of two or more letters, all upper case */
+	static final int               ALL_CAPS        = 2;
+	
+	/** Shape bit of a word holding a digit */
+	static final int               DIGIT           = 4;
+	
+	/** Shape bit of a word holding a hyphen */
+	static final int               HYPHEN          = 8;
+	
+	/** Number of bits of a shape */
+	static final int               SHAPE_BITS      = 4;
+	
+	/** Mask of the shape bits */
+	static final int               SHAPE_MASK      = (1 << SHAPE_BITS) - 1;
+	
+	/** Shape character + suffix keys */
+	private final WordTable        keys;
+	
+	/** Start of the entries of each key, and the entry count */
+	private final int[]            keyOffsets;
+	
+	/** Tag id of each entry */
+	private final int[]            entryTags;
+	
+	/** P(tag | shape, suffix) of each entry */
+	private final double[]         entryProbabilities;
+	
+	/** Tag distribution of all rare words */
+	private final double[]         rareTagProbabilities;
+	
+	/** log P(tag) over the whole training set */
+	private final double[]         logTagPriors;
+	
+	/** Weight of the shorter suffix in the interpolation */
+	private final double           theta;
+	
+	/**
+	 * The model of the keys this model does not hold, or null. A key of
+	 * this model without entries stands for a key the base holds but the
+	 * counts no longer do.
+	 */
+	private final UnknownWordModel base;
+	
+	/**
+	 * Initialize the model from its compiled tables.
+	 * 
+	 * @param keys
+	 *            shape character + suffix keys indexed by key id
+	 * @param keyOffsets
+	 * @param entryTags
+	 * @param entryProbabilities
+	 * @param rareTagProbabilities
+	 * @param logTagPriors
+	 * @param theta
+	 * @param base
+	 *            the model of the other keys, or null
+	 */
+	private UnknownWordModel(String[] keys, int[] keyOffsets,
+	        int[] entryTags, double[] entryProbabilities,
+	        double[] rareTagProbabilities, double[] logTagPriors,
+	        double theta, UnknownWordModel base)
+	{
+		this.keys = new WordTable(keys, false);
+		this.keyOffsets = keyOffsets;
+		this.entryTags = entryTags;
+		this.entryProbabilities = entryProbabilities;
+		this.rareTagProbabilities = rareTagProbabilities;
+		this.logTagPriors = logTagPriors;
+		this.theta = theta;
+		this.base = base;
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}
+	 * @return the shape character followed by the last {@link #MAX_SUFFIX}
+	 *         characters of the word, folded one code point at a time as
+	 *         {@link WordTable} folds the training words, which determine its
+	 *         emissions
+	 */
+	static String signature(CharSequence word)
+	{
+		StringBuilder signature = new StringBuilder(1 + MAX_SUFFIX);
+		signature.append(shapeChar(shape(word)));
+		int start = Math.max(0, word.length() - MAX_SUFFIX);
+		for (int i = start; i < word.length();)
+		{
+			int codePoint = Character.codePointAt(word, i);
+			signature.appendCodePoint(WordTable.foldCodePoint(codePoint));
+			i += Character.charCount(codePoint);
+		}
+		return signature.toString();
+	}
+	
+	/**
+	 * Fills the emission scores of an unknown word.
+	 * 
+	 * @param signature
+	 *            {@link #signature(CharSequence)} of the word
+	 * @param logEmissions
+	 *            receives log P(tag | shape, suffix) / P(tag) for each tag id,
+	 *            negative infinity for the tags never seen with a rare word
+	 */
+	void logEmissions(String signature, double[] logEmissions)
+	{
+		int tagSize = logEmissions.length;
+		System.arraycopy(rareTagProbabilities, 0, logEmissions, 0, tagSize);
+		int signatureLength = signature.length();
+		StringBuilder suffix = new StringBuilder(signatureLength);
+		suffix.append(signature.charAt(0));
+		for (int length = 0; length < signatureLength; length++)
+		{
+			// Shape character + the last length characters
+			suffix.setLength(1);
+			suffix.append(signature, signatureLength - length,
+			        signatureLength);
+			UnknownWordModel model = this;
+			int key = keys.find(suffix);
+			if (key < 0 && base != null)
+			{
+				model = base;
+				key = base.keys.find(suffix);
+			}
+			if (key < 0)
+				break;
+			int start = model.keyOffsets[key];
+			int end = model.keyOffsets[key + 1];
+			// A key without entries is a key of words no longer rare
+			if (start == end)
+				break;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				logEmissions[tag] *= theta;
+			}
+			for (int i = start; i < end; i++)
+			{
+				logEmissions[model.entryTags[i]] += model.entryProbabilities[i];
+			}
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				logEmissions[tag] /= 1.0 + theta;
+			}
+		}
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			logEmissions[tag] = Math.log(logEmissions[tag])
+			        - logTagPriors[tag];
+		}
+	}
+	
+	/**
+	 * Merges the model with its base.
+	 * 
+	 * @return a model without a base holding the keys of this model and the
+	 *         keys of the base this model does not hold, or this model when
+	 *         it has no base
+	 */
+	UnknownWordModel compact()
+	{
+		if (base == null)
+			return this;
+		String[] mergedKeys = new String[keys.size() + base.keys.size()];
+		int[] offsets = new int[mergedKeys.length + 1];
+		int[] tags = new int[entryTags.length + base.entryTags.length];
+		double[] probabilities = new double[tags.length];
+		int keyCount = 0;
+		int entry = 0;
+		for (UnknownWordModel model : new UnknownWordModel[] { this, base })
+		{
+			for (int key = 0; key < model.keys.size(); key++)
+			{
+				int start = model.keyOffsets[key];
+				int end = model.keyOffsets[key + 1];
+				if (start == end || model == base
+				        && keys.find(base.keys.get(key)) >= 0)
+					continue;
+				mergedKeys[keyCount] = model.keys.get(key);
+				offsets[keyCount++] = entry;
+				System.arraycopy(model.entryTags, start, tags, entry, end
+				        - start);
+				System.arraycopy(model.entryProbabilities, start,
+				        probabilities, entry, end - start);
+				entry += end - start;
+			}
+		}
+		offsets[keyCount] = entry;
+		return new UnknownWordModel(Arrays.copyOf(mergedKeys, keyCount),
+		        Arrays.copyOf(offsets, keyCount + 1),
+		        Arrays.copyOf(tags, entry),
+		        Arrays.copyOf(probabilities, entry), rareTagProbabilities,
+		        logTagPriors, theta, null);
+	}
+	
+	/**
+	 * @return the number of bytes of the model and of its base, which for a
+	 *         model without a base is the number written by
+	 *         {@link #write(ByteBuffer)}
+	 */
+	int byteSize()
+	{
+		int size = 16 + 16 * logTagPriors.length + 4 * keyOffsets.length
+		        + 12 * entryTags.length;
+		for (int key = 0; key < keys.size(); key++)
+		{
+			size += 4 + keys.get(key).getBytes(StandardCharsets.UTF_8).length;
+		}
+		return (base == null) ? size : size + base.byteSize();
+	}
+	
+	/**
+	 * Writes the model at the position of the buffer. A model with a base
+	 * is written once merged by {@link #compact()}.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 */
+	void write(ByteBuffer buffer)
+	{
+		buffer.putInt(keys.size()).putInt(logTagPriors.length)
+		        .putDouble(theta);
+		for (int tag = 0; tag < logTagPriors.length; tag++)
+		{
+			buffer.putDouble(rareTagProbabilities[tag]).putDouble(
+			        logTagPriors[tag]);
+		}
+		for (int offset : keyOffsets)
+		{
+			buffer.putInt(offset);
+		}
+		for (int i = 0; i < entryTags.length; i++)
+		{
+			buffer.putInt(entryTags[i]).putDouble(entryProbabilities[i]);
+		}
+		for (int key = 0; key < keys.size(); key++)
+		{
+			byte[] bytes = keys.get(key).getBytes(StandardCharsets.UTF_8);
+			buffer.putInt(bytes.length).put(bytes);
+		}
+	}
+	
+	/**
+	 * Reads a model written by {@link #write(ByteBuffer)} from the position
+	 * of the buffer onto the heap.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @return {@link UnknownWordModel}
+	 * @throws BufferUnderflowException
+	 *             when a count of the model runs past the end of the buffer
+	 */
+	static UnknownWordModel read(ByteBuffer buffer)
+	{
+		int keyCount = buffer.getInt();
+		int tagSize = buffer.getInt();
+		double theta = buffer.getDouble();
+		require(buffer, 16L * tagSize + 4L * (keyCount + 1L));
+		double[] rareTagProbabilities = new double[tagSize];
+		double[] logTagPriors = new double[tagSize];
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			rareTagProbabilities[tag] = buffer.getDouble();
+			logTagPriors[tag] = buffer.getDouble();
+		}
+		int[] keyOffsets = new int[keyCount + 1];
+		for (int key = 0; key <= keyCount; key++)
+		{
+			keyOffsets[key] = buffer.getInt();
+		}
+		int entries = keyOffsets[keyCount];
+		require(buffer, 12L * entries + 4L * keyCount);
+		int[] entryTags = new int[entries];
+		double[] entryProbabilities = new double[entries];
+		for (int i = 0; i < entries; i++)
+		{
+			entryTags[i] = buffer.getInt();
+			entryProbabilities[i] = buffer.getDouble();
+		}
+		String[] keys = new String[keyCount];
+		for (int key = 0; key < keyCount; key++)
+		{
+			int length = buffer.getInt();
+			require(buffer, length);
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			keys[key] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new UnknownWordModel(keys, keyOffsets, entryTags,
+		        entryProbabilities, rareTagProbabilities, logTagPriors, theta,
+		        null);
+	}
+	
+	/**
+	 * Checks a size read from a corrupt buffer before an array is allocated
+	 * for it.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param size
+	 *            number of bytes the next fields take
+	 * @throws BufferUnderflowException
+	 *             when the size is negative or runs past the end of the
+	 *             buffer
+	 */
+	private static void require(ByteBuffer buffer, long size)
+	{
+		if (size < 0 || size > buffer.remaining())
+			throw new BufferUnderflowException();
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding the word as UTF-8
+	 * @param start
+	 * @param end
+	 * @return the shape bits of the word
+	 */
+	static int shape(ByteBuffer buffer, int start, int end)
+	{
+		int shape = 0;
+		int upper = 0;
+		int lower = 0;
+		for (int i = start; i < end; i++)
+		{
+			shape |= shapeOf(buffer.get(i));
+			if (isUpper(buffer.get(i)))
+				upper++;
+			else if (buffer.get(i) >= 'a' && buffer.get(i) <= 'z')
+				lower++;
+		}
+		return shape(shape, end > start && isUpper(buffer.get(start)),
+		        upper, lower);
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}
+	 * @return the shape bits of the word
+	 */
+	static int shape(CharSequence word)
+	{
+		int shape = 0;
+		int upper = 0;
+		int lower = 0;
+		for (int i = 0; i < word.length(); i++)
+		{
+			char c = word.charAt(i);
+			if (c < 0x80)
+				shape |= shapeOf((byte) c);
+			if (c < 0x80 && isUpper((byte) c))
+				upper++;
+			else if (c >= 'a' && c <= 'z')
+				lower++;
+		}
+		return shape(shape, word.length() > 0 && word.charAt(0) < 0x80
+		        && isUpper((byte) word.charAt(0)), upper, lower);
+	}
+	
+	/**
+	 * @param shape
+	 *            the digit and hyphen bits
+	 * @param capitalized
+	 *            whether the first letter is upper case
+	 * @param upper
+	 *            number of upper case letters
+	 * @param lower
+	 *            number of lower case letters
+	 * @return the shape bits
+	 */
+	private static int shape(int shape, boolean capitalized, int upper,
+	        int lower)
+	{
+		if (capitalized)
+			shape |= CAPITALIZED;
+		if (upper > 1 && lower == 0)
+			shape |= ALL_CAPS;
+		return shape;
+	}
+	
+	/**
+	 * @param b
+	 *            a UTF-8 byte
+	 * @return the digit or hyphen bit of the byte
+	 */
+	private static int shapeOf(byte b)
+	{
+		if (b >= '0' && b <= '9')
+			return DIGIT;
+		if (b == '-')
+			return HYPHEN;
+		return 0;
+	}
+	
+	/**
+	 * @param b
+	 *            a UTF-8 byte
+	 * @return whether the byte is an ASCII upper case letter
+	 */
+	private static boolean isUpper(byte b)
+	{
+		return b >= 'A' && b <= 'Z';
+	}
+	
+	/**
+	 * @param shape
+	 *            shape bits
+	 * @return the character standing for the shape in the keys
+	 */
+	private static char shapeChar(int shape)
+	{
+		return (char) ('A' + shape);
+	}
+	
+	/**
+	 * @param counts
+	 *            the tag counts of a word
+	 * @return the training count of the word
+	 */
+	private static int total(int[] counts)
+	{
+		int total = 0;
+		for (int count : counts)
+		{
+			total += count;
+		}
+		return total;
+	}
+	
+	/**
+	 * @param total
+	 *            the training count of a word
+	 * @return whether the word is counted as rare
+	 */
+	private static boolean isRare(int total)
+	{
+		return total > 0 && total <= RARE_WORD_COUNT;
+	}
+	
+	/**
+	 * @author Gerard
+	 *         The tag counts of the keys of the rare words, kept by an
+	 *         {@link HMMGenerator} between two models. New training data
+	 *         recounts the keys of its own words, and the model is compiled
+	 *         again from the keys changed since the last whole compile, over
+	 *         the model of that compile.
+	 */
+	static final class SuffixCounts
+	{
+		/** Shape character + suffix keys */
+		private final WordTable   keys        = new WordTable(false);
+		
+		/** Tag counts of each key, by model tag id */
+		private final List<int[]> keyCounts   = new ArrayList<int[]>();
+		
+		/** Tag counts of all rare words, by model tag id */
+		private final int[]       rareCounts;
+		
+		/** The keys counted since the last whole compile */
+		private final BitSet      changedKeys = new BitSet();
+		
+		/**
+		 * Counts the rare words of the training counts.
+		 * 
+		 * @param counts
+		 *            {@link TrainingCounts}
+		 * @param modelTags
+		 *            model tag id of each tag id of the counts
+		 * @param tagSize
+		 *            number of tags of the model
+		 */
+		SuffixCounts(TrainingCounts counts, int[] modelTags, int tagSize)
+		{
+			this.rareCounts = new int[tagSize];
+			for (int word = 0; word < counts.getVocabularySize(); word++)
+			{
+				if (isRare(total(counts.getWordTagCounts(word))))
+					add(counts.getWord(word), counts.getWordShapeCounts(word),
+					        modelTags, 1);
+			}
+		}
+		
+		/**
+		 * Recounts the words of new training data once its counts were
+		 * merged into the training counts. A word rare before the data takes
+		 * back its previous counts, the merged counts less the new ones, and
+		 * a word rare after the data adds its merged counts.
+		 * 
+		 * @param counts
+		 *            the merged {@link TrainingCounts}
+		 * @param modelTags
+		 *            model tag id of each tag id of the counts
+		 * @param delta
+		 *            {@link TrainingCounts} of the new data
+		 * @param deltaModelTags
+		 *            model tag id of each tag id of the new data
+		 */
+		void count(TrainingCounts counts, int[] modelTags,
+		        TrainingCounts delta, int[] deltaModelTags)
+		{
+			for (int deltaWord = 0; deltaWord < delta.getVocabularySize(); deltaWord++)
+			{
+				String text = delta.getWord(deltaWord);
+				int word = counts.getWordId(text);
+				int total = total(counts.getWordTagCounts(word));
+				if (isRare(total - total(delta.getWordTagCounts(deltaWord))))
+				{
+					add(text, counts.getWordShapeCounts(word), modelTags, -1);
+					add(text, delta.getWordShapeCounts(deltaWord),
+					        deltaModelTags, 1);
+				}
+				if (isRare(total))
+					add(text, counts.getWordShapeCounts(word), modelTags, 1);
+			}
+		}
+		
+		/**
+		 * @return the number of keys
+		 */
+		int size()
+		{
+			return keys.size();
+		}
+		
+		/**
+		 * @return the number of keys counted since the last whole compile
+		 */
+		int getChangedKeyCount()
+		{
+			return changedKeys.cardinality();
+		}
+		
+		/**
+		 * Compiles the model of every key.
+		 * 
+		 * @param counts
+		 *            {@link TrainingCounts}, for the tag priors
+		 * @param modelTags
+		 *            model tag id of each tag id of the counts
+		 * @return {@link UnknownWordModel}
+		 */
+		UnknownWordModel compile(TrainingCounts counts, int[] modelTags)
+		{
+			changedKeys.clear();
+			return compile(counts, modelTags, null);
+		}
+		
+		/**
+		 * Compiles the keys counted since the last whole compile over the
+		 * model of that compile.
+		 * 
+		 * @param previous
+		 *            the model of the last whole compile, or a model compiled
+		 *            over it
+		 * @param counts
+		 *            {@link TrainingCounts}, for the tag priors
+		 * @param modelTags
+		 *            model tag id of each tag id of the counts
+		 * @return {@link UnknownWordModel}
+		 */
+		UnknownWordModel compileChanges(UnknownWordModel previous,
+		        TrainingCounts counts, int[] modelTags)
+		{
+			return compile(counts, modelTags,
+			        (previous.base == null) ? previous : previous.base);
+		}
+		
+		/**
+		 * @param counts
+		 *            {@link TrainingCounts}, for the tag priors
+		 * @param modelTags
+		 *            model tag id of each tag id of the counts
+		 * @param base
+		 *            the model of the unchanged keys, or null to compile
+		 *            every key
+		 * @return {@link UnknownWordModel}
+		 */
+		private UnknownWordModel compile(TrainingCounts counts,
+		        int[] modelTags, UnknownWordModel base)
+		{
+			int tagSize = rareCounts.length;
+			int[] ids;
+			int keyCount = 0;
+			if (base == null)
+			{
+				ids = new int[keys.size()];
+				for (int key = 0; key < ids.length; key++)
+				{
+					// The keys of words no longer rare are left out
+					if (total(keyCounts.get(key)) > 0)
+						ids[keyCount++] = key;
+				}
+			}
+			else
+			{
+				ids = new int[changedKeys.cardinality()];
+				for (int key = changedKeys.nextSetBit(0); key >= 0; key = changedKeys
+				        .nextSetBit(key + 1))
+				{
+					ids[keyCount++] = key;
+				}
+			}
+			
+			String[] compiledKeys = new String[keyCount];
+			int[] keyOffsets = new int[keyCount + 1];
+			int entries = 0;
+			for (int key = 0; key < keyCount; key++)
+			{
+				compiledKeys[key] = keys.get(ids[key]);
+				for (int count : keyCounts.get(ids[key]))
+				{
+					if (count > 0)
+						entries++;
+				}
+			}
+			int[] entryTags = new int[entries];
+			double[] entryProbabilities = new double[entries];
+			int entry = 0;
+			for (int key = 0; key < keyCount; key++)
+			{
+				keyOffsets[key] = entry;
+				int[] tagCounts = keyCounts.get(ids[key]);
+				int total = total(tagCounts);
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					if (tagCounts[tag] > 0)
+					{
+						entryTags[entry] = tag;
+						entryProbabilities[entry] = (double) tagCounts[tag]
+						        / (double) total;
+						entry++;
+					}
+				}
+			}
+			keyOffsets[keyCount] = entry;
+			
+			int rareTotal = total(rareCounts);
+			int allTotal = 0;
+			for (int countTag = 0; countTag < counts.getTagSize(); countTag++)
+			{
+				allTotal += counts.getTagCount(countTag);
+			}
+			double[] rareTagProbabilities = new double[tagSize];
+			double[] logTagPriors = new double[tagSize];
+			double mean = 1.0 / tagSize;
+			double variance = 0.0;
+			for (int tag = 0; tag < tagSize; tag++)
+			{
+				rareTagProbabilities[tag] = (rareTotal == 0) ? mean
+				        : (double) rareCounts[tag] / (double) rareTotal;
+				variance += (rareTagProbabilities[tag] - mean)
+				        * (rareTagProbabilities[tag] - mean);
+			}
+			for (int countTag = 0; countTag < counts.getTagSize(); countTag++)
+			{
+				logTagPriors[modelTags[countTag]] = Math.log((double) counts
+				        .getTagCount(countTag) / (double) allTotal);
+			}
+			double theta = (tagSize > 1) ? Math.sqrt(variance / (tagSize - 1))
+			        : 0.0;
+			
+			return new UnknownWordModel(compiledKeys, keyOffsets, entryTags,
+			        entryProbabilities, rareTagProbabilities, logTagPriors,
+			        theta, base);
+		}
+		
+		/**
+		 * Adds the counts of a word under each of its shapes to its keys.
+		 * 
+		 * @param text
+		 *            the word
+		 * @param shapes
+		 *            the shape counts of the word
+		 * @param modelTags
+		 *            model tag id of each tag id of the shape counts
+		 * @param sign
+		 *            1 to add the counts, -1 to take them back
+		 */
+		private void add(String text, int[] shapes, int[] modelTags, int sign)
+		{
+			int longest = Math.min(MAX_SUFFIX, text.length());
+			for (int i = 1; i < 2 * shapes[0]; i += 2)
+			{
+				int tag = modelTags[shapes[i] >>> SHAPE_BITS];
+				char shape = shapeChar(shapes[i] & SHAPE_MASK);
+				int count = sign * shapes[i + 1];
+				rareCounts[tag] += count;
+				for (int length = 0; length <= longest; length++)
+				{
+					int key = keys.intern(shape
+					        + text.substring(text.length() - length));
+					if (key == keyCounts.size())
+						keyCounts.add(new int[rareCounts.length]);
+					keyCounts.get(key)[tag] += count;
+					changedKeys.set(key);
+				}
+			}
+		}
+	}
+}
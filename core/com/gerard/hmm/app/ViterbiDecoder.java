@@ -0,0 +1,503 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.util.Arrays;
+
+/**
+ * @author Gerard
+ *         Sentence level Viterbi decoder over a compiled {@link HMMModel}.
+ *         Each sentence is decoded on a tag x token lattice of primitive
+ *         log-space scores with backpointers. Only the candidate tags of each
+ *         word get a state, and each state is reached through the smaller of
+ *         the previous states and the predecessors of its tag with a
+ *         non-zero transition, so most tokens cost a handful of pairs. The
+ *         best tag sequence is recovered by a full backtrace. Scores are sums of the log
+ *         probabilities precomputed by the model, so long sentences do not
+ *         underflow. Unknown words are scored by the
+ *         {@link UnknownWordModel} of the model through an
+ *         {@link UnknownWordCache}. The lattice and the cache are reused
+ *         between sentences, so a decoder is cheap to call repeatedly but
+ *         must not be shared between threads. Once the tag set is dense,
+ *         an optional max-plus kernel scores each state over every previous
+ *         tag with loops the JIT vectorizes, giving the same tags.
+ */
+public class ViterbiDecoder implements SentenceDecoder
+{
+	/** The tag used for the sentence boundaries in the training set */
+	public static final String     BOUNDARY_TAG          = "###";
+	
+	/**
+	 * System property turning on the dense max-plus kernel for the decoders
+	 * created without an explicit choice
+	 */
+	public static final String     DENSE_KERNEL_PROPERTY = "com.gerard.hmm.viterbi.dense";
+	
+	/**
+	 * {@link HMMModel}
+	 */
+	private final HMMModel         model;
+	
+	/** Number of tags in the model */
+	private final int              tagSize;
+	
+	/** Tag id of the sentence boundary */
+	private final int              boundaryTag;
+	
+	/**
+	 * The Viterbi scores where lattice[position * tagSize + tag] is the log
+	 * probability of the best path ending in tag at position.
+	 */
+	private double[]               lattice;
+	
+	/** The previous tag on the best path for each lattice cell */
+	private int[]                  backPointers;
+	
+	/**
+	 * The candidate tags of each position, stored from
+	 * states[position * tagSize].
+	 */
+	private int[]                  states;
+	
+	/** Number of candidate tags of each position */
+	private int[]                  stateCounts;
+	
+	/**
+	 * Mark of the position that last had each tag as a state, stored at
+	 * [(position & 1) * tagSize + tag] for the current and previous
+	 * positions
+	 */
+	private final int[]            stateMarks;
+	
+	/** Mark of the position being scored */
+	private int                    mark;
+	
+	/** Word ids of the sentence being decoded, -1 for unknown words */
+	private int[]                  wordIds;
+	
+	/** Number of unknown words of the last sentence decoded */
+	private int                    unknownCount;
+	
+	/** Log emissions of the unknown words seen recently */
+	private final UnknownWordCache unknownEmissions;
+	
+	/** Whether the states are scored by the dense max-plus kernel */
+	private final boolean          denseKernel;
+	
+	/**
+	 * log P(tag | prevTag) stored at [tag * tagSize + prevTag], so the
+	 * transitions into a tag are contiguous, for the dense kernel
+	 */
+	private final double[]         logTransposed;
+	
+	/**
+	 * The lattice row of the previous position over every tag, negative
+	 * infinity for the tags that are not a state, for the dense kernel
+	 */
+	private final double[]         prevScores;
+	
+	/** Path scores through each previous tag, for the dense kernel */
+	private final double[]         sums;
+	
+	/**
+	 * Initialize the decoder for the given model, with the dense kernel when
+	 * the {@link #DENSE_KERNEL_PROPERTY} system property is true.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	public ViterbiDecoder(HMMModel model)
+	{
+		this(model, Boolean.getBoolean(DENSE_KERNEL_PROPERTY));
+	}
+	
+	/**
+	 * Initialize the decoder for the given model.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param denseKernel
+	 *            whether to score each state with the dense max-plus kernel
+	 *            over every previous tag instead of the sparse loop over the
+	 *            previous states or the predecessors of its tag; both give
+	 *            the same tags
+	 */
+	public ViterbiDecoder(HMMModel model, boolean denseKernel)
+	{
+		this.model = model;
+		this.tagSize = model.getTagSize();
+		this.boundaryTag = model.getTagId(BOUNDARY_TAG);
+		if (boundaryTag < 0)
+			throw new IllegalArgumentException("Model has no " + BOUNDARY_TAG
+			        + " boundary tag");
+		this.lattice = new double[0];
+		this.backPointers = new int[0];
+		this.states = new int[0];
+		this.stateCounts = new int[0];
+		this.stateMarks = new int[2 * tagSize];
+		this.wordIds = new int[0];
+		this.unknownEmissions = new UnknownWordCache(model);
+		this.denseKernel = denseKernel;
+		this.logTransposed = denseKernel ? new double[tagSize * tagSize]
+		        : null;
+		this.prevScores = denseKernel ? new double[tagSize] : null;
+		this.sums = denseKernel ? new double[tagSize] : null;
+		if (denseKernel)
+		{
+			for (int prevTag = 0; prevTag < tagSize; prevTag++)
+			{
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					logTransposed[tag * tagSize + prevTag] = model
+					        .getLogTransition(prevTag, tag);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of unknown words of the last sentence decoded
+	 */
+	@Override
+	public int getUnknownCount()
+	{
+		return unknownCount;
+	}
+	
+	/**
+	 * @return the {@link HMMModel}
+	 */
+	@Override
+	public HMMModel getModel()
+	{
+		return model;
+	}
+	
+	/**
+	 * Tags a single sentence.
+	 * 
+	 * @param tokens
+	 *            the words of the sentence, without boundary markers
+	 * @return the most probable tag for each token
+	 */
+	@Override
+	public String[] tag(String[] tokens)
+	{
+		int length = tokens.length;
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++)
+		{
+			wordIds[i] = model.getWordId(tokens[i]);
+		}
+		
+		int[] tagIds = decode(wordIds, tokens, length);
+		String[] tags = new String[length];
+		for (int i = 0; i < length; i++)
+		{
+			tags[i] = model.getTag(tagIds[i]);
+		}
+		return tags;
+	}
+	
+	/**
+	 * Runs the Viterbi recursion over the word ids and backtraces the best
+	 * path. Unknown words are emitted with the same probability from every
+	 * state.
+	 * 
+	 * @param words
+	 *            word ids, -1 for unknown words
+	 * @param length
+	 *            number of tokens to decode
+	 * @return the tag id for each token
+	 */
+	public int[] decode(int[] words, int length)
+	{
+		return decode(words, null, length);
+	}
+	
+	/**
+	 * Runs the Viterbi recursion over the word ids and backtraces the best
+	 * path.
+	 * 
+	 * @param words
+	 *            word ids, -1 for unknown words
+	 * @param tokens
+	 *            the tokens, read only for the unknown words to score them
+	 *            with the {@link UnknownWordModel}, or null to emit unknown
+	 *            words with the same probability from every state
+	 * @param length
+	 *            number of tokens to decode
+	 * @return the tag id for each token
+	 */
+	@Override
+	public int[] decode(int[] words, CharSequence[] tokens, int length)
+	{
+		int[] path = new int[length];
+		unknownCount = 0;
+		if (length == 0)
+			return path;
+		ensureCapacity(length);
+		if (mark > Integer.MAX_VALUE - length - 1)
+		{
+			Arrays.fill(stateMarks, 0);
+			mark = 0;
+		}
+		
+		for (int position = 0; position < length; position++)
+		{
+			mark++;
+			stateCounts[position] = 0;
+			if (denseKernel && position > 0)
+				densePrevScores(position - 1);
+			int word = words[position];
+			if (word < 0)
+				unknownCount++;
+			if (word < 0 && tokens != null)
+			{
+				double[] logEmissions = unknownEmissions
+				        .logEmissions(tokens[position]);
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					if (tag != boundaryTag
+					        && logEmissions[tag] != Double.NEGATIVE_INFINITY)
+						score(position, tag, logEmissions[tag]);
+				}
+			}
+			if (word < 0 && stateCounts[position] == 0)
+			{
+				// Without a shape or suffix match, unknown words are assumed
+				// to be emitted with the same probability from every state.
+				for (int tag = 0; tag < tagSize; tag++)
+				{
+					if (tag != boundaryTag)
+						score(position, tag, 0.0);
+				}
+			}
+			else if (word >= 0)
+			{
+				int end = model.getEmissionEnd(word);
+				for (int i = model.getEmissionStart(word); i < end; i++)
+				{
+					score(position, model.getEmissionTag(i),
+					        model.getLogEmissionAt(i));
+				}
+			}
+		}
+		
+		int last = length - 1;
+		int lastRow = last * tagSize;
+		double best = Double.NEGATIVE_INFINITY;
+		int bestTag = -1;
+		for (int i = 0; i < stateCounts[last]; i++)
+		{
+			int tag = states[lastRow + i];
+			double logProb = lattice[lastRow + tag]
+			        + model.getLogTransition(tag, boundaryTag);
+			if (bestTag < 0 || logProb > best)
+			{
+				best = logProb;
+				bestTag = tag;
+			}
+		}
+		
+		for (int position = last; position >= 0; position--)
+		{
+			path[position] = bestTag;
+			bestTag = backPointers[position * tagSize + bestTag];
+		}
+		return path;
+	}
+	
+	/**
+	 * Adds the tag as a candidate state of the position and fills its
+	 * lattice cell with the best path from the previous position.
+	 * 
+	 * @param position
+	 * @param tag
+	 * @param logEmission
+	 *            log P(word | tag)
+	 */
+	private void score(int position, int tag, double logEmission)
+	{
+		double best;
+		int bestPrevTag;
+		if (position == 0)
+		{
+			best = model.getLogTransition(boundaryTag, tag);
+			bestPrevTag = boundaryTag;
+		}
+		else
+		{
+			bestPrevTag = denseKernel ? densePredecessor(tag) : -1;
+			if (bestPrevTag >= 0)
+			{
+				best = sums[bestPrevTag];
+			}
+			else
+			{
+				// The sparse loop, also taken by the dense kernel when no
+				// previous state can reach the tag, to keep the same path.
+				int prevRow = (position - 1) * tagSize;
+				bestPrevTag = bestPredecessor(model, lattice, states, prevRow,
+				        stateCounts[position - 1], stateMarks,
+				        ((position - 1) & 1) * tagSize, mark - 1, tag);
+				best = lattice[prevRow + bestPrevTag]
+				        + model.getLogTransition(bestPrevTag, tag);
+			}
+		}
+		int row = position * tagSize;
+		stateMarks[(position & 1) * tagSize + tag] = mark;
+		lattice[row + tag] = best + logEmission;
+		backPointers[row + tag] = bestPrevTag;
+		states[row + stateCounts[position]++] = tag;
+	}
+	
+	/**
+	 * The sparse step of the recursion, shared with the
+	 * {@link BatchDecoder}: finds the previous tag on the best path into the
+	 * tag, looping over the smaller of the states of the previous position
+	 * and the predecessors of the tag, the predecessors being told apart
+	 * from the other tags by their mark. The previous states are visited in
+	 * tag id order either way, so both loops find the same tag.
+	 * 
+	 * @param model
+	 *            {@link HMMModel}
+	 * @param lattice
+	 *            the Viterbi scores, those of the previous position being
+	 *            stored from prevRow by tag
+	 * @param states
+	 *            the candidate tags, those of the previous position being
+	 *            stored from prevRow
+	 * @param prevRow
+	 *            index of the lattice row of the previous position
+	 * @param prevStates
+	 *            number of states of the previous position
+	 * @param stateMarks
+	 *            the marks of the tags that are a state
+	 * @param prevMarks
+	 *            index of the marks of the previous position
+	 * @param prevMark
+	 *            mark of the previous position
+	 * @param tag
+	 * @return the best previous tag, or the first previous state when no
+	 *         previous state can reach the tag, as a full scan would keep
+	 */
+	static int bestPredecessor(HMMModel model, double[] lattice,
+	        int[] states, int prevRow, int prevStates, int[] stateMarks,
+	        int prevMarks, int prevMark, int tag)
+	{
+		double best = Double.NEGATIVE_INFINITY;
+		int bestPrevTag = -1;
+		int start = model.getPredecessorStart(tag);
+		int end = model.getPredecessorEnd(tag);
+		if (end - start < prevStates)
+		{
+			for (int i = start; i < end; i++)
+			{
+				int prevTag = model.getPredecessor(i);
+				if (stateMarks[prevMarks + prevTag] != prevMark)
+					continue;
+				double logProb = lattice[prevRow + prevTag]
+				        + model.getLogTransition(prevTag, tag);
+				if (bestPrevTag < 0 || logProb > best)
+				{
+					best = logProb;
+					bestPrevTag = prevTag;
+				}
+			}
+		}
+		else
+		{
+			for (int i = 0; i < prevStates; i++)
+			{
+				int prevTag = states[prevRow + i];
+				double logProb = lattice[prevRow + prevTag]
+				        + model.getLogTransition(prevTag, tag);
+				if (bestPrevTag < 0 || logProb > best)
+				{
+					best = logProb;
+					bestPrevTag = prevTag;
+				}
+			}
+		}
+		return (bestPrevTag < 0) ? states[prevRow] : bestPrevTag;
+	}
+	
+	/**
+	 * Fills the dense row of the previous position from its states.
+	 * 
+	 * @param prevPosition
+	 */
+	private void densePrevScores(int prevPosition)
+	{
+		int prevRow = prevPosition * tagSize;
+		for (int tag = 0; tag < tagSize; tag++)
+		{
+			prevScores[tag] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = 0; i < stateCounts[prevPosition]; i++)
+		{
+			int prevTag = states[prevRow + i];
+			prevScores[prevTag] = lattice[prevRow + prevTag];
+		}
+	}
+	
+	/**
+	 * The dense max-plus kernel: adds the transitions into the tag to the
+	 * scores of every previous tag, takes the maximum and returns the first
+	 * previous tag reaching it. The add and max loops run over whole
+	 * contiguous rows without branches, which the JIT compiles to SIMD code.
+	 * The previous states are visited in tag id order by the sparse loop
+	 * too, and a tag that is not a state or has no transition into the tag
+	 * scores negative infinity, so the same previous tag is found.
+	 * 
+	 * @param tag
+	 * @return the best previous tag, with its path score in sums, or -1 when
+	 *         no previous state reaches the tag
+	 */
+	private int densePredecessor(int tag)
+	{
+		double[] scores = prevScores;
+		double[] transitions = logTransposed;
+		double[] paths = sums;
+		int column = tag * tagSize;
+		for (int prevTag = 0; prevTag < tagSize; prevTag++)
+		{
+			paths[prevTag] = scores[prevTag] + transitions[column + prevTag];
+		}
+		double best = Double.NEGATIVE_INFINITY;
+		for (int prevTag = 0; prevTag < tagSize; prevTag++)
+		{
+			best = Math.max(best, paths[prevTag]);
+		}
+		if (best == Double.NEGATIVE_INFINITY)
+			return -1;
+		int prevTag = 0;
+		while (paths[prevTag] != best)
+		{
+			prevTag++;
+		}
+		return prevTag;
+	}
+	
+	/**
+	 * Grows the scratch arrays to hold a sentence of the given length.
+	 * 
+	 * @param length
+	 */
+	private void ensureCapacity(int length)
+	{
+		if (stateCounts.length < length)
+		{
+			int capacity = Math.max(length, stateCounts.length * 2);
+			int[] ids = new int[capacity];
+			System.arraycopy(wordIds, 0, ids, 0, wordIds.length);
+			wordIds = ids;
+			stateCounts = new int[capacity];
+			lattice = new double[capacity * tagSize];
+			backPointers = new int[capacity * tagSize];
+			states = new int[capacity * tagSize];
+		}
+	}
+}
@@ -3,43 +3,42 @@
  */
 package com.gerard.hmm.app;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.List;
 
 import com.gerard.hmm.exception.HMMParserException;
 
 /**
  * @author Gerard
+ *         Evaluates the {@link SentenceDecoder} of a model, a
+ *         {@link ViterbiDecoder} or a {@link TrigramDecoder} for a trigram
+ *         model, against a hand tagged test file. The test file is decoded
+ *         in parallel by a {@link ParallelEvaluator}.
  */
 public class ViterbiExecutor
 {
 	/**
-	 * {@link HMMGenerator}
+	 * {@link HMMModel}
 	 */
-	private HMMGenerator            generator;
+	private HMMModel        model;
 	
 	/**
-	 * This is basically used as memoized dynamic programming to avoid
-	 * re-computation of the recursive functions.
+	 * Decodes each sentence of the test file.
 	 */
-	private HashMap<String, Double> viterbiStore;
+	private SentenceDecoder decoder;
 	/**
 	 * Total words in the test set.
 	 */
-	private double                  totalWordCount = 0;
+	private double          totalWordCount = 0;
 	
 	/**
 	 * Dismatch count is the count of words that hand tags are not matching with
 	 * the gold set tags.
 	 */
-	private double                  dismatchCount  = 0;
+	private double          dismatchCount  = 0;
 	
-	private String                  testFile;
+	private String          testFile;
 	
 	/**
 	 * Initialized Viterbi algorithm that uses {@link HMMGenerator} and a test
@@ -50,8 +49,22 @@ public class ViterbiExecutor
 	 */
 	public ViterbiExecutor(String testFile, HMMGenerator generator)
 	{
-		this.generator = generator;
-		this.viterbiStore = new HashMap<String, Double>();
+		this(testFile, generator.getModel());
+	}
+	
+	/**
+	 * Initialized Viterbi algorithm that uses a compiled or loaded
+	 * {@link HMMModel} and a test file.
+	 * 
+	 * @param testFile
+	 *            {@link String}
+	 * @param model
+	 *            {@link HMMModel}
+	 */
+	public ViterbiExecutor(String testFile, HMMModel model)
+	{
+		this.model = model;
+		this.decoder = SentenceDecoder.forModel(model);
 		this.testFile = testFile;
 	}
 	
@@ -68,239 +81,54 @@ public class ViterbiExecutor
 	 */
 	public double errorRate() throws HMMParserException, IOException
 	{
-		parseTestFile();
+		Evaluation evaluation = evaluate();
+		totalWordCount += evaluation.getTokenCount();
+		dismatchCount += evaluation.getErrorCount();
 		return dismatchCount / totalWordCount;
 	}
 	
 	/**
-	 * Parses the test file
+	 * Decodes the test file in parallel with a {@link ParallelEvaluator}.
 	 * 
+	 * @return the confusion matrix, the per-tag precision and recall and the
+	 *         known and unknown word accuracy as an {@link Evaluation}
 	 * @throws HMMParserException
 	 * @throws IOException
 	 */
-	private void parseTestFile() throws HMMParserException, IOException
-	{
-		boolean isStart = false;
-		BufferedReader reader = null;
-		String prevWord = "###";
-		try
-		{
-			reader = new BufferedReader(new InputStreamReader(
-			        new FileInputStream(testFile)));
-			String line;
-			while ((line = reader.readLine()) != null)
-			{
-				if (line.equals("###/###"))
-				{
-					viterbiStore.clear();
-					isStart = (isStart) ? false : true;
-					viterbiStore.put(
-					        "###~###",
-					        this.generator.getTransitionProbabilities()
-					                .get("###").get("###")
-					                * this.generator.getEmissionProbabilities()
-					                        .get("###").get("###"));
-				}
-				else
-				{
-					prevWord = parseLine(line, prevWord);
-				}
-			}
-		}
-		catch (Exception e)
-		{
-			e.printStackTrace();
-			throw new HMMParserException(e);
-		}
-		finally
-		{
-			if (reader != null)
-				reader.close();
-		}
-	}
-	
-	/**
-	 * ParseLine
-	 * 
-	 * @param line
-	 *            {@link String}
-	 * @param prevWord
-	 * @return
-	 */
-	private String parseLine(String line, String prevWord)
-	{
-		String[] posTaggerWord = line.split("/");
-		String word = posTaggerWord[0].toLowerCase();
-		String tag = posTaggerWord[1].trim();
-		
-		String probableTag = execute(word, prevWord);
-		
-		totalWordCount++;
-		if (!tag.equals(probableTag.trim()))
-			dismatchCount++;
-		
-		return word;
-	}
-	
-	/**
-	 * Executes the viterbi algorithm.
-	 * 
-	 * @param word
-	 *            {@link String}
-	 * @param prevWord
-	 * @return
-	 */
-	public String execute(String word, String prevWord)
+	public Evaluation evaluate() throws HMMParserException, IOException
 	{
-		HashMap<String, Integer> tagsForWord = this.generator
-		        .getTagsForWord(word);
-		
-		if (tagsForWord.isEmpty())
-		{
-			return unknownWord(word, prevWord);
-		}
-		else
-		{
-			return knownWord(tagsForWord, word, prevWord);
-		}
-		
+		return new ParallelEvaluator(model).evaluate(testFile);
 	}
 	
 	/**
-	 * Test set may contain some unknown words that do not appear in the
-	 * training
-	 * set. Handle these unknown words by assuming that the probability of
-	 * observing these words from is same for all the states
+	 * Tags a single sentence with the {@link HMMModel}.
 	 * 
-	 * @param prevWord
-	 * @param word
-	 * @return the maximum prbability Tag
+	 * @param tokens
+	 *            the words of the sentence
+	 * @return the most probable tag for each word
 	 */
-	private String unknownWord(String word, String prevWord)
+	public String[] tag(String[] tokens)
 	{
-		HashMap<String, Integer> tagsForWord = this.generator
-		        .getTagsForWord(prevWord);
-		
-		double maxProb = 0;
-		String maxProbableTag = "";
-		for (String tagforWord : tagsForWord.keySet())
-		{
-			HashMap<String, Double> emissionTags = this.generator
-			        .getTransitionProbabilities().get(tagforWord);
-			
-			for (Entry<String, Double> emissionTag : emissionTags.entrySet())
-			{
-				double maxEmissionProb = emissionTag.getValue();
-				
-				if (maxEmissionProb > maxProb)
-				{
-					maxProb = maxEmissionProb;
-					maxProbableTag = emissionTag.getKey();
-				}
-			}
-		}
-		if (maxProbableTag.isEmpty())
-		{
-			for (String prevWordTag : viterbiStore.keySet())
-			{
-				if (prevWordTag.startsWith(prevWord + "~"))
-				{
-					String prevTag = prevWordTag.split("~")[1];
-					double maxProbabilityTag = viterbiStore.get(prevWordTag);
-					if (maxProbabilityTag > maxProb)
-					{
-						maxProb = maxProbabilityTag;
-						maxProbableTag = prevTag;
-					}
-				}
-			}
-		}
-		viterbiStore.put(word + "~" + maxProbableTag, maxProb);
-		return maxProbableTag;
+		return decoder.tag(tokens);
 	}
 	
 	/**
-	 * @param tagsForWord
-	 *            {@link Map}
-	 * @param prevWord
-	 *            {@link String}
-	 * @param word
-	 *            {@link String}
-	 * @return the maximum prbability Tag
-	 */
-	private String knownWord(HashMap<String, Integer> tagsForWord, String word,
-	        String prevWord)
-	{
-		double maxProbStateForObservation = 0.0;
-		String maxProbTag = "";
-		for (String tagForWord : tagsForWord.keySet())
-		{
-			double maxProb = maxProbStateForObservation(word, tagForWord,
-			        prevWord);
-			
-			if (maxProb > maxProbStateForObservation)
-			{
-				maxProbStateForObservation = maxProb;
-				maxProbTag = tagForWord;
-			}
-			
-			viterbiStore.put(word + "~" + tagForWord,
-			        maxProbStateForObservation);
-		}
-		return maxProbTag;
-		
-	}
-	
-	/**
-	 * Finds out the maximum probability of the given word in the given tag.
+	 * Tags the sentences with the {@link HMMModel}, in length buckets with a
+	 * {@link BatchDecoder} unless the model has trigram transitions.
 	 * 
-	 * @param observationWord
-	 *            {@link String}
-	 * @param tagForWord
-	 *            {@link String}
-	 * @param prevWord
-	 *            {@link String}
-	 * @return
+	 * @param sentences
+	 *            {@link List} of sentences
+	 * @return the tags of each sentence, in the order of the sentences
 	 */
-	private double maxProbStateForObservation(String observationWord,
-	        String tagForWord, String prevWord)
+	public List<String[]> tagAll(List<String[]> sentences)
 	{
-		return findMaximum(observationWord, tagForWord, prevWord)
-		        * this.generator.probabilityForWordGivenTag(tagForWord,
-		                observationWord);
-	}
-	
-	/**
-	 * @param observationWord
-	 * @param tagForWord
-	 * @param prevWord
-	 * @return
-	 */
-	private double findMaximum(String observationWord, String tagForWord,
-	        String prevWord)
-	{
-		double maxProbability = 0.0;
-		
-		try
-		{
-			for (String prevWordTag : viterbiStore.keySet())
-			{
-				if (prevWordTag.startsWith(prevWord + "~"))
-				{
-					String prevTag = prevWordTag.split("~")[1];
-					double maxProbabilityTag = viterbiStore.get(prevWordTag)
-					        * this.generator.probabilityForTagGivenPrevTag(
-					                prevTag, tagForWord);
-					if (maxProbabilityTag > maxProbability)
-						maxProbability = maxProbabilityTag;
-				}
-			}
-		}
-		catch (Exception e)
+		if (!model.hasTrigrams())
+			return Arrays.asList(new BatchDecoder(model).tagAll(sentences));
+		String[][] tags = new String[sentences.size()][];
+		for (int i = 0; i < tags.length; i++)
 		{
-			e.printStackTrace();
+			tags[i] = decoder.tag(sentences.get(i));
 		}
-		
-		return maxProbability;
+		return Arrays.asList(tags);
 	}
 }
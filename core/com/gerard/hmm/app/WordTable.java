@@ -0,0 +1,579 @@
+/**
+ * 
+ */
+package com.gerard.hmm.app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Gerard
+ *         Interns words to dense ids. The keys are stored as UTF-8 bytes in
+ *         a single pool and found through an open addressing table, so a
+ *         word can be looked up straight from the byte range of a corpus
+ *         buffer or from a {@link CharSequence} without creating a
+ *         {@link String}. With case folding on, ASCII letters are lower
+ *         cased while hashing and comparing; words holding other characters
+ *         are folded one code point at a time with
+ *         {@link Character#toLowerCase(int)}, which does not depend on the
+ *         default locale and which the {@link Lexicon} repeats on the fly.
+ *         Lookups are safe from any number of threads once the table is no
+ *         longer modified.
+ */
+class WordTable
+{
+	/** FNV-1a offset basis */
+	private static final int HASH_SEED     = 0x811c9dc5;
+	
+	/** FNV-1a prime */
+	private static final int HASH_PRIME    = 0x01000193;
+	
+	/** Initial number of hash slots, a power of two */
+	private static final int INITIAL_SLOTS = 64;
+	
+	/** Whether keys are lower cased */
+	private final boolean    foldCase;
+	
+	/** The key bytes of all words */
+	private byte[]           pool;
+	
+	/** Number of used bytes of the pool */
+	private int              poolSize;
+	
+	/** The key of id i is pool[offsets[i], offsets[i + 1]) */
+	private int[]            offsets;
+	
+	/** Hash of each key */
+	private int[]            hashes;
+	
+	/** The word of each id */
+	private String[]         words;
+	
+	/** Open addressing slots holding id + 1, 0 for an empty slot */
+	private int[]            slots;
+	
+	/** Number of words */
+	private int              size;
+	
+	/**
+	 * Initialize an empty table.
+	 * 
+	 * @param foldCase
+	 *            whether words are lower cased
+	 */
+	WordTable(boolean foldCase)
+	{
+		this.foldCase = foldCase;
+		this.pool = new byte[1024];
+		this.offsets = new int[INITIAL_SLOTS / 2 + 1];
+		this.hashes = new int[INITIAL_SLOTS / 2];
+		this.words = new String[INITIAL_SLOTS / 2];
+		this.slots = new int[INITIAL_SLOTS];
+	}
+	
+	/**
+	 * Initialize a table holding the words, word i getting id i.
+	 * 
+	 * @param words
+	 *            distinct words
+	 * @param foldCase
+	 *            whether words are lower cased
+	 */
+	WordTable(String[] words, boolean foldCase)
+	{
+		this(foldCase);
+		for (int i = 0; i < words.length; i++)
+		{
+			if (intern(words[i]) != i)
+				throw new IllegalArgumentException("Duplicate word "
+				        + words[i]);
+		}
+	}
+	
+	/**
+	 * @return the number of words
+	 */
+	int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * @param id
+	 * @return the word of the id
+	 */
+	String get(int id)
+	{
+		return words[id];
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding UTF-8 text
+	 * @param start
+	 *            index of the first byte of the word
+	 * @param end
+	 *            index after the last byte of the word
+	 * @return the id of the word, -1 when it is not in the table
+	 */
+	int find(ByteBuffer buffer, int start, int end)
+	{
+		if (!isAscii(buffer, start, end))
+		{
+			ByteBuffer key = encode(decode(buffer, start, end), foldCase);
+			return lookup(key, 0, key.limit());
+		}
+		return lookup(buffer, start, end);
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}
+	 * @return the id of the word, -1 when it is not in the table
+	 */
+	int find(CharSequence word)
+	{
+		if (!isAscii(word))
+		{
+			ByteBuffer key = encode(word, foldCase);
+			return lookup(key, 0, key.limit());
+		}
+		
+		int hash = hash(word, foldCase);
+		int mask = slots.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (id < 0)
+				return -1;
+			if (hashes[id] == hash && equals(id, word))
+				return id;
+		}
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding UTF-8 text
+	 * @param start
+	 *            index of the first byte of the word
+	 * @param end
+	 *            index after the last byte of the word
+	 * @return the id of the word, adding it when it is new
+	 */
+	int intern(ByteBuffer buffer, int start, int end)
+	{
+		if (!isAscii(buffer, start, end))
+			return intern(decode(buffer, start, end));
+		return internKey(buffer, start, end);
+	}
+	
+	/**
+	 * @param word
+	 *            {@link String}
+	 * @return the id of the word, adding it when it is new
+	 */
+	int intern(String word)
+	{
+		ByteBuffer key = encode(word, foldCase);
+		return internKey(key, 0, key.limit());
+	}
+	
+	/**
+	 * Adds the word of the other table to this table.
+	 * 
+	 * @param other
+	 *            {@link WordTable} with the same case folding
+	 * @param id
+	 *            the id of the word in the other table
+	 * @return the id of the word in this table
+	 */
+	int intern(WordTable other, int id)
+	{
+		return internKey(ByteBuffer.wrap(other.pool), other.offsets[id],
+		        other.offsets[id + 1]);
+	}
+	
+	/**
+	 * Finds a key whose non-ASCII characters are already folded.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param start
+	 * @param end
+	 * @return the id of the key, -1 when it is not in the table
+	 */
+	private int lookup(ByteBuffer buffer, int start, int end)
+	{
+		int hash = hash(buffer, start, end, foldCase);
+		int mask = slots.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (id < 0)
+				return -1;
+			if (hashes[id] == hash && equals(id, buffer, start, end))
+				return id;
+		}
+	}
+	
+	/**
+	 * Interns a key whose non-ASCII characters are already folded.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param start
+	 * @param end
+	 * @return the id of the key, adding it when it is new
+	 */
+	private int internKey(ByteBuffer buffer, int start, int end)
+	{
+		int id = lookup(buffer, start, end);
+		if (id >= 0)
+			return id;
+		return add(buffer, start, end, hash(buffer, start, end, foldCase));
+	}
+	
+	/**
+	 * Appends a new key, folding its ASCII letters.
+	 * 
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param start
+	 * @param end
+	 * @param hash
+	 * @return the id of the new word
+	 */
+	private int add(ByteBuffer buffer, int start, int end, int hash)
+	{
+		int length = end - start;
+		if (poolSize + length > pool.length)
+		{
+			byte[] grown = new byte[Math.max(pool.length * 2, poolSize
+			        + length)];
+			System.arraycopy(pool, 0, grown, 0, poolSize);
+			pool = grown;
+		}
+		for (int i = 0; i < length; i++)
+		{
+			pool[poolSize + i] = fold(buffer.get(start + i), foldCase);
+		}
+		
+		if (size == hashes.length)
+			grow();
+		int id = size++;
+		offsets[id] = poolSize;
+		poolSize += length;
+		offsets[id + 1] = poolSize;
+		hashes[id] = hash;
+		words[id] = new String(pool, offsets[id], length,
+		        StandardCharsets.UTF_8);
+		insert(id);
+		return id;
+	}
+	
+	/**
+	 * Doubles the id arrays and the hash slots.
+	 */
+	private void grow()
+	{
+		int capacity = hashes.length * 2;
+		int[] grownOffsets = new int[capacity + 1];
+		System.arraycopy(offsets, 0, grownOffsets, 0, size + 1);
+		int[] grownHashes = new int[capacity];
+		System.arraycopy(hashes, 0, grownHashes, 0, size);
+		String[] grownWords = new String[capacity];
+		System.arraycopy(words, 0, grownWords, 0, size);
+		offsets = grownOffsets;
+		hashes = grownHashes;
+		words = grownWords;
+		
+		slots = new int[capacity * 2];
+		for (int id = 0; id < size; id++)
+		{
+			insert(id);
+		}
+	}
+	
+	/**
+	 * Puts the id into the first free slot of its hash.
+	 * 
+	 * @param id
+	 */
+	private void insert(int id)
+	{
+		int mask = slots.length - 1;
+		int slot = hashes[id] & mask;
+		while (slots[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = id + 1;
+	}
+	
+	/**
+	 * @param id
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param start
+	 * @param end
+	 * @return whether the key of the id equals the folded bytes
+	 */
+	private boolean equals(int id, ByteBuffer buffer, int start, int end)
+	{
+		int offset = offsets[id];
+		if (offsets[id + 1] - offset != end - start)
+			return false;
+		for (int i = start; i < end; i++)
+		{
+			if (pool[offset++] != fold(buffer.get(i), foldCase))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param id
+	 * @param word
+	 *            ASCII {@link CharSequence}
+	 * @return whether the key of the id equals the folded word
+	 */
+	private boolean equals(int id, CharSequence word)
+	{
+		int offset = offsets[id];
+		if (offsets[id + 1] - offset != word.length())
+			return false;
+		for (int i = 0; i < word.length(); i++)
+		{
+			if (pool[offset++] != fold((byte) word.charAt(i), foldCase))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer}
+	 * @param start
+	 * @param end
+	 * @param foldCase
+	 * @return the hash of the folded bytes
+	 */
+	static int hash(ByteBuffer buffer, int start, int end,
+	        boolean foldCase)
+	{
+		int hash = HASH_SEED;
+		for (int i = start; i < end; i++)
+		{
+			hash = (hash ^ fold(buffer.get(i), foldCase)) * HASH_PRIME;
+		}
+		return hash ^ (hash >>> 16);
+	}
+	
+	/**
+	 * @param word
+	 *            ASCII {@link CharSequence}
+	 * @param foldCase
+	 * @return the hash of the folded word, equal to the hash of its bytes
+	 */
+	static int hash(CharSequence word, boolean foldCase)
+	{
+		int hash = HASH_SEED;
+		for (int i = 0; i < word.length(); i++)
+		{
+			hash = (hash ^ fold((byte) word.charAt(i), foldCase)) * HASH_PRIME;
+		}
+		return hash ^ (hash >>> 16);
+	}
+	
+	/**
+	 * @param b
+	 *            a UTF-8 byte
+	 * @param foldCase
+	 * @return the byte lower cased when it is an ASCII letter and case
+	 *         folding is on
+	 */
+	static byte fold(byte b, boolean foldCase)
+	{
+		if (foldCase && b >= 'A' && b <= 'Z')
+			return (byte) (b + ('a' - 'A'));
+		return b;
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}
+	 * @param foldCase
+	 * @return the folded UTF-8 bytes of the word
+	 */
+	static ByteBuffer encode(CharSequence word, boolean foldCase)
+	{
+		if (!foldCase)
+			return ByteBuffer.wrap(word.toString().getBytes(
+			        StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder(word.length());
+		for (int i = 0; i < word.length();)
+		{
+			int codePoint = Character.codePointAt(word, i);
+			i += Character.charCount(codePoint);
+			key.appendCodePoint(foldCodePoint(codePoint));
+		}
+		return ByteBuffer.wrap(key.toString()
+		        .getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * @param codePoint
+	 * @return the code point lower cased
+	 */
+	static int foldCodePoint(int codePoint)
+	{
+		return Character.toLowerCase(codePoint);
+	}
+	
+	/**
+	 * @param codePoint
+	 * @return the number of UTF-8 bytes of the code point, 1 for an unpaired
+	 *         surrogate
+	 */
+	static int utf8Length(int codePoint)
+	{
+		if (codePoint < 0x80 || isSurrogate(codePoint))
+			return 1;
+		if (codePoint < 0x800)
+			return 2;
+		return (codePoint < 0x10000) ? 3 : 4;
+	}
+	
+	/**
+	 * Encodes a code point one byte at a time, an unpaired surrogate as '?'
+	 * like {@link String#getBytes(java.nio.charset.Charset)}.
+	 * 
+	 * @param codePoint
+	 * @param index
+	 *            index of the byte in the encoding
+	 * @param length
+	 *            {@link #utf8Length(int)} of the code point
+	 * @return the UTF-8 byte
+	 */
+	static byte utf8Byte(int codePoint, int index, int length)
+	{
+		if (isSurrogate(codePoint))
+			return '?';
+		if (length == 1)
+			return (byte) codePoint;
+		int shift = 6 * (length - 1 - index);
+		if (index > 0)
+			return (byte) (0x80 | ((codePoint >>> shift) & 0x3F));
+		return (byte) ((0xF00 >>> length) | (codePoint >>> shift));
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding UTF-8 text
+	 * @param start
+	 *            index of the first byte of a character
+	 * @param end
+	 *            index after the last byte of the text
+	 * @return the number of bytes of the character, 1 for a malformed byte
+	 */
+	static int utf8SequenceLength(ByteBuffer buffer, int start, int end)
+	{
+		int lead = buffer.get(start) & 0xFF;
+		int length = (lead < 0x80) ? 1 : (lead < 0xC2) ? 0 : (lead < 0xE0) ? 2
+		        : (lead < 0xF0) ? 3 : (lead < 0xF5) ? 4 : 0;
+		if (length == 0 || start + length > end)
+			return 1;
+		for (int i = 1; i < length; i++)
+		{
+			if ((buffer.get(start + i) & 0xC0) != 0x80)
+				return 1;
+		}
+		int codePoint = codePointAt(buffer, start, length);
+		int min = (length == 2) ? 0x80 : (length == 3) ? 0x800 : 0x10000;
+		if (codePoint < min || isSurrogate(codePoint)
+		        || codePoint > Character.MAX_CODE_POINT)
+			return 1;
+		return length;
+	}
+	
+	/**
+	 * @param codePoint
+	 * @return whether the code point is a surrogate, which UTF-8 does not
+	 *         encode
+	 */
+	private static boolean isSurrogate(int codePoint)
+	{
+		return codePoint >= Character.MIN_SURROGATE
+		        && codePoint <= Character.MAX_SURROGATE;
+	}
+	
+	/**
+	 * @param buffer
+	 *            {@link ByteBuffer} holding UTF-8 text
+	 * @param start
+	 *            index of the first byte of a character
+	 * @param length
+	 *            {@link #utf8SequenceLength(ByteBuffer, int, int)} of the
+	 *            character
+	 * @return the code point, U+FFFD for a malformed byte
+	 */
+	static int codePointAt(ByteBuffer buffer, int start, int length)
+	{
+		int lead = buffer.get(start) & 0xFF;
+		if (length == 1)
+			return (lead < 0x80) ? lead : 0xFFFD;
+		int codePoint = lead & (0x7F >>> length);
+		for (int i = 1; i < length; i++)
+		{
+			codePoint = (codePoint << 6) | (buffer.get(start + i) & 0x3F);
+		}
+		return codePoint;
+	}
+	
+	/**
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return the bytes decoded as UTF-8
+	 */
+	static String decode(ByteBuffer buffer, int start, int end)
+	{
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return whether all bytes of the range are ASCII
+	 */
+	static boolean isAscii(ByteBuffer buffer, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (buffer.get(i) < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param word
+	 *            {@link CharSequence}
+	 * @return whether all characters of the word are ASCII
+	 */
+	static boolean isAscii(CharSequence word)
+	{
+		for (int i = 0; i < word.length(); i++)
+		{
+			if (word.charAt(i) >= 0x80)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,532 @@
+/**
+ * 
+ */
+package com.gerard.hmm.test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import com.gerard.hmm.app.HMMGenerator;
+import com.gerard.hmm.app.HMMModel;
+import com.gerard.hmm.app.HMMParser;
+import com.gerard.hmm.app.ViterbiDecoder;
+import com.gerard.hmm.app.ViterbiExecutor;
+
+/**
+ * @author Gerard
+ *         Throughput and allocation benchmarks for training, model build and
+ *         decoding over config/entrain.txt, config/entest.txt and a synthetic
+ *         training set scaled from entrain.txt. The dense Viterbi kernel
+ *         is checked to give the same tags as the sparse one on the test set
+ *         before it is measured. The 8 bit quantized model is measured with
+ *         its error rate and size next to the full precision ones.
+ *         Every benchmark is warmed up, then run repeatedly for a fixed time,
+ *         and reports operations per second, nanoseconds and bytes allocated
+ *         per operation and the allocation rate of the whole JVM.
+ *         Run with a properties file as argument to gate regressions: the
+ *         results are compared with the file when it exists, and the program
+ *         exits with status 1 when a benchmark lost more than
+ *         {@link #TOLERANCE} of its throughput or allocates that much more.
+ *         Otherwise the results are saved to the file as the new baseline.
+ */
+public class HmmBenchmark
+{
+	private static final String trainingFile   = "config/entrain.txt";
+	private static final String testFile       = "config/entest.txt";
+	
+	/** Number of copies of the training set in the synthetic corpus */
+	private static final int    SCALE          = 8;
+	
+	private static final long   WARMUP_NANOS   = 2000000000L;
+	private static final long   MEASURE_NANOS  = 5000000000L;
+	
+	/** Allowed relative loss before a result counts as a regression */
+	private static final double TOLERANCE      = 0.2;
+	
+	/** Suffix making the words of the unknown word benchmark unknown */
+	private static final String UNKNOWN_SUFFIX = "qzx";
+	
+	/**
+	 * A benchmarked piece of work.
+	 */
+	private interface Benchmark
+	{
+		/**
+		 * Runs the work once.
+		 * 
+		 * @throws Exception
+		 */
+		void run() throws Exception;
+	}
+	
+	/**
+	 * The measurement of one benchmark.
+	 */
+	private static class Result
+	{
+		private final String name;
+		private final double opsPerSecond;
+		private final double nanosPerOp;
+		private final double bytesPerOp;
+		private final double allocMegabytesPerSecond;
+		
+		private Result(String name, long ops, long nanos, long bytes)
+		{
+			this.name = name;
+			this.opsPerSecond = ops * 1e9 / nanos;
+			this.nanosPerOp = (double) nanos / ops;
+			this.bytesPerOp = (bytes < 0) ? -1 : (double) bytes / ops;
+			this.allocMegabytesPerSecond = (bytes < 0) ? -1 : bytes * 1e3
+			        / nanos;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT,
+			        "%-28s %14.1f ops/s %14.1f ns/op %14.1f B/op %10.1f MB/s",
+			        name, opsPerSecond, nanosPerOp, bytesPerOp,
+			        allocMegabytesPerSecond);
+		}
+	}
+	
+	/** Keeps the benchmark results reachable so no work is optimized away */
+	private static Object       sink;
+	
+	public static void main(String[] args) throws Exception
+	{
+		final HMMParser parser = new HMMParser(trainingFile);
+		final HMMModel model = new HMMGenerator(parser).getModel();
+		final String synthetic = syntheticTrainingSet();
+		final HMMParser syntheticParser = new HMMParser(synthetic);
+		final ViterbiExecutor executor = new ViterbiExecutor(testFile, model);
+		final List<String[]> sentences = readSentences(testFile);
+		final List<String[]> unknownSentences = unknownWords(sentences);
+		final String[][] tokens = singleTokens(sentences);
+		final ViterbiDecoder dense = new ViterbiDecoder(model, true);
+		final HMMModel quantized = model.quantize(8);
+		final ViterbiDecoder quantizedDecoder = new ViterbiDecoder(quantized);
+		if (!sameTags(new ViterbiDecoder(model, false), dense, sentences)
+		        || !sameTags(new ViterbiDecoder(model, false), dense,
+		                unknownSentences))
+		{
+			System.out.println("The dense kernel changed the tags");
+			System.exit(1);
+		}
+		
+		List<Result> results = new ArrayList<Result>();
+		results.add(measure("parser.entrain", 1, new Benchmark()
+		{
+			@Override
+			public void run() throws Exception
+			{
+				sink = new HMMParser(trainingFile);
+			}
+		}));
+		results.add(measure("parser.synthetic", 1, new Benchmark()
+		{
+			@Override
+			public void run() throws Exception
+			{
+				sink = new HMMParser(synthetic);
+			}
+		}));
+		results.add(measure("generator.entrain", 1, new Benchmark()
+		{
+			@Override
+			public void run()
+			{
+				sink = new HMMGenerator(parser);
+			}
+		}));
+		results.add(measure("generator.synthetic", 1, new Benchmark()
+		{
+			@Override
+			public void run()
+			{
+				sink = new HMMGenerator(syntheticParser);
+			}
+		}));
+		results.add(measure("tag.sentence", sentences.size(), new Benchmark()
+		{
+			@Override
+			public void run()
+			{
+				for (String[] sentence : sentences)
+				{
+					sink = executor.tag(sentence);
+				}
+			}
+		}));
+		results.add(measure("tag.dense", sentences.size(), new Benchmark()
+		{
+			@Override
+			public void run()
+			{
+				for (String[] sentence : sentences)
+				{
+					sink = dense.tag(sentence);
+				}
+			}
+		}));
+		results.add(measure("tag.quantized8", sentences.size(),
+		        new Benchmark()
+		        {
+			        @Override
+			        public void run()
+			        {
+				        for (String[] sentence : sentences)
+				        {
+					        sink = quantizedDecoder.tag(sentence);
+				        }
+			        }
+		        }));
+		results.add(measure("tag.token", tokens.length, new Benchmark()
+		{
+			@Override
+			public void run()
+			{
+				for (String[] token : tokens)
+				{
+					sink = executor.tag(token);
+				}
+			}
+		}));
+		results.add(measure("tag.unknown", unknownSentences.size(),
+		        new Benchmark()
+		        {
+			        @Override
+			        public void run()
+			        {
+				        for (String[] sentence : unknownSentences)
+				        {
+					        sink = executor.tag(sentence);
+				        }
+			        }
+		        }));
+		results.add(measure("lexicon.lookup", tokens.length, new Benchmark()
+		{
+			@Override
+			public void run()
+			{
+				int ids = 0;
+				for (String[] token : tokens)
+				{
+					ids += model.getWordId(token[0]);
+				}
+				sink = ids;
+			}
+		}));
+		results.add(measure("errorRate", 1, new Benchmark()
+		{
+			@Override
+			public void run() throws Exception
+			{
+				sink = new ViterbiExecutor(testFile, model).errorRate();
+			}
+		}));
+		
+		for (Result result : results)
+		{
+			System.out.println(result);
+		}
+		double errorRate = executor.errorRate();
+		double quantizedErrorRate = new ViterbiExecutor(testFile, quantized)
+		        .errorRate();
+		System.out.println(String.format(Locale.ROOT,
+		        "quantized8 error rate %.6f (%+.6f), %d bytes (full %d)",
+		        quantizedErrorRate, quantizedErrorRate - errorRate,
+		        quantized.getByteSize(), model.getByteSize()));
+		if (args.length > 0 && !gate(results, new File(args[0])))
+			System.exit(1);
+	}
+	
+	/**
+	 * @param decoder
+	 *            {@link ViterbiDecoder}
+	 * @param other
+	 *            {@link ViterbiDecoder}
+	 * @param sentences
+	 * @return whether both decoders give the same tags to every sentence
+	 */
+	private static boolean sameTags(ViterbiDecoder decoder,
+	        ViterbiDecoder other, List<String[]> sentences)
+	{
+		for (String[] sentence : sentences)
+		{
+			if (!Arrays.equals(decoder.tag(sentence), other.tag(sentence)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Warms the benchmark up, then runs it for the measurement time.
+	 * 
+	 * @param name
+	 * @param opsPerRun
+	 *            number of operations done by one run of the benchmark
+	 * @param benchmark
+	 *            {@link Benchmark}
+	 * @return the {@link Result}
+	 * @throws Exception
+	 */
+	private static Result measure(String name, int opsPerRun,
+	        Benchmark benchmark) throws Exception
+	{
+		long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+		do
+		{
+			benchmark.run();
+		}
+		while (System.nanoTime() < warmupEnd);
+		
+		System.gc();
+		long runs = 0;
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		long now;
+		do
+		{
+			benchmark.run();
+			runs++;
+			now = System.nanoTime();
+		}
+		while (now - start < MEASURE_NANOS);
+		long allocated = allocatedBytes();
+		return new Result(name, runs * opsPerRun, now - start,
+		        (bytes < 0 || allocated < 0) ? -1 : allocated - bytes);
+	}
+	
+	/**
+	 * @return the bytes allocated so far by the live threads of the JVM, -1
+	 *         when the JVM does not count allocations
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+		        .getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		if (!allocations.isThreadAllocatedMemorySupported()
+		        || !allocations.isThreadAllocatedMemoryEnabled())
+			return -1;
+		long total = 0;
+		for (long bytes : allocations.getThreadAllocatedBytes(threads
+		        .getAllThreadIds()))
+		{
+			if (bytes > 0)
+				total += bytes;
+		}
+		return total;
+	}
+	
+	/**
+	 * Compares the results with the baseline file, or saves them as the
+	 * baseline when the file does not exist.
+	 * 
+	 * @param results
+	 * @param baselineFile
+	 *            {@link File}
+	 * @return false when a benchmark regressed
+	 * @throws IOException
+	 */
+	private static boolean gate(List<Result> results, File baselineFile)
+	        throws IOException
+	{
+		Properties baseline = new Properties();
+		if (!baselineFile.exists())
+		{
+			for (Result result : results)
+			{
+				baseline.setProperty(result.name + ".opsPerSecond",
+				        Double.toString(result.opsPerSecond));
+				baseline.setProperty(result.name + ".bytesPerOp",
+				        Double.toString(result.bytesPerOp));
+			}
+			OutputStream out = new FileOutputStream(baselineFile);
+			try
+			{
+				baseline.store(out, "HmmBenchmark baseline");
+			}
+			finally
+			{
+				out.close();
+			}
+			System.out.println("Saved baseline to " + baselineFile);
+			return true;
+		}
+		
+		InputStream in = new FileInputStream(baselineFile);
+		try
+		{
+			baseline.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+		boolean passed = true;
+		for (Result result : results)
+		{
+			String ops = baseline.getProperty(result.name + ".opsPerSecond");
+			if (ops != null
+			        && result.opsPerSecond < Double.parseDouble(ops)
+			                * (1 - TOLERANCE))
+			{
+				System.out.println("REGRESSION " + result.name + " throughput "
+				        + result.opsPerSecond + " ops/s, baseline " + ops);
+				passed = false;
+			}
+			String bytes = baseline.getProperty(result.name + ".bytesPerOp");
+			if (bytes != null && result.bytesPerOp >= 0
+			        && Double.parseDouble(bytes) >= 0
+			        && result.bytesPerOp > Double.parseDouble(bytes)
+			                * (1 + TOLERANCE) + 64)
+			{
+				System.out.println("REGRESSION " + result.name
+				        + " allocation " + result.bytesPerOp
+				        + " B/op, baseline " + bytes);
+				passed = false;
+			}
+		}
+		return passed;
+	}
+	
+	/**
+	 * Writes {@link #SCALE} copies of the training set to a temporary file,
+	 * every copy but the first with its own variant of each word so the
+	 * vocabulary grows with the corpus.
+	 * 
+	 * @return the path of the synthetic training set
+	 * @throws IOException
+	 */
+	private static String syntheticTrainingSet() throws IOException
+	{
+		File file = File.createTempFile("entrain", ".txt");
+		file.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try
+		{
+			for (int copy = 0; copy < SCALE; copy++)
+			{
+				BufferedReader reader = new BufferedReader(new FileReader(
+				        trainingFile));
+				try
+				{
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						line = line.trim();
+						int slash = line.indexOf('/');
+						if (copy > 0 && slash > 0 && !line.startsWith("###"))
+							line = line.substring(0, slash) + copy
+							        + line.substring(slash);
+						writer.write(line);
+						writer.newLine();
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		return file.getPath();
+	}
+	
+	/**
+	 * @param file
+	 *            a word/tag corpus
+	 * @return the words of each sentence of the corpus
+	 * @throws IOException
+	 */
+	private static List<String[]> readSentences(String file)
+	        throws IOException
+	{
+		List<String[]> sentences = new ArrayList<String[]>();
+		List<String> words = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				if (line.startsWith("###"))
+				{
+					if (!words.isEmpty())
+						sentences.add(words.toArray(new String[words.size()]));
+					words.clear();
+					continue;
+				}
+				int slash = line.indexOf('/');
+				words.add((slash < 0) ? line : line.substring(0, slash));
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		if (!words.isEmpty())
+			sentences.add(words.toArray(new String[words.size()]));
+		return sentences;
+	}
+	
+	/**
+	 * @param sentences
+	 * @return the sentences with every other word made unknown to the model
+	 */
+	private static List<String[]> unknownWords(List<String[]> sentences)
+	{
+		List<String[]> unknown = new ArrayList<String[]>(sentences.size());
+		for (String[] sentence : sentences)
+		{
+			String[] words = sentence.clone();
+			for (int i = 0; i < words.length; i += 2)
+			{
+				words[i] = words[i] + UNKNOWN_SUFFIX;
+			}
+			unknown.add(words);
+		}
+		return unknown;
+	}
+	
+	/**
+	 * @param sentences
+	 * @return every token of the sentences as a sentence of its own
+	 */
+	private static String[][] singleTokens(List<String[]> sentences)
+	{
+		List<String[]> tokens = new ArrayList<String[]>();
+		for (String[] sentence : sentences)
+		{
+			for (String word : sentence)
+			{
+				tokens.add(new String[] { word });
+			}
+		}
+		return tokens.toArray(new String[tokens.size()][]);
+	}
+}
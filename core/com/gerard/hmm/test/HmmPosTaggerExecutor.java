@@ -3,11 +3,20 @@
  */
 package com.gerard.hmm.test;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.HashMap;
+import java.util.Iterator;
 
+import com.gerard.hmm.app.BaumWelchTrainer;
 import com.gerard.hmm.app.HMMGenerator;
+import com.gerard.hmm.app.HMMModel;
+import com.gerard.hmm.app.HMMModelFile;
 import com.gerard.hmm.app.HMMParser;
+import com.gerard.hmm.app.StreamingTagger;
+import com.gerard.hmm.app.TaggedSentence;
+import com.gerard.hmm.app.TaggerMetrics;
 import com.gerard.hmm.app.ViterbiExecutor;
 import com.gerard.hmm.exception.HMMParserException;
 
@@ -18,6 +27,7 @@ public class HmmPosTaggerExecutor
 {
 	private static final String trainingFile = "config/entrain.txt";
 	private static final String testFile     = "config/entest.txt";
+	private static final String modelFile    = "config/entrain.model";
 	
 	public static void main(String[] args)
 	{
@@ -26,6 +36,12 @@ public class HmmPosTaggerExecutor
 			// testHMM();
 			// testHMMGenerator();
 			// testViterbi();
+			// testTrigram();
+			// testMetrics();
+			// testEvaluation();
+			// testBaumWelch();
+			// testQuantized();
+			// testStreaming();
 			errorRate();
 		}
 		catch (IOException | HMMParserException e)
@@ -40,12 +56,40 @@ public class HmmPosTaggerExecutor
 	 */
 	private static void errorRate() throws HMMParserException, IOException
 	{
-		HMMGenerator generator = new HMMGenerator(new HMMParser(trainingFile));
 		ViterbiExecutor viterbiExecutor = new ViterbiExecutor(testFile,
-		        generator);
+		        loadModel());
 		System.out.println(viterbiExecutor.errorRate());
 	}
 	
+	/**
+	 * Maps the saved model, training and saving it first when the model file
+	 * is missing, older than the training set or of an older format.
+	 * 
+	 * @return {@link HMMModel}
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static HMMModel loadModel() throws HMMParserException,
+	        IOException
+	{
+		File model = new File(modelFile);
+		if (model.isFile()
+		        && model.lastModified() >= new File(trainingFile).lastModified())
+		{
+			try
+			{
+				return HMMModelFile.map(modelFile);
+			}
+			catch (IOException e)
+			{
+				// Retrain below
+			}
+		}
+		HMMGenerator generator = new HMMGenerator(new HMMParser(trainingFile));
+		HMMModelFile.write(generator.getModel(), modelFile);
+		return HMMModelFile.map(modelFile);
+	}
+	
 	/**
 	 * @throws HMMParserException
 	 * @throws IOException
@@ -72,6 +116,148 @@ public class HmmPosTaggerExecutor
 		        generator);
 	}
 	
+	/**
+	 * Prints the error rate of the trigram model decoded with a beam.
+	 * 
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static void testTrigram() throws HMMParserException, IOException
+	{
+		HMMGenerator generator = new HMMGenerator(new HMMParser(trainingFile,
+		        true), true);
+		ViterbiExecutor viterbiExecutor = new ViterbiExecutor(testFile,
+		        generator.getModel());
+		System.out.println(viterbiExecutor.errorRate());
+	}
+	
+	/**
+	 * Prints the accuracy of the saved model, overall, on the known and the
+	 * unknown words, and the precision and recall of each tag.
+	 * 
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static void testEvaluation() throws HMMParserException,
+	        IOException
+	{
+		ViterbiExecutor viterbiExecutor = new ViterbiExecutor(testFile,
+		        loadModel());
+		System.out.println(viterbiExecutor.evaluate());
+	}
+	
+	/**
+	 * Re-estimates the saved model with Baum-Welch over the words of the
+	 * training set, read as untagged text, and prints the log likelihood of
+	 * each iteration and the error rate of the new model.
+	 * 
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static void testBaumWelch() throws HMMParserException,
+	        IOException
+	{
+		BaumWelchTrainer trainer = new BaumWelchTrainer(loadModel());
+		trainer.setListener((iteration, logLikelihood, sentences, tokens,
+		        nanos) -> System.out.printf(
+		        "iteration %d: log likelihood %.2f, %d tokens, %.1f ms%n",
+		        iteration, logLikelihood, tokens, nanos / 1e6));
+		HMMModel model = trainer.train(trainingFile, 10);
+		ViterbiExecutor viterbiExecutor = new ViterbiExecutor(testFile, model);
+		System.out.println(viterbiExecutor.errorRate());
+	}
+	
+	/**
+	 * Prints the error rate and the size of the saved model and of its 16
+	 * and 8 bit quantized copies, with the error rate change of each copy.
+	 * 
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static void testQuantized() throws HMMParserException,
+	        IOException
+	{
+		HMMModel model = loadModel();
+		double errorRate = new ViterbiExecutor(testFile, model).errorRate();
+		System.out.println("full: " + errorRate + ", " + model.getByteSize()
+		        + " bytes");
+		for (int bits : new int[] { 16, 8 })
+		{
+			HMMModel quantized = model.quantize(bits);
+			double quantizedErrorRate = new ViterbiExecutor(testFile,
+			        quantized).errorRate();
+			System.out.println(bits + " bit: " + quantizedErrorRate + " ("
+			        + (quantizedErrorRate - errorRate >= 0 ? "+" : "")
+			        + (quantizedErrorRate - errorRate) + "), "
+			        + quantized.getByteSize() + " bytes");
+		}
+	}
+	
+	/**
+	 * Tags the first sentences of an endless stream without line breaks,
+	 * which must be read only up to the sentences taken. Run with a small
+	 * heap, such as -Xmx32m, to check that the stream is not buffered.
+	 * 
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static void testStreaming() throws HMMParserException,
+	        IOException
+	{
+		final char[] text = "the dog saw a cat . ".toCharArray();
+		final long[] read = new long[1];
+		Reader endless = new Reader()
+		{
+			@Override
+			public int read(char[] buffer, int offset, int length)
+			{
+				for (int i = 0; i < length; i++)
+				{
+					int next = (int) (read[0]++ % text.length);
+					buffer[offset + i] = text[next];
+				}
+				return length;
+			}
+			
+			@Override
+			public void close()
+			{
+			}
+		};
+		int sentences = 1000;
+		Iterator<TaggedSentence> tagged = StreamingTagger.sentences(
+		        loadModel(), endless);
+		for (int i = 0; i < sentences; i++)
+		{
+			tagged.next();
+		}
+		// Six tokens to a repetition of the text
+		long expected = (long) sentences
+		        * StreamingTagger.DEFAULT_MAX_SENTENCE_LENGTH * text.length / 6;
+		System.out.println(sentences + " sentences, " + read[0]
+		        + " characters read, " + expected + " expected");
+		if (read[0] > expected + 8192)
+			throw new IllegalStateException("Stream read ahead of the "
+			        + "sentences taken");
+	}
+	
+	/**
+	 * Prints the metrics of training a model and decoding the test set.
+	 * 
+	 * @throws IOException
+	 * @throws HMMParserException
+	 */
+	private static void testMetrics() throws HMMParserException, IOException
+	{
+		TaggerMetrics metrics = TaggerMetrics.getDefault();
+		metrics.setEnabled(true);
+		HMMGenerator generator = new HMMGenerator(new HMMParser(trainingFile));
+		ViterbiExecutor viterbiExecutor = new ViterbiExecutor(testFile,
+		        generator.getModel());
+		System.out.println(viterbiExecutor.errorRate());
+		System.out.println(metrics);
+	}
+	
 	/**
 	 * @throws HMMParserException
 	 * @throws IOException